@@ -34,6 +34,8 @@ public class BlockedIPInformation
 
     private String ip;
 
+    private String wikiId;
+
     private Date lastAttempt;
 
     /**
@@ -57,6 +59,29 @@ public class BlockedIPInformation
         this.ip = ip;
     }
 
+    /**
+     * the wiki in which the ip is blocked.
+     *
+     * @return the id of the wiki
+     * @since 2.0
+     */
+    public String getWikiId()
+    {
+        return wikiId;
+    }
+
+    /**
+     * set the wiki in which the ip is blocked.
+     *
+     * @param wikiId
+     *            the id of the wiki
+     * @since 2.0
+     */
+    public void setWikiId(String wikiId)
+    {
+        this.wikiId = wikiId;
+    }
+
     /**
      * the last failed login attempt.
      *
@@ -0,0 +1,186 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+/**
+ * helper class to store one page of the users and IPs blocked in any wiki of the farm.
+ *
+ * @version $Id: $
+ * @since 2.0
+ */
+public class BlockedOverview
+{
+
+    private List<BlockedUserInformation> users = Collections.emptyList();
+
+    private List<BlockedIPInformation> ips = Collections.emptyList();
+
+    private int totalUsers;
+
+    private int totalIPs;
+
+    private Map<String, Integer> blockedUsersByWiki = Collections.emptyMap();
+
+    private Map<String, Integer> blockedIPsByWiki = Collections.emptyMap();
+
+    /**
+     * the blocked users on this page, latest attempts first.
+     *
+     * @return a list, maybe empty, but never null
+     */
+    public List<BlockedUserInformation> getUsers()
+    {
+        return users;
+    }
+
+    /**
+     * set the blocked users on this page.
+     *
+     * @param users
+     *            the users, should not be null
+     */
+    public void setUsers(List<BlockedUserInformation> users)
+    {
+        this.users = users;
+    }
+
+    /**
+     * the blocked IPs and subnets on this page, latest attempts first.
+     *
+     * @return a list, maybe empty, but never null
+     */
+    public List<BlockedIPInformation> getIPs()
+    {
+        return ips;
+    }
+
+    /**
+     * set the blocked IPs on this page.
+     *
+     * @param ips
+     *            the IPs, should not be null
+     */
+    public void setIPs(List<BlockedIPInformation> ips)
+    {
+        this.ips = ips;
+    }
+
+    /**
+     * the number of blocked users in all wikis.
+     *
+     * @return the number of users on all pages
+     */
+    public int getTotalUsers()
+    {
+        return totalUsers;
+    }
+
+    /**
+     * set the number of blocked users in all wikis.
+     *
+     * @param totalUsers
+     *            the number of users on all pages
+     */
+    public void setTotalUsers(int totalUsers)
+    {
+        this.totalUsers = totalUsers;
+    }
+
+    /**
+     * the number of blocked IPs and subnets in all wikis.
+     *
+     * @return the number of IPs on all pages
+     */
+    public int getTotalIPs()
+    {
+        return totalIPs;
+    }
+
+    /**
+     * set the number of blocked IPs and subnets in all wikis.
+     *
+     * @param totalIPs
+     *            the number of IPs on all pages
+     */
+    public void setTotalIPs(int totalIPs)
+    {
+        this.totalIPs = totalIPs;
+    }
+
+    /**
+     * the number of blocked users of each wiki with any blocked users.
+     *
+     * @return a map from the wiki id to the number of users, sorted by wiki id
+     */
+    public Map<String, Integer> getBlockedUsersByWiki()
+    {
+        return blockedUsersByWiki;
+    }
+
+    /**
+     * set the number of blocked users of each wiki.
+     *
+     * @param blockedUsersByWiki
+     *            a map from the wiki id to the number of users, should not be null
+     */
+    public void setBlockedUsersByWiki(Map<String, Integer> blockedUsersByWiki)
+    {
+        this.blockedUsersByWiki = blockedUsersByWiki;
+    }
+
+    /**
+     * the number of blocked IPs and subnets of each wiki with any blocked IPs.
+     *
+     * @return a map from the wiki id to the number of IPs, sorted by wiki id
+     */
+    public Map<String, Integer> getBlockedIPsByWiki()
+    {
+        return blockedIPsByWiki;
+    }
+
+    /**
+     * set the number of blocked IPs of each wiki.
+     *
+     * @param blockedIPsByWiki
+     *            a map from the wiki id to the number of IPs, should not be null
+     */
+    public void setBlockedIPsByWiki(Map<String, Integer> blockedIPsByWiki)
+    {
+        this.blockedIPsByWiki = blockedIPsByWiki;
+    }
+
+    /**
+     * a simple string representation.
+     *
+     * @return this object as string.
+     */
+    @Override
+    public String toString()
+    {
+        return ToStringBuilder.reflectionToString(this);
+    }
+
+}
@@ -37,6 +37,10 @@ public class BlockedUserInformation
 
     private Date lastAttempt;
 
+    private boolean existingUser;
+
+    private String displayName;
+
     /**
      * the document reference to the blocked user profile.
      *
@@ -79,6 +83,53 @@ public class BlockedUserInformation
         this.lastAttempt = lastAttempt;
     }
 
+    /**
+     * if the profile of the blocked user exists. only known if resolved for display.
+     *
+     * @return true if the user exists, false if not or not yet resolved
+     * @since 2.0
+     */
+    public boolean isExistingUser()
+    {
+        return existingUser;
+    }
+
+    /**
+     * set if the profile of the blocked user exists.
+     *
+     * @param existingUser
+     *            true if the user exists
+     * @since 2.0
+     */
+    public void setExistingUser(boolean existingUser)
+    {
+        this.existingUser = existingUser;
+    }
+
+    /**
+     * the name to show for the blocked user. only known if resolved for display.
+     *
+     * @return the first and last name of the user, or the login name if not available;
+     *         null if not yet resolved
+     * @since 2.0
+     */
+    public String getDisplayName()
+    {
+        return displayName;
+    }
+
+    /**
+     * set the name to show for the blocked user.
+     *
+     * @param displayName
+     *            the name to show
+     * @since 2.0
+     */
+    public void setDisplayName(String displayName)
+    {
+        this.displayName = displayName;
+    }
+
     /**
      * a simple string representation.
      *
@@ -42,6 +42,51 @@ public interface BlockedUsersService
      */
     void addFailedLogin(String username, XWikiContext context);
 
+    /**
+     * add record about a login that failed.
+     *
+     * @param attempt
+     *            the failed login attempt; values determined while checking it are reused
+     * @since 2.0
+     */
+    default void addFailedLogin(LoginAttempt attempt)
+    {
+        addFailedLogin(attempt.getUsername(), attempt.getContext());
+    }
+
+    /**
+     * add record about a successful login. depending on the configuration, this forgets
+     * the failures of the user, and of the client IP.
+     *
+     * @param attempt
+     *            the successful login attempt; values determined while checking it are reused
+     * @since 2.0
+     */
+    default void addSuccessfulLogin(LoginAttempt attempt)
+    {
+        // nothing to forget by default
+    }
+
+    /**
+     * check if a login attempt should be refused because of the recorded login failures.
+     * Values determined during the check are stored in the attempt.
+     *
+     * @param attempt
+     *            the login attempt to check
+     * @return the key of the message to show if the login is refused, or null if the login may proceed
+     * @since 2.0
+     */
+    default String checkLogin(LoginAttempt attempt)
+    {
+        if (isUserBlocked(attempt.getUsername())) {
+            return BlockingPolicy.USER_BLOCKED;
+        }
+        if (isIPBlocked(attempt.getContext())) {
+            return BlockingPolicy.IP_BLOCKED;
+        }
+        return null;
+    }
+
     /**
      * check if user is blocked.
      * This should be called on every attempted login.
@@ -0,0 +1,79 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Decides if a login attempt should be refused, and keeps track of failed logins.
+ * <p>
+ * The default policy checks the failures per user, per IP, per subnet and per wiki, as well as the
+ * number of different user names tried per IP, as configured for the wiki. Further policies can be added
+ * as components with their own hint; the default policy consults them after its own checks.
+ * All policies share the same {@link LoginAttempt}, so values like the client IP are only determined once.
+ *
+ * @version $Id$
+ * @since 2.0
+ */
+@Role
+public interface BlockingPolicy
+{
+    /** the message key if the login is refused because the user is blocked. */
+    String USER_BLOCKED = "contrib.blockingauth.user.blocked";
+
+    /** the message key if the login is refused because the IP is blocked. */
+    String IP_BLOCKED = "contrib.blockingauth.ip.blocked";
+
+    /** the message key if the login is refused because the subnet of the IP is blocked. */
+    String SUBNET_BLOCKED = "contrib.blockingauth.subnet.blocked";
+
+    /** the message key if the login is refused because there are too many failed logins for the whole wiki. */
+    String WIKI_BLOCKED = "contrib.blockingauth.wiki.blocked";
+
+    /** the message key if the login is refused because the wiki is under attack and the client is unknown. */
+    String WIKI_BUSY = "contrib.blockingauth.wiki.busy";
+
+    /**
+     * check if a login attempt should be refused. this is called before the credentials are checked.
+     *
+     * @param attempt
+     *            the login attempt
+     * @return the key of the message to show to the user if the login is refused, or null if the login may proceed
+     */
+    String check(LoginAttempt attempt);
+
+    /**
+     * record that a login attempt failed, either because it has been refused or because of wrong credentials.
+     *
+     * @param attempt
+     *            the same login attempt as passed to {@link #check(LoginAttempt)}
+     */
+    void recordFailure(LoginAttempt attempt);
+
+    /**
+     * record that a login attempt succeeded. does nothing by default.
+     *
+     * @param attempt
+     *            the same login attempt as passed to {@link #check(LoginAttempt)}
+     */
+    default void recordSuccess(LoginAttempt attempt)
+    {
+    }
+}
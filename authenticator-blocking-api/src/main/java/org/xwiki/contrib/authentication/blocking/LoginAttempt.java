@@ -0,0 +1,320 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * A single login attempt, shared by all {@link BlockingPolicy blocking policies} checking it.
+ * <p>
+ * Values which are expensive to determine, like the client IP or the canonical user name, are computed
+ * once by the first policy which needs them and then stored here, so that further policies
+ * can use them without looking them up again. Policies can store their own values as attributes;
+ * the map for them is only created when the first attribute is set.
+ * The same instance is used for checking the attempt and for recording its failure.
+ * Instances are not thread safe; they belong to the request of the login. Use {@link #forRequest} to
+ * share the instance with all code handling the same login in the request.
+ *
+ * @version $Id$
+ * @since 2.0
+ */
+public class LoginAttempt
+{
+    /**
+     * the key in the context for the login attempt of the current request.
+     */
+    public static final String CONTEXT_KEY = "blockingauth.attempt";
+
+    private final String username;
+
+    private final XWikiContext context;
+
+    private final long timestamp;
+
+    private String ip;
+
+    private String userKey;
+
+    private String userWikiId;
+
+    private String subnet;
+
+    private Boolean whitelisted;
+
+    private String refusal;
+
+    private boolean checked;
+
+    private String verdict;
+
+    private Map<String, Object> attributes;
+
+    /**
+     * create a login attempt.
+     *
+     * @param username
+     *            the user name as entered, not null
+     * @param context
+     *            the context of the login request
+     * @param timestamp
+     *            the time of the attempt, in milliseconds
+     */
+    public LoginAttempt(String username, XWikiContext context, long timestamp)
+    {
+        this.username = username;
+        this.context = context;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * get the login attempt of the current request, so that the values determined for it are computed
+     * only once per request. a new attempt is stored in the context if there is none yet, or if it is
+     * for another user name.
+     *
+     * @param username
+     *            the user name as entered; if null, the attempt of the request is returned for any user name,
+     *            e.g. to check the client only
+     * @param context
+     *            the context of the login request
+     * @param timestamp
+     *            the time of the attempt, in milliseconds; only used if a new attempt is created
+     * @return the login attempt of the request
+     */
+    public static LoginAttempt forRequest(String username, XWikiContext context, long timestamp)
+    {
+        final Object cached = context == null ? null : context.get(CONTEXT_KEY);
+        if (cached instanceof LoginAttempt
+            && (username == null || username.equals(((LoginAttempt) cached).getUsername()))) {
+            return (LoginAttempt) cached;
+        }
+        final LoginAttempt attempt = new LoginAttempt(username, context, timestamp);
+        if (context != null) {
+            context.put(CONTEXT_KEY, attempt);
+        }
+        return attempt;
+    }
+
+    /**
+     * @return the user name as entered
+     */
+    public String getUsername()
+    {
+        return username;
+    }
+
+    /**
+     * @return the context of the login request
+     */
+    public XWikiContext getContext()
+    {
+        return context;
+    }
+
+    /**
+     * @return the time of the attempt, in milliseconds
+     */
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    /**
+     * @return the IP of the client, or null if not determined yet
+     */
+    public String getIP()
+    {
+        return ip;
+    }
+
+    /**
+     * @param ip
+     *            the IP of the client
+     */
+    public void setIP(String ip)
+    {
+        this.ip = ip;
+    }
+
+    /**
+     * @return the canonical user name, or null if not determined yet
+     * @see UsernameCanonicalizer
+     */
+    public String getUserKey()
+    {
+        return userKey;
+    }
+
+    /**
+     * @param userKey
+     *            the canonical user name
+     */
+    public void setUserKey(String userKey)
+    {
+        this.userKey = userKey;
+    }
+
+    /**
+     * @return the id of the wiki holding the account of the user, or null if not determined yet
+     */
+    public String getUserWikiId()
+    {
+        return userWikiId;
+    }
+
+    /**
+     * @param userWikiId
+     *            the id of the wiki holding the account of the user
+     */
+    public void setUserWikiId(String userWikiId)
+    {
+        this.userWikiId = userWikiId;
+    }
+
+    /**
+     * @return the subnet of the client IP, like {@code 192.0.2.0/24}, or null if not determined yet
+     */
+    public String getSubnet()
+    {
+        return subnet;
+    }
+
+    /**
+     * @param subnet
+     *            the subnet of the client IP
+     */
+    public void setSubnet(String subnet)
+    {
+        this.subnet = subnet;
+    }
+
+    /**
+     * @return true if the client IP is whitelisted, false if not, or null if not determined yet
+     */
+    public Boolean getWhitelisted()
+    {
+        return whitelisted;
+    }
+
+    /**
+     * @param whitelisted
+     *            if the client IP is whitelisted
+     */
+    public void setWhitelisted(Boolean whitelisted)
+    {
+        this.whitelisted = whitelisted;
+    }
+
+    /**
+     * @return the key of the message of the {@link BlockingPolicy} if the attempt has been refused,
+     *         or null if it has not been refused or not been checked yet
+     * @since 2.0
+     */
+    public String getRefusal()
+    {
+        return refusal;
+    }
+
+    /**
+     * @param refusal
+     *            the key of the message of the {@link BlockingPolicy} if the attempt has been refused, or null
+     * @since 2.0
+     */
+    public void setRefusal(String refusal)
+    {
+        this.refusal = refusal;
+    }
+
+    /**
+     * @return true if the {@link BlockedUsersService} has checked the attempt since a failure or success has been
+     *         recorded for it, so that its {@link #getVerdict() verdict} can be used instead of checking again
+     */
+    public boolean isChecked()
+    {
+        return checked;
+    }
+
+    /**
+     * @return the key of the message for the refusal by the {@link BlockedUsersService}, or null if not refused
+     *         or not checked yet
+     */
+    public String getVerdict()
+    {
+        return verdict;
+    }
+
+    /**
+     * keep the result of the check by the {@link BlockedUsersService}, and mark the attempt as checked.
+     *
+     * @param verdict
+     *            the key of the message for the refusal, or null if the attempt is not refused
+     */
+    public void setVerdict(String verdict)
+    {
+        this.verdict = verdict;
+        this.checked = true;
+    }
+
+    /**
+     * forget the result of the check by the {@link BlockedUsersService}, as the attempt has been recorded as
+     * failure or success since.
+     */
+    public void resetVerdict()
+    {
+        this.verdict = null;
+        this.checked = false;
+    }
+
+    /**
+     * get a value stored by a policy.
+     *
+     * @param name
+     *            the name of the value
+     * @return the value, or null if not set
+     */
+    public Object getAttribute(String name)
+    {
+        return attributes == null ? null : attributes.get(name);
+    }
+
+    /**
+     * store a value to be used by other policies, or when recording the failure of this attempt.
+     *
+     * @param name
+     *            the name of the value
+     * @param value
+     *            the value; null removes the value
+     */
+    public void setAttribute(String name, Object value)
+    {
+        if (value == null) {
+            if (attributes != null) {
+                attributes.remove(name);
+            }
+            return;
+        }
+        if (attributes == null) {
+            attributes = new HashMap<>();
+        }
+        attributes.put(name, value);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking;
+
+import org.xwiki.contrib.authentication.blocking.internal.BlockingAuthConfiguration.Config;
+import org.xwiki.contrib.authentication.blocking.internal.DefaultOfflineBlocking;
+
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * Runs the blocking of failed logins outside of a wiki, in virtual time, e.g. to replay logged logins
+ * with candidate configurations.
+ * <p>
+ * The {@link BlockedUsersService} of an offline blocking has state of its own, and never expires failures
+ * on its own; the time only passes with {@link #advance(long)}. An offline blocking is not thread safe.
+ *
+ * @version $Id$
+ * @since 2.0
+ */
+public interface OfflineBlocking
+{
+    /**
+     * create an offline blocking with the given configuration.
+     *
+     * @param config
+     *            the configuration for all wikis
+     * @param context
+     *            the context of all attempts, to look up the wiki of the users; the attempts should have
+     *            their client IP set, as the context needs no request
+     * @return a new offline blocking, starting at time zero
+     */
+    static OfflineBlocking create(Config config, XWikiContext context)
+    {
+        return new DefaultOfflineBlocking(config, context);
+    }
+
+    /**
+     * @return the service to check and record the attempts with
+     */
+    BlockedUsersService getService();
+
+    /**
+     * set the time, and let the failures and blocks expire which ended until then.
+     *
+     * @param now
+     *            the time of the next attempt, in milliseconds; never before the time of the last call
+     */
+    void advance(long now);
+}
@@ -0,0 +1,47 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Maps the user names entered for a login to the key the failed logins are counted for.
+ * <p>
+ * All spellings of a user name which log in the same user should be mapped to the same key,
+ * so that an attacker cannot avoid being blocked by varying the case or adding spaces.
+ * The default implementation follows the rules of the XWiki authentication service;
+ * it can be replaced by a component with a higher priority, e.g. for other authenticators.
+ *
+ * @version $Id$
+ * @since 2.0
+ */
+@Role
+public interface UsernameCanonicalizer
+{
+    /**
+     * get the canonical form of a user name.
+     * the result must always be the same for the same input.
+     *
+     * @param username
+     *            the user name as entered by the user, not null
+     * @return the canonical user name, never null
+     */
+    String canonicalize(String username);
+}
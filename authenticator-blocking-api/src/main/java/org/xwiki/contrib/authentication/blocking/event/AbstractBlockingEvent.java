@@ -0,0 +1,115 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.event;
+
+import java.io.Serializable;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.xwiki.observation.event.Event;
+
+/**
+ * Base class for the events sent when the blocking state of a user or an IP changes.
+ * <p>
+ * The events are only sent on transitions, never for single failed logins, and they are sent
+ * asynchronously after the login has been processed. Listeners are therefore called without the
+ * context of the request which caused the transition.
+ * An instance created with the default constructor matches all events of the same type.
+ *
+ * @version $Id$
+ * @since 2.0
+ */
+public abstract class AbstractBlockingEvent implements Event, Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private final String wikiId;
+
+    private final String username;
+
+    private final String ip;
+
+    /**
+     * create an event to be used as filter for listeners.
+     */
+    protected AbstractBlockingEvent()
+    {
+        this(null, null, null);
+    }
+
+    /**
+     * create an event for a change of the blocking state.
+     *
+     * @param wikiId
+     *            the id of the wiki the blocking data belongs to
+     * @param username
+     *            the affected user, or null
+     * @param ip
+     *            the affected IP, or null
+     */
+    protected AbstractBlockingEvent(String wikiId, String username, String ip)
+    {
+        this.wikiId = wikiId;
+        this.username = username;
+        this.ip = ip;
+    }
+
+    /**
+     * the wiki the blocking data belongs to; for users this is the wiki of the account.
+     *
+     * @return the wiki id
+     */
+    public String getWikiId()
+    {
+        return wikiId;
+    }
+
+    /**
+     * the affected user.
+     *
+     * @return the user name, or null if only an IP is affected
+     */
+    public String getUsername()
+    {
+        return username;
+    }
+
+    /**
+     * the affected IP.
+     *
+     * @return the IP, or null if unknown
+     */
+    public String getIp()
+    {
+        return ip;
+    }
+
+    @Override
+    public boolean matches(Object otherEvent)
+    {
+        return otherEvent != null && getClass() == otherEvent.getClass();
+    }
+
+    @Override
+    public String toString()
+    {
+        return new ToStringBuilder(this).append("wikiId", wikiId).append("username", username).append("ip", ip)
+            .toString();
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.event;
+
+/**
+ * Sent when an IP gets blocked after too many failed logins.
+ *
+ * @version $Id$
+ * @since 2.0
+ */
+public class IPBlockedEvent extends AbstractBlockingEvent
+{
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * create an event to be used as filter for listeners.
+     */
+    public IPBlockedEvent()
+    {
+        super();
+    }
+
+    /**
+     * create the event for a newly blocked IP.
+     *
+     * @param wikiId
+     *            the id of the wiki the blocking data belongs to
+     * @param username
+     *            the user name of the login attempt which caused the block
+     * @param ip
+     *            the blocked IP
+     */
+    public IPBlockedEvent(String wikiId, String username, String ip)
+    {
+        super(wikiId, username, ip);
+    }
+}
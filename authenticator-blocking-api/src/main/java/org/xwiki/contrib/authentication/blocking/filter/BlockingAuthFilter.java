@@ -0,0 +1,263 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.filter;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.contrib.authentication.blocking.internal.BlockingClock;
+import org.xwiki.contrib.authentication.blocking.internal.RequestGate;
+
+/**
+ * Optional servlet filter which slows down login attempts for blocked users and IPs (a "tarpit").
+ * <p>
+ * Login attempts from IPs recorded in the {@link RequestGate} are put into asynchronous mode,
+ * and answered with a "429 Too Many Requests" after the delay by a single scheduler thread.
+ * This way the attacker has to wait, but no request thread of the container is held during the wait.
+ * <p>
+ * Only requests submitting the login form are considered. As their user name parameter is read, which makes the
+ * container parse the request body, the filter has to be mapped after the {@code Set Character Encoding} filter,
+ * so that non ASCII user names are decoded correctly. To enable the filter, add it to the {@code web.xml} of XWiki
+ * with its mapping after the one of that filter, and set a tarpit delay in the configuration:
+ * <pre>
+ * &lt;filter&gt;
+ *   &lt;filter-name&gt;BlockingAuthFilter&lt;/filter-name&gt;
+ *   &lt;filter-class&gt;org.xwiki.contrib.authentication.blocking.filter.BlockingAuthFilter&lt;/filter-class&gt;
+ *   &lt;async-supported&gt;true&lt;/async-supported&gt;
+ * &lt;/filter&gt;
+ * &lt;!-- after the filter-mapping of the Set Character Encoding filter --&gt;
+ * &lt;filter-mapping&gt;
+ *   &lt;filter-name&gt;BlockingAuthFilter&lt;/filter-name&gt;
+ *   &lt;url-pattern&gt;/*&lt;/url-pattern&gt;
+ * &lt;/filter-mapping&gt;
+ * </pre>
+ * The init parameter {@code maxParkedRequests} limits the number of requests waiting at the same time
+ * (default {@value #DEFAULT_MAX_PARKED}); further attempts are rejected at once.
+ * <p>
+ * If the init parameter {@code rejectBlockedIPs} is {@code true}, login attempts from blocked IPs are rejected
+ * with a "429 Too Many Requests" at once, before XWiki handles the request at all. As the wiki of the request
+ * is not known yet at this point, an IP blocked for one wiki can then not log in to any other wiki of the farm
+ * until its block ends.
+ *
+ * @version $Id$
+ * @since 2.0
+ */
+public class BlockingAuthFilter implements Filter
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(BlockingAuthFilter.class);
+
+    private static final String USERNAME_PARAMETER = "j_username";
+
+    private static final String LOGIN_SUBMIT_PATH = "/loginsubmit/";
+
+    private static final String SECURITY_CHECK_PATH = "j_security_check";
+
+    private static final String MAX_PARKED_PARAMETER = "maxParkedRequests";
+
+    private static final String REJECT_BLOCKED_PARAMETER = "rejectBlockedIPs";
+
+    private static final int DEFAULT_MAX_PARKED = 1000;
+
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+
+    /** additional time before the container times out a parked request. */
+    private static final long ASYNC_TIMEOUT_MARGIN = 10000L;
+
+    private final AtomicInteger parked = new AtomicInteger();
+
+    private int maxParked = DEFAULT_MAX_PARKED;
+
+    private boolean rejectBlockedIPs;
+
+    private ScheduledExecutorService scheduler;
+
+    private ServletContext servletContext;
+
+    /** set before the gate, so it is available once the gate is. */
+    private volatile BlockingClock clock;
+
+    private volatile RequestGate gate;
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException
+    {
+        servletContext = filterConfig.getServletContext();
+        String maxParkedParam = filterConfig.getInitParameter(MAX_PARKED_PARAMETER);
+        if (StringUtils.isNotBlank(maxParkedParam)) {
+            maxParked = Integer.parseInt(maxParkedParam.trim());
+        }
+        rejectBlockedIPs =
+            Boolean.parseBoolean(StringUtils.trim(filterConfig.getInitParameter(REJECT_BLOCKED_PARAMETER)));
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "BlockingAuth Tarpit");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+        throws IOException, ServletException
+    {
+        final RequestGate requestGate = getGate();
+        if (requestGate == null || !(request instanceof HttpServletRequest)) {
+            chain.doFilter(request, response);
+            return;
+        }
+        final boolean checkBlocked = rejectBlockedIPs && requestGate.hasBlockedIPs();
+        final HttpServletRequest httpRequest = (HttpServletRequest) request;
+        // do not touch the parameters of other requests, so that their body is left to XWiki
+        if ((!checkBlocked && requestGate.isEmpty()) || !isLoginSubmit(httpRequest)) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        final String ip = requestGate.getClientIP(httpRequest);
+        if (checkBlocked) {
+            final long now = clock.millis();
+            final long blockedUntil = requestGate.getBlockedUntil(ip, now);
+            if (blockedUntil > 0L && httpRequest.getParameter(USERNAME_PARAMETER) != null) {
+                reject((HttpServletResponse) response, blockedUntil - now);
+                return;
+            }
+        }
+
+        if (requestGate.isEmpty()) {
+            chain.doFilter(request, response);
+            return;
+        }
+        final String username = httpRequest.getParameter(USERNAME_PARAMETER);
+        if (username == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        final long delay = requestGate.nextDelay(ip, username);
+        if (delay <= 0L) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        if (!request.isAsyncSupported()) {
+            reject((HttpServletResponse) response, delay);
+            return;
+        }
+        if (parked.incrementAndGet() > maxParked) {
+            parked.decrementAndGet();
+            reject((HttpServletResponse) response, delay);
+            return;
+        }
+
+        final AsyncContext async = request.startAsync();
+        async.setTimeout(delay + ASYNC_TIMEOUT_MARGIN);
+        try {
+            scheduler.schedule(() -> {
+                try {
+                    reject((HttpServletResponse) async.getResponse(), delay);
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.debug("could not answer delayed login attempt", e);
+                } finally {
+                    parked.decrementAndGet();
+                    async.complete();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            parked.decrementAndGet();
+            reject((HttpServletResponse) response, delay);
+            async.complete();
+        }
+    }
+
+    @Override
+    public void destroy()
+    {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * check if the request submits the login form, without parsing its parameters.
+     */
+    private static boolean isLoginSubmit(HttpServletRequest request)
+    {
+        final String uri = request.getRequestURI();
+        return uri != null && (uri.contains(LOGIN_SUBMIT_PATH) || uri.endsWith(SECURITY_CHECK_PATH));
+    }
+
+    private static void reject(HttpServletResponse response, long delay) throws IOException
+    {
+        response.setHeader("Retry-After", Long.toString(TimeUnit.MILLISECONDS.toSeconds(delay) + 1));
+        response.sendError(SC_TOO_MANY_REQUESTS);
+    }
+
+    /**
+     * only for tests.
+     *
+     * @param requestGate
+     *            the gate to consult
+     * @param blockingClock
+     *            the clock
+     */
+    void setComponents(RequestGate requestGate, BlockingClock blockingClock)
+    {
+        this.clock = blockingClock;
+        this.gate = requestGate;
+    }
+
+    private RequestGate getGate()
+    {
+        RequestGate requestGate = gate;
+        if (requestGate == null) {
+            ComponentManager componentManager =
+                (ComponentManager) servletContext.getAttribute(ComponentManager.class.getName());
+            if (componentManager != null) {
+                try {
+                    clock = componentManager.getInstance(BlockingClock.class);
+                    requestGate = componentManager.getInstance(RequestGate.class);
+                    gate = requestGate;
+                } catch (ComponentLookupException e) {
+                    LOGGER.debug("could not find the blocking authenticator request gate", e);
+                }
+            }
+        }
+        return requestGate;
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.internal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.environment.Environment;
+
+/**
+ * Writes an audit trail of blocking events as JSON lines to a file in the permanent directory.
+ * <p>
+ * Events are only put into a bounded queue by the calling thread; a background thread writes them
+ * in batches and syncs the file once per batch. If the queue is full, events are dropped and the
+ * number of dropped events is written to the log instead, so the login never waits for the disk.
+ * The file is rotated when it grows too large.
+ *
+ * @version $Id$
+ * @since 2.0
+ */
+@Component(roles = { AuditLog.class })
+@Singleton
+public class AuditLog implements Initializable, Disposable
+{
+    /** a user got blocked. */
+    public static final String USER_BLOCKED = "userBlocked";
+
+    /** an IP got blocked. */
+    public static final String IP_BLOCKED = "ipBlocked";
+
+    /** a subnet got blocked. */
+    public static final String SUBNET_BLOCKED = "subnetBlocked";
+
+    /** all logins to a wiki got blocked. */
+    public static final String WIKI_BLOCKED = "wikiBlocked";
+
+    /** a login was rejected because the user is blocked. */
+    public static final String USER_REJECTED = "userRejected";
+
+    /** a login was rejected because the IP is blocked. */
+    public static final String IP_REJECTED = "ipRejected";
+
+    /** a login was rejected because the subnet of the IP is blocked. */
+    public static final String SUBNET_REJECTED = "subnetRejected";
+
+    /** a login was rejected because all logins to the wiki are blocked. */
+    public static final String WIKI_REJECTED = "wikiRejected";
+
+    /** a login was rejected because the wiki is under attack and the client is unknown. */
+    public static final String WIKI_BUSY = "wikiBusy";
+
+    /** a login was rejected by a further blocking policy. */
+    public static final String POLICY_REJECTED = "policyRejected";
+
+    /** a user has been unblocked. */
+    public static final String USER_UNBLOCKED = "userUnblocked";
+
+    /** an IP has been unblocked. */
+    public static final String IP_UNBLOCKED = "ipUnblocked";
+
+    private static final String DROPPED = "dropped";
+
+    private static final String DIRECTORY = "authenticator-blocking";
+
+    private static final String FILE_NAME = "audit.log";
+
+    private static final int QUEUE_SIZE = 10000;
+
+    private static final int BATCH_SIZE = 500;
+
+    /** how long the writer waits for new events before checking if it should stop, in milliseconds. */
+    private static final long POLL_INTERVAL = 1000L;
+
+    private static final long MAX_FILE_SIZE = 10L * 1024 * 1024;
+
+    private static final int MAX_BACKUPS = 5;
+
+    private static final class AuditEvent
+    {
+        private final long timestamp;
+
+        private final String type;
+
+        private final String wikiId;
+
+        private final String user;
+
+        private final String ip;
+
+        private final String actor;
+
+        private final long count;
+
+        AuditEvent(long timestamp, String type, String wikiId, String user, String ip, String actor, long count)
+        {
+            this.timestamp = timestamp;
+            this.type = type;
+            this.wikiId = wikiId;
+            this.user = user;
+            this.ip = ip;
+            this.actor = actor;
+            this.count = count;
+        }
+    }
+
+    @Inject
+    private Environment environment;
+
+    @Inject
+    private Logger logger;
+
+    private final BlockingQueue<AuditEvent> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private File logFile;
+
+    private FileOutputStream out;
+
+    private Thread writer;
+
+    private volatile boolean running;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        File directory = new File(environment.getPermanentDirectory(), DIRECTORY);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            logger.warn("could not create directory [{}] for the audit log", directory);
+        }
+        logFile = new File(directory, FILE_NAME);
+
+        running = true;
+        writer = new Thread(this::writeEvents, "Blocking authenticator audit log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void dispose()
+    {
+        running = false;
+        if (writer != null) {
+            try {
+                writer.join(2 * POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * record an event. this never blocks; if the writer cannot keep up, the event is dropped.
+     *
+     * @param type
+     *            the type of the event, one of the constants of this class
+     * @param wikiId
+     *            the wiki the event belongs to
+     * @param user
+     *            the affected user, or null
+     * @param ip
+     *            the affected IP, or null
+     * @param actor
+     *            the user who triggered the event, e.g. an admin unblocking a user; null if triggered by a login
+     */
+    public void log(String type, String wikiId, String user, String ip, String actor)
+    {
+        if (!running
+            || !queue.offer(new AuditEvent(System.currentTimeMillis(), type, wikiId, user, ip, actor, 0L))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private void writeEvents()
+    {
+        final List<AuditEvent> batch = new ArrayList<>(BATCH_SIZE);
+        while (running || !queue.isEmpty()) {
+            try {
+                AuditEvent first = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, BATCH_SIZE - 1);
+                long droppedEvents = dropped.getAndSet(0L);
+                if (droppedEvents > 0) {
+                    batch.add(new AuditEvent(System.currentTimeMillis(), DROPPED, null, null, null, null,
+                        droppedEvents));
+                }
+                write(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+        close();
+    }
+
+    private void write(List<AuditEvent> batch)
+    {
+        final StringBuilder lines = new StringBuilder(batch.size() * 128);
+        for (AuditEvent event : batch) {
+            appendJson(lines, event);
+            lines.append('\n');
+        }
+        try {
+            if (out == null) {
+                out = new FileOutputStream(logFile, true);
+            }
+            out.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+            out.getChannel().force(false);
+            if (out.getChannel().size() >= MAX_FILE_SIZE) {
+                close();
+                rotate();
+            }
+        } catch (IOException e) {
+            logger.warn("could not write [{}] events to the audit log [{}]: [{}]", batch.size(), logFile,
+                e.getMessage());
+            close();
+        }
+    }
+
+    private void rotate()
+    {
+        File oldest = new File(logFile.getPath() + '.' + MAX_BACKUPS);
+        if (oldest.exists() && !oldest.delete()) {
+            logger.warn("could not delete old audit log [{}]", oldest);
+        }
+        for (int i = MAX_BACKUPS - 1; i > 0; i--) {
+            File backup = new File(logFile.getPath() + '.' + i);
+            if (backup.exists() && !backup.renameTo(new File(logFile.getPath() + '.' + (i + 1)))) {
+                logger.warn("could not rotate audit log [{}]", backup);
+            }
+        }
+        if (!logFile.renameTo(new File(logFile.getPath() + ".1"))) {
+            logger.warn("could not rotate audit log [{}]", logFile);
+        }
+    }
+
+    private void close()
+    {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                logger.debug("could not close audit log", e);
+            }
+            out = null;
+        }
+    }
+
+    private static void appendJson(StringBuilder json, AuditEvent event)
+    {
+        json.append("{\"time\":\"").append(Instant.ofEpochMilli(event.timestamp)).append('"');
+        appendField(json, "event", event.type);
+        appendField(json, "wiki", event.wikiId);
+        appendField(json, "user", event.user);
+        appendField(json, "ip", event.ip);
+        appendField(json, "actor", event.actor);
+        if (event.count > 0) {
+            json.append(",\"count\":").append(event.count);
+        }
+        json.append('}');
+    }
+
+    private static void appendField(StringBuilder json, String name, String value)
+    {
+        if (value == null) {
+            return;
+        }
+        json.append(",\"").append(name).append("\":\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                    json.append('\\').append(c);
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < ' ') {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        json.append('"');
+    }
+}
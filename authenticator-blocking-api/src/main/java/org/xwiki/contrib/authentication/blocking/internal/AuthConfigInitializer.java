@@ -75,6 +75,22 @@ public class AuthConfigInitializer extends AbstractMandatoryClassInitializer
     static final String IP_BLOCK_TIME = "ipBlockTime";
     static final String WHILELISTED_IPS = "ipWhitelist";
     static final String TRUSTED_PROXIES = "trustedProxies";
+    static final String BLOCK_TIME_FACTOR = "blockTimeFactor";
+    static final String MAX_BLOCK_TIME = "maxBlockTime";
+    static final String ESCALATION_DECAY_TIME = "escalationDecayTime";
+    static final String TARPIT_DELAY = "tarpitDelay";
+    static final String TARPIT_MAX_DELAY = "tarpitMaxDelay";
+    static final String MAX_TRACKED_ENTRIES = "maxTrackedEntries";
+    static final String MAX_DISTINCT_USERS = "maxDistinctUsers";
+    static final String DISTINCT_USERS_WINDOW = "distinctUsersWindow";
+    static final String MAX_SUBNET_ATTEMPTS = "maxSubnetAttempts";
+    static final String MAX_WIKI_ATTEMPTS = "maxWikiAttempts";
+    static final String WIKI_ATTEMPTS_WINDOW = "wikiAttemptsWindow";
+    static final String CIRCUIT_BREAKER_RATE = "circuitBreakerRate";
+    static final String FAILED_CREDENTIALS_TIME = "failedCredentialsTime";
+    static final String RESET_USER_ON_SUCCESS = "resetUserOnSuccess";
+    static final String RESET_IP_ON_SUCCESS = "resetIPOnSuccess";
+    static final String HONEYPOT_USERS = "honeypotUsers";
 
     @Inject
     private Logger logger;
@@ -108,6 +124,7 @@ public class AuthConfigInitializer extends AbstractMandatoryClassInitializer
         final String longType = "long";
         final String inputField = "input";
         final String sep = ", ";
+        final String yesNo = "yesno";
 
         xclass.addNumberField(MAX_USER_ATTEMPTS, "Maximal attempts before a user is blocked", 10, integerType);
         xclass.addNumberField(USER_BLOCK_TIME, "Timeout when maximum of failed logins reached", 30, longType);
@@ -117,6 +134,36 @@ public class AuthConfigInitializer extends AbstractMandatoryClassInitializer
 
         xclass.addStaticListField(WHILELISTED_IPS, "Whitelisted IPs", 5, true, false, "", inputField, sep);
         xclass.addStaticListField(TRUSTED_PROXIES, "List of trusted proxies", 5, true, false, "", inputField, sep);
+
+        xclass.addNumberField(BLOCK_TIME_FACTOR, "Factor to increase the timeout for repeated blocks", 10,
+            integerType);
+        xclass.addNumberField(MAX_BLOCK_TIME, "Maximal timeout for repeated blocks", 30, longType);
+        xclass.addNumberField(ESCALATION_DECAY_TIME, "Time after which repeated blocks are forgiven", 30, longType);
+
+        xclass.addNumberField(TARPIT_DELAY, "Delay for login attempts of blocked users and IPs", 30, longType);
+        xclass.addNumberField(TARPIT_MAX_DELAY, "Maximal delay for login attempts of blocked users and IPs", 30,
+            longType);
+
+        xclass.addNumberField(MAX_TRACKED_ENTRIES, "Maximal number of tracked users and IPs", 10, integerType);
+
+        xclass.addNumberField(MAX_DISTINCT_USERS, "Maximal number of different users tried per IP", 10,
+            integerType);
+        xclass.addNumberField(DISTINCT_USERS_WINDOW, "Time in which different users are counted per IP", 30,
+            longType);
+
+        xclass.addNumberField(MAX_SUBNET_ATTEMPTS, "Maximal number of login attempts per subnet", 10, integerType);
+        xclass.addNumberField(MAX_WIKI_ATTEMPTS, "Maximal number of login attempts per wiki", 10, integerType);
+        xclass.addNumberField(WIKI_ATTEMPTS_WINDOW, "Time in which login attempts are counted per wiki", 30,
+            longType);
+        xclass.addNumberField(CIRCUIT_BREAKER_RATE, "Failed logins per second before unknown clients are refused",
+            10, integerType);
+        xclass.addNumberField(FAILED_CREDENTIALS_TIME, "Time for which failed credentials are rejected directly", 30,
+            longType);
+        xclass.addBooleanField(RESET_USER_ON_SUCCESS, "Forget the failures of a user after a successful login",
+            yesNo);
+        xclass.addBooleanField(RESET_IP_ON_SUCCESS, "Forget the failures of an IP after a successful login", yesNo);
+        xclass.addStaticListField(HONEYPOT_USERS, "User names which block the IP at once", 5, true, false, "",
+            inputField, sep);
     }
 
     /**
@@ -171,6 +218,27 @@ public class AuthConfigInitializer extends AbstractMandatoryClassInitializer
 
                 defaults.setStringListValue(WHILELISTED_IPS, Arrays.<String>asList());
                 defaults.setStringListValue(TRUSTED_PROXIES, Arrays.asList("127.0.0.1", "[::1]"));
+
+                defaults.setIntValue(BLOCK_TIME_FACTOR, 2);
+                defaults.setLongValue(MAX_BLOCK_TIME, 24 * 60 * 60L);
+                defaults.setLongValue(ESCALATION_DECAY_TIME, 24 * 60 * 60L);
+
+                defaults.setLongValue(TARPIT_DELAY, 0L);
+                defaults.setLongValue(TARPIT_MAX_DELAY, 30 * 1000L);
+
+                defaults.setIntValue(MAX_TRACKED_ENTRIES, 10000);
+
+                defaults.setIntValue(MAX_DISTINCT_USERS, 20);
+                defaults.setLongValue(DISTINCT_USERS_WINDOW, 60 * 60L);
+
+                defaults.setIntValue(MAX_SUBNET_ATTEMPTS, 0);
+                defaults.setIntValue(MAX_WIKI_ATTEMPTS, 0);
+                defaults.setLongValue(WIKI_ATTEMPTS_WINDOW, 60L);
+                defaults.setIntValue(CIRCUIT_BREAKER_RATE, 0);
+                defaults.setLongValue(FAILED_CREDENTIALS_TIME, 0L);
+                defaults.setIntValue(RESET_USER_ON_SUCCESS, 1);
+                defaults.setIntValue(RESET_IP_ON_SUCCESS, 0);
+                defaults.setStringListValue(HONEYPOT_USERS, Arrays.<String>asList());
                 doc.setHidden(true);
             }
 
@@ -19,11 +19,15 @@
  */
 package org.xwiki.contrib.authentication.blocking.internal;
 
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -32,6 +36,7 @@ import javax.inject.Singleton;
 
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.authentication.blocking.UsernameCanonicalizer;
 import org.xwiki.model.reference.WikiReference;
 
 import com.xpn.xwiki.XWikiContext;
@@ -52,6 +57,31 @@ public class BlockingAuthConfiguration
     /** Object to store configuration values. */
     public static final class Config
     {
+        /**
+         * the honeypot users, canonicalized for lookups.
+         */
+        private static final class Honeypots
+        {
+            private static final Honeypots EMPTY = new Honeypots(Collections.<String>emptySet(), null);
+
+            private final Set<String> source;
+
+            private final UsernameCanonicalizer canonicalizer;
+
+            private final Set<String> userKeys = new HashSet<>();
+
+            Honeypots(Set<String> source, UsernameCanonicalizer canonicalizer)
+            {
+                this.source = source;
+                this.canonicalizer = canonicalizer;
+                for (String username : source) {
+                    if (!username.isEmpty()) {
+                        userKeys.add(canonicalizer.canonicalize(username));
+                    }
+                }
+            }
+        }
+
         /** the maximal number of failed login attempt before the user is blocked. */
         public int maxUserAttempts;
 
@@ -65,15 +95,167 @@ public class BlockingAuthConfiguration
         public long blockTimeIP;
 
         /**
-         * a list of whitelisted IPs. If the IP is in the whilelist it will never be blocked.
+         * the factor by which the block time is multiplied each time a user or IP is blocked again.
+         * values below two disable the escalation.
+         */
+        public int blockTimeFactor;
+
+        /** the upper limit for escalated block times, in milliseconds; zero for no limit. */
+        public long maxBlockTime;
+
+        /**
+         * the time without failed logins after which the escalation level is decreased by one, in milliseconds.
+         * if zero the escalation level is never decreased.
+         */
+        public long escalationDecayTime;
+
+        /**
+         * the delay for the first answer to a further login attempt of a blocked user or IP, in milliseconds.
+         * the delay doubles with each further attempt. zero disables the tarpit.
+         */
+        public long tarpitDelay;
+
+        /** the upper limit for the tarpit delay, in milliseconds. */
+        public long tarpitMaxDelay;
+
+        /**
+         * the maximal number of users resp. IPs tracked for the wiki. if zero a default is used.
+         */
+        public int maxTrackedEntries;
+
+        /**
+         * the number of different user names with failed logins from a single IP, after which the IP is blocked.
+         * if zero or below, the user names are not counted.
+         */
+        public int maxDistinctUsers;
+
+        /** the time window in which different user names are counted per IP, in milliseconds. */
+        public long distinctUsersWindow;
+
+        /**
+         * the number of failed logins from a subnet (/24 for IPv4, /64 for IPv6), after which the subnet is blocked.
+         * if zero or below, the failures are not counted per subnet.
+         */
+        public int maxSubnetAttempts;
+
+        /**
+         * the number of failed logins to the wiki within {@link #wikiAttemptsWindow}, after which
+         * all logins to the wiki are refused until the window is over. if zero or below, this check is disabled.
+         */
+        public int maxWikiAttempts;
+
+        /** the time window in which failed logins are counted per wiki, in milliseconds. */
+        public long wikiAttemptsWindow;
+
+        /**
+         * the number of failed logins per second to the wiki, above which logins from clients without
+         * a recent successful login are refused. if zero or below, the circuit breaker is disabled.
+         */
+        public int circuitBreakerRate;
+
+        /**
+         * the time for which credentials which failed to log in are rejected without checking them again,
+         * in milliseconds. if zero or below, failed credentials are not remembered.
+         */
+        public long failedCredentialsTime;
+
+        /**
+         * if the failures of a user are forgotten after a successful login of the user.
+         * the escalation level is kept.
+         */
+        public boolean resetUserOnSuccess;
+
+        /**
+         * if the failures of an IP are forgotten after a successful login from the IP.
+         * the escalation level and the user names tried are kept.
+         */
+        public boolean resetIPOnSuccess;
+
+        /**
+         * a list of whitelisted IPs, CIDR ranges (like 10.0.0.0/8) and IP ranges (like 10.0.0.1-10.0.0.9).
+         * If the IP is in the whilelist it will never be blocked.
          */
         public Set<String> whitelistedIPs;
 
         /**
-         * a list of IPs of trusted proxies. If the IP is in the list of trusted proxies,
-         * the X-Forward-For header is taken into account to get the real IP.
+         * a list of IPs and CIDR ranges of trusted proxies. If the IP is in the list of trusted proxies,
+         * the Forwarded resp. X-Forwarded-For header is taken into account to get the real IP.
          */
         public Set<String> trustedProxies;
+
+        /**
+         * user names which do not exist, but are commonly tried by attackers, like "root".
+         * a login attempt with one of them blocks the client IP at once, without checking the password.
+         */
+        public Set<String> honeypotUsers;
+
+        /**
+         * the candidate configuration which is evaluated in shadow mode alongside this one; it never blocks
+         * a login, but only counts how it would have decided. null if there is no candidate.
+         * the candidate is a second configuration object on the configuration page.
+         */
+        public Config shadow;
+
+        private volatile IPMatcher trustedProxyMatcher = IPMatcher.EMPTY;
+
+        private volatile IPMatcher whitelistMatcher = IPMatcher.EMPTY;
+
+        private volatile Honeypots honeypots = Honeypots.EMPTY;
+
+        /**
+         * the whitelisted IPs, prepared for matching IPs against them.
+         * the matcher is recreated if the whitelist is changed.
+         *
+         * @return the matcher for the whitelist, never null
+         */
+        IPMatcher whitelistMatcher()
+        {
+            IPMatcher matcher = whitelistMatcher;
+            if (!matcher.isCompiledFrom(whitelistedIPs)) {
+                matcher = IPMatcher.compile(whitelistedIPs);
+                whitelistMatcher = matcher;
+            }
+            return matcher;
+        }
+
+        /**
+         * check if a user name is one of the honeypot users. the honeypot users are canonicalized once,
+         * and again only if the list is changed, so the check is a single hash lookup.
+         *
+         * @param userKey
+         *            the canonical user name to check
+         * @param canonicalizer
+         *            the canonicalizer which created the user name
+         * @return true if the user is a honeypot user
+         */
+        boolean isHoneypotUser(String userKey, UsernameCanonicalizer canonicalizer)
+        {
+            if (userKey == null || honeypotUsers == null || honeypotUsers.isEmpty()) {
+                return false;
+            }
+            Honeypots compiled = honeypots;
+            if (compiled.source != honeypotUsers || compiled.canonicalizer != canonicalizer) {
+                compiled = new Honeypots(honeypotUsers, canonicalizer);
+                honeypots = compiled;
+            }
+            return compiled.userKeys.contains(userKey);
+        }
+
+        /**
+         * the trusted proxies, prepared for matching IPs against them.
+         * the matcher is recreated if the list of trusted proxies is changed.
+         *
+         * @return the matcher for the trusted proxies, never null
+         */
+        IPMatcher trustedProxyMatcher()
+        {
+            IPMatcher matcher = trustedProxyMatcher;
+            if (!matcher.isCompiledFrom(trustedProxies)) {
+                matcher = IPMatcher.compile(trustedProxies);
+                trustedProxyMatcher = matcher;
+            }
+            return matcher;
+        }
     }
 
     @Inject
@@ -86,7 +268,21 @@ public class BlockingAuthConfiguration
     @Named(AuthConfigInitializer.CLASSNAME)
     private AuthConfigInitializer configInit;
 
-    private Map<String, Config> configCache = new HashMap<>();
+    /**
+     * the configurations per wiki. the cache is never locked, so that the (rare) loading of the configuration
+     * from the database does not block other threads checking logins.
+     */
+    private final Map<String, Config> configCache = new ConcurrentHashMap<>();
+
+    /**
+     * incremented on every flush, so that a configuration loaded concurrently to a flush is not cached.
+     */
+    private final AtomicLong cacheGeneration = new AtomicLong();
+
+    /**
+     * serializes the creation of new configuration objects.
+     */
+    private final Lock createLock = new ReentrantLock();
 
     /**
      * load a configuration from the database.
@@ -105,14 +301,42 @@ public class BlockingAuthConfiguration
         if (configObj == null) {
             return null;
         }
+        final Config conf = toConfig(configObj);
+        final BaseObject candidateObj = doc.getXObject(AuthConfigInitializer.CLASS_REF, 1);
+        if (candidateObj != null) {
+            conf.shadow = toConfig(candidateObj);
+            logger.info("evaluating a candidate blocking auth config in shadow mode for wiki [{}]",
+                context.getWikiId());
+        }
+        logger.debug("loaded blocking auth config from wiki [{}]", context.getWikiId());
+        return conf;
+    }
+
+    private Config toConfig(BaseObject configObj)
+    {
         Config conf = new Config();
         conf.maxUserAttempts = configObj.getIntValue(AuthConfigInitializer.MAX_USER_ATTEMPTS);
         conf.blockTimeUser = configObj.getLongValue(AuthConfigInitializer.USER_BLOCK_TIME) * 1000L;
         conf.maxIPAttempts = configObj.getIntValue(AuthConfigInitializer.MAX_IP_ATTEMPTS);
         conf.blockTimeIP = configObj.getLongValue(AuthConfigInitializer.IP_BLOCK_TIME) * 1000L;
-        conf.whitelistedIPs = asSet(configObj.getListValue(AuthConfigInitializer.TRUSTED_PROXIES));
+        conf.blockTimeFactor = configObj.getIntValue(AuthConfigInitializer.BLOCK_TIME_FACTOR);
+        conf.maxBlockTime = configObj.getLongValue(AuthConfigInitializer.MAX_BLOCK_TIME) * 1000L;
+        conf.escalationDecayTime = configObj.getLongValue(AuthConfigInitializer.ESCALATION_DECAY_TIME) * 1000L;
+        conf.tarpitDelay = configObj.getLongValue(AuthConfigInitializer.TARPIT_DELAY);
+        conf.tarpitMaxDelay = configObj.getLongValue(AuthConfigInitializer.TARPIT_MAX_DELAY);
+        conf.maxTrackedEntries = configObj.getIntValue(AuthConfigInitializer.MAX_TRACKED_ENTRIES);
+        conf.maxDistinctUsers = configObj.getIntValue(AuthConfigInitializer.MAX_DISTINCT_USERS);
+        conf.distinctUsersWindow = configObj.getLongValue(AuthConfigInitializer.DISTINCT_USERS_WINDOW) * 1000L;
+        conf.maxSubnetAttempts = configObj.getIntValue(AuthConfigInitializer.MAX_SUBNET_ATTEMPTS);
+        conf.maxWikiAttempts = configObj.getIntValue(AuthConfigInitializer.MAX_WIKI_ATTEMPTS);
+        conf.wikiAttemptsWindow = configObj.getLongValue(AuthConfigInitializer.WIKI_ATTEMPTS_WINDOW) * 1000L;
+        conf.circuitBreakerRate = configObj.getIntValue(AuthConfigInitializer.CIRCUIT_BREAKER_RATE);
+        conf.failedCredentialsTime = configObj.getLongValue(AuthConfigInitializer.FAILED_CREDENTIALS_TIME) * 1000L;
+        conf.resetUserOnSuccess = configObj.getIntValue(AuthConfigInitializer.RESET_USER_ON_SUCCESS) == 1;
+        conf.resetIPOnSuccess = configObj.getIntValue(AuthConfigInitializer.RESET_IP_ON_SUCCESS) == 1;
+        conf.whitelistedIPs = asSet(configObj.getListValue(AuthConfigInitializer.WHILELISTED_IPS));
         conf.trustedProxies = asSet(configObj.getListValue(AuthConfigInitializer.TRUSTED_PROXIES));
-        logger.debug("loaded blocking auth config from wiki [{}]", context.getWikiId());
+        conf.honeypotUsers = asSet(configObj.getListValue(AuthConfigInitializer.HONEYPOT_USERS));
         return conf;
     }
 
@@ -135,12 +359,10 @@ public class BlockingAuthConfiguration
      */
     public Config getConfig(String wikiId)
     {
-        Config conf;
-        synchronized (configCache) {
-            conf = configCache.get(wikiId);
-        }
+        Config conf = configCache.get(wikiId);
         if (conf == null) {
             final XWikiContext context = contextProvider.get();
+            final long generation = cacheGeneration.get();
 
             String originalWikiId = context.getWikiId();
             try {
@@ -154,8 +376,10 @@ public class BlockingAuthConfiguration
                     if (conf == null) {
                         conf = new Config();
                     }
-                    synchronized (configCache) {
-                        configCache.put(wikiId, conf);
+                    configCache.put(wikiId, conf);
+                    if (generation != cacheGeneration.get()) {
+                        // flushed while loading; the loaded values might be outdated already
+                        configCache.remove(wikiId, conf);
                     }
                     logger.debug("cached blocking auth config for wiki [{}]", wikiId);
                 } catch (XWikiException e) {
@@ -178,14 +402,13 @@ public class BlockingAuthConfiguration
      */
     public void flushCacheForWiki(WikiReference wiki)
     {
-        synchronized (configCache) {
-            if (wiki == null) {
-                configCache.clear();
-                logger.info("cleared config cache!");
-            } else {
-                configCache.remove(wiki.getName());
-                logger.info("cleared config cache for wiki [{}]", wiki.getName());
-            }
+        cacheGeneration.incrementAndGet();
+        if (wiki == null) {
+            configCache.clear();
+            logger.info("cleared config cache!");
+        } else {
+            configCache.remove(wiki.getName());
+            logger.info("cleared config cache for wiki [{}]", wiki.getName());
         }
     }
 
@@ -216,7 +439,8 @@ public class BlockingAuthConfiguration
     {
         XWikiContext context = contextProvider.get();
 
-        synchronized (configCache) {
+        createLock.lock();
+        try {
             try {
                 Config cfg = loadConfig(context);
                 if (cfg != null) {
@@ -226,9 +450,11 @@ public class BlockingAuthConfiguration
                 logger.info("could not find config for wiki [{}]); will create a new one",
                     context.getWikiId(), e);
             }
-        }
 
-        return configInit.createNewConfigObject(context);
+            return configInit.createNewConfigObject(context);
+        } finally {
+            createLock.unlock();
+        }
     }
 
 
@@ -20,14 +20,25 @@
 package org.xwiki.contrib.authentication.blocking.internal;
 
 import java.security.Principal;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xwiki.contrib.authentication.blocking.BlockedUsersService;
+import org.xwiki.contrib.authentication.blocking.BlockingPolicy;
+import org.xwiki.contrib.authentication.blocking.LoginAttempt;
+import org.xwiki.contrib.authentication.blocking.filter.BlockingAuthFilter;
+import org.xwiki.contrib.authentication.blocking.internal.BlockingAuthConfiguration.Config;
+import org.xwiki.model.reference.DocumentReference;
 
+import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.user.api.XWikiUser;
 import com.xpn.xwiki.user.api.XWikiAuthService;
 import com.xpn.xwiki.user.impl.xwiki.XWikiAuthServiceImpl;
 import com.xpn.xwiki.web.Utils;
@@ -36,53 +47,315 @@ import com.xpn.xwiki.web.Utils;
  * A authentication service that also counts failed logins.
  * After a configurable number of failures block further login attempts
  * until no failures have happened for a certain time.
+ * If a tarpit delay is configured, further attempts of the blocked client get slowed down
+ * by the {@link BlockingAuthFilter}. Rejected logins are recorded in the {@link AuditLog}.
+ * The decision is delegated to the {@link BlockingPolicy}. If enabled, credentials which failed recently
+ * are rejected directly by the {@link FailedCredentialsCache}, without checking the password again.
+ * <p>
+ * By default the credentials are checked against the wiki users, like the standard XWiki authenticator does.
+ * If {@value #DELEGATE_PROPERTY} is set in the xwiki.cfg, all calls are delegated to the authentication service
+ * of that class (e.g. an LDAP authenticator), and blocked logins never reach it.
  * 
  * @version $Id$
  * @since 1.0
  */
 public class BlockingAuthServiceImpl extends XWikiAuthServiceImpl implements XWikiAuthService
 {
+    /**
+     * the property in the xwiki.cfg for the class of the authentication service to delegate to.
+     * if not set, the passwords of the wiki users are checked as usual.
+     */
+    public static final String DELEGATE_PROPERTY = "xwiki.authentication.blocking.authclass";
 
     private static final String ERROR_MESSAGE_KEY = "message";
 
+    /** the message key used by XWiki for a login with wrong credentials. */
+    private static final String INVALID_CREDENTIALS = "invalidcredentials";
+
     private static final Logger LOGGER = LoggerFactory.getLogger(BlockingAuthServiceImpl.class);
 
+    /** the type of the audit log entry for a login refused with a given reason. */
+    private static final Map<String, String> REJECTION_TYPES = new HashMap<>();
+
+    static {
+        REJECTION_TYPES.put(BlockingPolicy.USER_BLOCKED, AuditLog.USER_REJECTED);
+        REJECTION_TYPES.put(BlockingPolicy.IP_BLOCKED, AuditLog.IP_REJECTED);
+        REJECTION_TYPES.put(BlockingPolicy.SUBNET_BLOCKED, AuditLog.SUBNET_REJECTED);
+        REJECTION_TYPES.put(BlockingPolicy.WIKI_BLOCKED, AuditLog.WIKI_REJECTED);
+        REJECTION_TYPES.put(BlockingPolicy.WIKI_BUSY, AuditLog.WIKI_BUSY);
+    }
+
+    /** no monitor, as loading the class of the delegate may block, which would pin a virtual thread. */
+    private final Lock delegateLock = new ReentrantLock();
+
+    private volatile boolean delegateLoaded;
+
+    private XWikiAuthService delegate;
+
+    /**
+     * look up a component. overridden by the tests.
+     *
+     * @param <T>
+     *            the type of the component
+     * @param role
+     *            the role of the component
+     * @return the component with the default hint
+     */
     @SuppressWarnings("deprecation")
-    private BlockedUsersService getService()
+    <T> T getComponent(Class<T> role)
+    {
+        return Utils.getComponent(role);
+    }
+
+    private BlockingPolicy getPolicy()
+    {
+        return getComponent(BlockingPolicy.class);
+    }
+
+    private BlockingAuthConfiguration getConfiguration()
+    {
+        return getComponent(BlockingAuthConfiguration.class);
+    }
+
+    private RequestGate getRequestGate()
+    {
+        return getComponent(RequestGate.class);
+    }
+
+    private FailedCredentialsCache getFailedCredentials()
     {
-        return Utils.getComponent(BlockedUsersService.class);
+        return getComponent(FailedCredentialsCache.class);
+    }
+
+    private BlockingClock getClock()
+    {
+        return getComponent(BlockingClock.class);
+    }
+
+    private AuditLog getAuditLog()
+    {
+        return getComponent(AuditLog.class);
+    }
+
+    /**
+     * slow down further attempts of the client IP, if the tarpit is enabled, for as long as the block lasts.
+     *
+     * @param attempt
+     *            the refused attempt, after it has been recorded as failure
+     * @param reason
+     *            the reason why the attempt has been refused
+     */
+    private void tarpit(LoginAttempt attempt, String reason)
+    {
+        final Config conf = getConfiguration().getConfig();
+        if (conf.tarpitDelay > 0) {
+            final boolean userBlocked = BlockingPolicy.USER_BLOCKED.equals(reason);
+            // the block time has been escalated for repeated blocks; the base time if the service cannot tell
+            final BlockedUsersService service = getComponent(BlockedUsersService.class);
+            final long blockedUntil = service instanceof DefaultBlockedUserService
+                ? ((DefaultBlockedUserService) service).getBlockedUntil(attempt, reason) : 0L;
+            long duration = userBlocked ? conf.blockTimeUser : conf.blockTimeIP;
+            if (blockedUntil > attempt.getTimestamp()) {
+                duration = blockedUntil - attempt.getTimestamp();
+            }
+            final RequestGate gate = getRequestGate();
+            gate.setTrustedProxies(conf.trustedProxies);
+            gate.tarpit(attempt.getIP(), userBlocked ? attempt.getUsername() : null, conf.tarpitDelay,
+                conf.tarpitMaxDelay, duration);
+        }
+    }
+
+    private boolean hasFailedRecently(String username, String password, LoginAttempt attempt)
+    {
+        return password != null && getConfiguration().getConfig().failedCredentialsTime > 0
+            && getFailedCredentials().hasFailed(attempt.getContext().getWikiId(), username, password,
+                attempt.getTimestamp());
+    }
+
+    /**
+     * remember credentials which definitely failed, i.e. which XWiki checked against the profile of the user.
+     * the failures of a delegate are never remembered, as its backend might have been unavailable.
+     */
+    private void rememberFailure(String username, String password, LoginAttempt attempt)
+    {
+        final Config conf = getConfiguration().getConfig();
+        if (password != null && conf.failedCredentialsTime > 0 && isProfileAvailable(username, attempt)) {
+            getFailedCredentials().addFailure(attempt.getContext().getWikiId(), username, password,
+                attempt.getTimestamp(), conf.failedCredentialsTime, conf.maxTrackedEntries);
+        }
+    }
+
+    /**
+     * check if the profile of a user can be loaded, even if it does not exist.
+     * if not, the database is not available, and the password might not have been checked at all.
+     * the profile has usually been loaded by the password check before, so this is served from the cache.
+     */
+    private boolean isProfileAvailable(String username, LoginAttempt attempt)
+    {
+        final XWikiContext context = attempt.getContext();
+        final String wikiId = attempt.getUserWikiId() == null ? context.getWikiId() : attempt.getUserWikiId();
+        try {
+            context.getWiki().getDocument(new DocumentReference(wikiId, XWiki.SYSTEM_SPACE,
+                DefaultUsernameCanonicalizer.documentName(username)), context);
+            return true;
+        } catch (XWikiException e) {
+            LOGGER.debug("not remembering the failed login of [{}]; cannot load the profile", username, e);
+            return false;
+        }
+    }
+
+    /**
+     * get the authentication service to delegate to, as configured in the xwiki.cfg.
+     *
+     * @return the service, or null if this service checks the credentials itself
+     */
+    private XWikiAuthService getDelegate(XWikiContext context)
+    {
+        if (!delegateLoaded) {
+            delegateLock.lock();
+            try {
+                if (!delegateLoaded) {
+                    delegate = loadDelegate(context.getWiki().Param(DELEGATE_PROPERTY));
+                    delegateLoaded = true;
+                }
+            } finally {
+                delegateLock.unlock();
+            }
+        }
+        return delegate;
+    }
+
+    private XWikiAuthService loadDelegate(String className)
+    {
+        if (StringUtils.isBlank(className)) {
+            return null;
+        }
+        try {
+            final Class<?> delegateClass =
+                Class.forName(className.trim(), true, Thread.currentThread().getContextClassLoader());
+            if (BlockingAuthServiceImpl.class.isAssignableFrom(delegateClass)) {
+                LOGGER.warn("ignoring [{}] as authentication service to delegate to; would call itself", className);
+                return null;
+            }
+            LOGGER.info("blocking logins in front of authentication service [{}]", className);
+            return (XWikiAuthService) delegateClass.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException | LinkageError e) {
+            // same fallback as for the main authentication service of XWiki
+            LOGGER.error("failed to create authentication service [{}]; using the default one", className, e);
+            return null;
+        }
+    }
+
+    /**
+     * let the {@link BlockingAuthFilter} reject further login attempts of a blocked IP before they reach XWiki.
+     * the filter is refreshed with each rejected attempt, so the base block time is enough here.
+     */
+    private void gateIP(String ip, long now)
+    {
+        final Config conf = getConfiguration().getConfig();
+        final long blockTime = conf.blockTimeIP > 0 ? conf.blockTimeIP : conf.blockTimeUser;
+        if (blockTime > 0) {
+            final RequestGate gate = getRequestGate();
+            gate.setTrustedProxies(conf.trustedProxies);
+            gate.block(ip, now + blockTime);
+        }
+    }
+
+    /**
+     * only for tests.
+     *
+     * @param service
+     *            the authentication service to delegate to, or null to check the credentials directly
+     */
+    void setDelegate(XWikiAuthService service)
+    {
+        delegateLock.lock();
+        try {
+            delegate = service;
+            delegateLoaded = true;
+        } finally {
+            delegateLock.unlock();
+        }
+    }
+
+    @Override
+    public XWikiUser checkAuth(XWikiContext context) throws XWikiException
+    {
+        final XWikiAuthService service = getDelegate(context);
+        // the delegate calls back the authenticate method of the configured service, i.e. of this service
+        return service == null ? super.checkAuth(context) : service.checkAuth(context);
+    }
+
+    @Override
+    public XWikiUser checkAuth(String username, String password, String rememberme, XWikiContext context)
+        throws XWikiException
+    {
+        final XWikiAuthService service = getDelegate(context);
+        return service == null ? super.checkAuth(username, password, rememberme, context)
+            : service.checkAuth(username, password, rememberme, context);
+    }
+
+    @Override
+    public void showLogin(XWikiContext context) throws XWikiException
+    {
+        final XWikiAuthService service = getDelegate(context);
+        if (service == null) {
+            super.showLogin(context);
+        } else {
+            service.showLogin(context);
+        }
     }
 
     @Override
     public Principal authenticate(String username, String password, XWikiContext context) throws XWikiException
     {
 
+        LoginAttempt attempt = null;
         if (!StringUtils.isEmpty(username)) {
             if (LOGGER.isTraceEnabled()) {
                 LOGGER.trace("Starting authentication");
             }
 
-            if (getService().isUserBlocked(username)) {
-                LOGGER.info("skip login for [{}]; is blocked", username);
-                getService().addFailedLogin(username, context);
-                context.put(ERROR_MESSAGE_KEY, "contrib.blockingauth.user.blocked");
+            attempt = LoginAttempt.forRequest(username, context, getClock().millis());
+            final BlockingPolicy policy = getPolicy();
+            final String reason = policy.check(attempt);
+            if (reason != null) {
+                // recording the failure first also determines the IP, if not yet needed for the check
+                policy.recordFailure(attempt);
+                LOGGER.info("skip login for [{}] from IP [{}]; refused with [{}]", username, attempt.getIP(),
+                    reason);
+                getAuditLog().log(REJECTION_TYPES.getOrDefault(reason, AuditLog.POLICY_REJECTED), context.getWikiId(),
+                    username, attempt.getIP(), null);
+                context.put(ERROR_MESSAGE_KEY, reason);
+                if (BlockingPolicy.IP_BLOCKED.equals(reason) || BlockingPolicy.SUBNET_BLOCKED.equals(reason)) {
+                    gateIP(attempt.getIP(), attempt.getTimestamp());
+                }
+                tarpit(attempt, reason);
                 return null;
             }
 
-            if (getService().isIPBlocked(context)) {
-                LOGGER.info("skip login for [{}]; IP [{}] is blocked", username, getService().getCurrentIP());
-                getService().addFailedLogin(username, context);
-                context.put(ERROR_MESSAGE_KEY, "contrib.blockingauth.ip.blocked");
+            if (hasFailedRecently(username, password, attempt)) {
+                LOGGER.debug("skip login for [{}]; same credentials failed recently", username);
+                policy.recordFailure(attempt);
+                context.put(ERROR_MESSAGE_KEY, INVALID_CREDENTIALS);
                 return null;
             }
         }
 
-        Principal principal = super.authenticate(username, password, context);
+        final XWikiAuthService service = getDelegate(context);
+        Principal principal = service == null ? super.authenticate(username, password, context)
+            : service.authenticate(username, password, context);
 
-        if (!StringUtils.isEmpty(username)) {
+        if (attempt != null) {
             if (principal == null) {
-                LOGGER.debug("add login failure for user [{}] and IP [{}]", username, getService().getCurrentIP());
-                getService().addFailedLogin(username, context);
+                LOGGER.debug("add login failure for user [{}] and IP [{}]", username, attempt.getIP());
+                getPolicy().recordFailure(attempt);
+                if (service == null) {
+                    rememberFailure(username, password, attempt);
+                }
+            } else {
+                LOGGER.debug("successful login for user [{}] and IP [{}]", username, attempt.getIP());
+                getPolicy().recordSuccess(attempt);
             }
         }
 
@@ -0,0 +1,46 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.internal;
+
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+
+/**
+ * The source of the current time for the blocking of failed logins.
+ * <p>
+ * All times of the blocking engine are taken from this component, so that tests and simulations can replace it
+ * with a virtual clock, and check the behavior over hours or days without actually waiting.
+ *
+ * @version $Id$
+ * @since 2.0
+ */
+@Component(roles = { BlockingClock.class })
+@Singleton
+public class BlockingClock
+{
+    /**
+     * @return the current time, in milliseconds since the epoch
+     */
+    public long millis()
+    {
+        return System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.internal;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.contrib.authentication.blocking.event.AbstractBlockingEvent;
+import org.xwiki.observation.ObservationManager;
+
+/**
+ * Sends the {@link AbstractBlockingEvent blocking events} from a background thread,
+ * so that the listeners do not slow down the login.
+ * <p>
+ * The number of pending events is limited; if the listeners cannot keep up, further events are dropped.
+ *
+ * @version $Id$
+ * @since 2.0
+ */
+@Component(roles = { BlockingEventDispatcher.class })
+@Singleton
+public class BlockingEventDispatcher implements Disposable
+{
+    private static final int QUEUE_SIZE = 1000;
+
+    /**
+     * the observation manager is looked up lazily, because it initializes all listeners.
+     */
+    @Inject
+    private Provider<ObservationManager> observationManagerProvider;
+
+    @Inject
+    private Logger logger;
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * constructor. creates the thread sending the events.
+     */
+    public BlockingEventDispatcher()
+    {
+        executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), runnable -> {
+                Thread thread = new Thread(runnable, "Blocking authenticator events");
+                thread.setDaemon(true);
+                return thread;
+            }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * send an event in the background. this never blocks.
+     *
+     * @param event
+     *            the event to send; the wiki id of the event is used as source
+     */
+    public void send(final AbstractBlockingEvent event)
+    {
+        try {
+            executor.execute(() -> notify(event));
+        } catch (RejectedExecutionException e) {
+            logger.warn("dropped event [{}], too many pending events", event);
+        }
+    }
+
+    private void notify(AbstractBlockingEvent event)
+    {
+        try {
+            observationManagerProvider.get().notify(event, event.getWikiId());
+        } catch (RuntimeException e) {
+            logger.warn("failed to send event [{}]", event, e);
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.internal;
+
+import java.util.Arrays;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.event.ComponentDescriptorAddedEvent;
+import org.xwiki.component.event.ComponentDescriptorRemovedEvent;
+import org.xwiki.contrib.authentication.blocking.BlockingPolicy;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+
+/**
+ * Tells the {@link DefaultBlockingPolicy} to look up the other policies again when a policy is registered
+ * or removed, e.g. by installing or uninstalling an extension.
+ *
+ * @version $Id$
+ * @since 2.0
+ */
+@Component
+@Named(BlockingPolicyListener.NAME)
+@Singleton
+public class BlockingPolicyListener extends AbstractEventListener
+{
+    /**
+     * The name of the listener.
+     */
+    public static final String NAME = "org.xwiki.contrib.authentication.blocking.internal.BlockingPolicyListener";
+
+    @Inject
+    private Provider<BlockingPolicy> defaultPolicyProvider;
+
+    /**
+     * Constructor. Defines which events we listen to.
+     */
+    public BlockingPolicyListener()
+    {
+        super(NAME, Arrays.asList(new ComponentDescriptorAddedEvent(BlockingPolicy.class),
+            new ComponentDescriptorRemovedEvent(BlockingPolicy.class)));
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        final BlockingPolicy policy = defaultPolicyProvider.get();
+        if (policy instanceof DefaultBlockingPolicy) {
+            ((DefaultBlockingPolicy) policy).flushOtherPolicies();
+        }
+    }
+}
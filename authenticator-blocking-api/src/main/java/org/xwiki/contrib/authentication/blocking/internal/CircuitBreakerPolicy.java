@@ -0,0 +1,139 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.internal;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.authentication.blocking.BlockedUsersService;
+import org.xwiki.contrib.authentication.blocking.BlockingPolicy;
+import org.xwiki.contrib.authentication.blocking.LoginAttempt;
+import org.xwiki.contrib.authentication.blocking.internal.BlockingAuthConfiguration.Config;
+
+/**
+ * A circuit breaker for the logins of a whole wiki.
+ * <p>
+ * During a distributed attack every failed login from a new IP still costs a database lookup and
+ * a password hash verification. If the rate of failed logins to a wiki exceeds the configured number
+ * per second, logins from clients without a recent successful login are refused before the password
+ * is checked, until the rate drops again. Clients from which a user has logged in successfully,
+ * and whitelisted IPs, can still log in.
+ *
+ * @version $Id$
+ * @since 2.0
+ */
+@Component
+@Named(CircuitBreakerPolicy.HINT)
+@Singleton
+public class CircuitBreakerPolicy implements BlockingPolicy
+{
+    /** the hint of this policy. */
+    public static final String HINT = "circuitBreaker";
+
+    @Inject
+    private WikiShards shards;
+
+    @Inject
+    private BlockingAuthConfiguration configProvider;
+
+    @Inject
+    private BlockedUsersService blockedUsers;
+
+    @Inject
+    private Logger logger;
+
+    @Override
+    public String check(LoginAttempt attempt)
+    {
+        final Config config = configProvider.getConfig();
+        if (config.circuitBreakerRate <= 0) {
+            return null;
+        }
+        final String wikiId = attempt.getContext().getWikiId();
+        final WikiShard shard = shards.getExistingShard(wikiId);
+        if (shard == null) {
+            return null;
+        }
+        final boolean open = shard.getLoginRate().isExceeded(attempt.getTimestamp(), config.circuitBreakerRate);
+        if (shard.getLoginRate().setOpen(open)) {
+            if (open) {
+                logger.warn("more than [{}] failed logins per second to wiki [{}]; refusing logins from unknown IPs",
+                    config.circuitBreakerRate, wikiId);
+            } else {
+                logger.info("rate of failed logins to wiki [{}] is back to normal", wikiId);
+            }
+        }
+        if (!open) {
+            return null;
+        }
+        final String ip = ip(attempt);
+        if (shard.isKnownClient(ip, attempt.getTimestamp()) || config.whitelistMatcher().matches(ip)) {
+            return null;
+        }
+        return WIKI_BUSY;
+    }
+
+    @Override
+    public void recordFailure(LoginAttempt attempt)
+    {
+        if (configProvider.getConfig().circuitBreakerRate > 0) {
+            shards.getShard(attempt.getContext().getWikiId()).getLoginRate().add(attempt.getTimestamp());
+        }
+    }
+
+    @Override
+    public void recordSuccess(LoginAttempt attempt)
+    {
+        if (configProvider.getConfig().circuitBreakerRate > 0) {
+            shards.getShard(attempt.getContext().getWikiId()).addKnownClient(ip(attempt), attempt.getTimestamp());
+        }
+    }
+
+    private String ip(LoginAttempt attempt)
+    {
+        if (attempt.getIP() == null) {
+            attempt.setIP(blockedUsers.getCurrentIP());
+        }
+        return attempt.getIP();
+    }
+
+    /**
+     * only for tests.
+     *
+     * @param shards
+     *            the blocking data of the wikis
+     * @param config
+     *            the config provider
+     * @param service
+     *            the blocked users service, to determine the client IP
+     * @param log
+     *            the logger
+     */
+    void setComponents(WikiShards shards, BlockingAuthConfiguration config, BlockedUsersService service, Logger log)
+    {
+        this.shards = shards;
+        this.configProvider = config;
+        this.blockedUsers = service;
+        this.logger = log;
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.internal;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Finds the IP of the client of a request, which might have been passed through several proxies.
+ * <p>
+ * If the request comes from a trusted proxy, the client IP is taken from the
+ * <a href="https://tools.ietf.org/html/rfc7239">{@code Forwarded}</a> header, or if that is missing,
+ * from the {@code X-Forwarded-For} header. The addresses in the header are checked from right to left,
+ * i.e. starting with the one added by the nearest proxy; all trusted proxies are skipped,
+ * and the first untrusted address is the client. The addresses left of it might be forged by the client
+ * and are ignored.
+ * <p>
+ * The result is stored as request attribute together with the trusted proxies it has been resolved for,
+ * so it is only computed once per request, and computed again for other trusted proxies, e.g. for the
+ * configuration of a wiki rather than the farm wide one of the filter.
+ *
+ * @version $Id$
+ * @since 2.0
+ */
+final class ClientIP
+{
+    /** the name of the request attribute holding the client IP and the trusted proxies used to find it. */
+    static final String REQUEST_ATTRIBUTE = ClientIP.class.getName();
+
+    private static final String FORWARDED_HEADER = "Forwarded";
+
+    private static final String FORWARDED_FOR_HEADER = "X-Forwarded-For";
+
+    private static final String FOR_PARAMETER = "for=";
+
+    private static final char ELEMENT_SEPARATOR = ',';
+
+    private static final char PARAMETER_SEPARATOR = ';';
+
+    private static final char QUOTE = '"';
+
+    /** the span for no address. */
+    private static final long NONE = -1L;
+
+    /**
+     * the client IP cached in the request.
+     */
+    private static final class Resolved
+    {
+        private final IPMatcher trustedProxies;
+
+        private final String ip;
+
+        Resolved(IPMatcher trustedProxies, String ip)
+        {
+            this.trustedProxies = trustedProxies;
+            this.ip = ip;
+        }
+    }
+
+    private ClientIP()
+    {
+        // utility class
+    }
+
+    /**
+     * get the client IP of the request, and cache it in the request. the cached IP is only used if it has been
+     * resolved with the same trusted proxies.
+     *
+     * @param request
+     *            the current request
+     * @param trustedProxies
+     *            the proxies which are trusted to report the correct client IP
+     * @return the client IP
+     */
+    static String get(HttpServletRequest request, IPMatcher trustedProxies)
+    {
+        final Object cached = request.getAttribute(REQUEST_ATTRIBUTE);
+        if (cached instanceof Resolved && ((Resolved) cached).trustedProxies == trustedProxies) {
+            return ((Resolved) cached).ip;
+        }
+        final String ip = resolve(request, trustedProxies);
+        if (ip != null) {
+            request.setAttribute(REQUEST_ATTRIBUTE, new Resolved(trustedProxies, ip));
+        }
+        return ip;
+    }
+
+    /**
+     * get the client IP of the request.
+     * <p>
+     * The addresses in the headers are only compared in place; a string is created just for the address
+     * returned, and a list only if the header is sent in several lines.
+     *
+     * @param request
+     *            the current request
+     * @param trustedProxies
+     *            the proxies which are trusted to report the correct client IP
+     * @return the client IP
+     */
+    static String resolve(HttpServletRequest request, IPMatcher trustedProxies)
+    {
+        final String remoteAddr = request.getRemoteAddr();
+        if (!trustedProxies.matches(remoteAddr)) {
+            return remoteAddr;
+        }
+        boolean forwarded = true;
+        Enumeration<String> lines = request.getHeaders(FORWARDED_HEADER);
+        String last = first(request, FORWARDED_HEADER, lines);
+        if (last == null) {
+            forwarded = false;
+            lines = request.getHeaders(FORWARDED_FOR_HEADER);
+            last = first(request, FORWARDED_FOR_HEADER, lines);
+        }
+        if (last == null) {
+            return remoteAddr;
+        }
+        List<String> earlier = null;
+        while (lines != null && lines.hasMoreElements()) {
+            if (earlier == null) {
+                earlier = new ArrayList<>(2);
+            }
+            earlier.add(last);
+            last = lines.nextElement();
+        }
+
+        // the nearest proxy is the right most entry of the last header line
+        String candidate = remoteAddr;
+        for (int h = earlier == null ? 0 : earlier.size(); h >= 0; h--) {
+            final String value = earlier == null || h == earlier.size() ? last : earlier.get(h);
+            final long hop = hop(value, forwarded, trustedProxies);
+            if (hop != NONE) {
+                candidate = value.substring(from(hop), to(hop));
+                if (!trustedProxies.matches(candidate)) {
+                    return candidate;
+                }
+            }
+        }
+        // all hops are trusted; use the one farthest away
+        return candidate;
+    }
+
+    /**
+     * get the first line of a header.
+     */
+    private static String first(HttpServletRequest request, String name, Enumeration<String> lines)
+    {
+        if (lines == null) {
+            // the container does not allow to access the header lines
+            return request.getHeader(name);
+        }
+        return lines.hasMoreElements() ? lines.nextElement() : null;
+    }
+
+    /**
+     * find the address to use from a header line: the right most one which is no trusted proxy, or if all
+     * are trusted, the left most one.
+     *
+     * @return the span of the address, or {@link #NONE} if the line holds no address
+     */
+    private static long hop(String value, boolean forwarded, IPMatcher trustedProxies)
+    {
+        long farthest = NONE;
+        int end = value.length();
+        while (end >= 0) {
+            final int start = value.lastIndexOf(ELEMENT_SEPARATOR, end - 1);
+            final long hop = forwarded ? forParameter(value, start + 1, end) : node(value, start + 1, end);
+            if (hop != NONE) {
+                if (!trustedProxies.matches(value, from(hop), to(hop))) {
+                    return hop;
+                }
+                farthest = hop;
+            }
+            end = start;
+        }
+        return farthest;
+    }
+
+    /**
+     * find the value of the "for" parameter in a forwarded element like
+     * {@code for="[2001:db8::17]:4711";proto=https;by=10.0.0.1}.
+     */
+    private static long forParameter(String value, int start, int end)
+    {
+        int paramStart = start;
+        while (paramStart < end) {
+            int paramEnd = value.indexOf(PARAMETER_SEPARATOR, paramStart);
+            if (paramEnd < 0 || paramEnd > end) {
+                paramEnd = end;
+            }
+            while (paramStart < paramEnd && Character.isWhitespace(value.charAt(paramStart))) {
+                paramStart++;
+            }
+            if (value.regionMatches(true, paramStart, FOR_PARAMETER, 0, FOR_PARAMETER.length())) {
+                return node(value, paramStart + FOR_PARAMETER.length(), paramEnd);
+            }
+            paramStart = paramEnd + 1;
+        }
+        return NONE;
+    }
+
+    /**
+     * find the address in a node like {@code 192.0.2.43:8080}, {@code "[2001:db8::17]:4711"} or
+     * {@code 2001:db8::17}. IPv6 addresses are taken without brackets, and ports are dropped.
+     */
+    private static long node(String value, int start, int end)
+    {
+        int from = start;
+        int to = end;
+        while (from < to && Character.isWhitespace(value.charAt(from))) {
+            from++;
+        }
+        while (to > from && Character.isWhitespace(value.charAt(to - 1))) {
+            to--;
+        }
+        if (to - from >= 2 && value.charAt(from) == QUOTE && value.charAt(to - 1) == QUOTE) {
+            from++;
+            to--;
+        }
+        if (from >= to) {
+            return NONE;
+        }
+        if (value.charAt(from) == '[') {
+            final int close = value.indexOf(']', from);
+            if (close > from && close < to) {
+                return span(from + 1, close);
+            }
+            return span(from, to);
+        }
+        final int colon = value.indexOf(':', from);
+        if (colon > from && colon < to) {
+            final int nextColon = value.indexOf(':', colon + 1);
+            if (nextColon < 0 || nextColon >= to) {
+                // IPv4 with port
+                return span(from, colon);
+            }
+        }
+        return span(from, to);
+    }
+
+    /**
+     * keep the start and end index of an address in a header value in a single long, so that no object
+     * is needed to return them.
+     */
+    private static long span(int from, int to)
+    {
+        return ((long) from << Integer.SIZE) | to;
+    }
+
+    private static int from(long span)
+    {
+        return (int) (span >>> Integer.SIZE);
+    }
+
+    private static int to(long span)
+    {
+        return (int) span;
+    }
+}
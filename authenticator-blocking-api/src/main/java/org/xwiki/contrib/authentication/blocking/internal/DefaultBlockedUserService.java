@@ -23,28 +23,31 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Map.Entry;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
 import javax.inject.Singleton;
 
-import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.contrib.authentication.blocking.BlockedIPInformation;
 import org.xwiki.contrib.authentication.blocking.BlockedUserInformation;
 import org.xwiki.contrib.authentication.blocking.BlockedUsersService;
+import org.xwiki.contrib.authentication.blocking.BlockingPolicy;
+import org.xwiki.contrib.authentication.blocking.LoginAttempt;
+import org.xwiki.contrib.authentication.blocking.UsernameCanonicalizer;
+import org.xwiki.contrib.authentication.blocking.event.AbstractBlockingEvent;
+import org.xwiki.contrib.authentication.blocking.event.IPBlockedEvent;
+import org.xwiki.contrib.authentication.blocking.event.UnblockedEvent;
+import org.xwiki.contrib.authentication.blocking.event.UserBlockedEvent;
 import org.xwiki.contrib.authentication.blocking.internal.BlockingAuthConfiguration.Config;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.SpaceReference;
 import org.xwiki.model.reference.WikiReference;
 
 import com.xpn.xwiki.XWikiContext;
-import com.xpn.xwiki.web.XWikiRequest;
 
 /**
  * Default implementation for the blocked user service.
@@ -58,28 +61,13 @@ import com.xpn.xwiki.web.XWikiRequest;
 public class DefaultBlockedUserService implements BlockedUsersService
 {
 
-    private static final String FORWARDED_FOR_IP_HEADER = "X-Forwarded-For";
-
     private static final String XWIKI_SPACE = "XWiki";
 
-    private static final class LoginData
-    {
-        private final String username;
-        private final String ip;
-        private final long timestamp;
-
-        LoginData(String username, String ip)
-        {
-            this.username = username;
-            this.ip = ip;
-            this.timestamp = System.currentTimeMillis();
-        }
-    }
-
-    private final Object lock = new Object();
+    @Inject
+    private WikiShards shards;
 
-    private Map<String, Map<String, List<LoginData>>> blockedUsers;
-    private Map<String, Map<String, List<LoginData>>> blockedIPs;
+    @Inject
+    private UsernameCanonicalizer canonicalizer;
 
     @Inject
     private BlockingAuthConfiguration configProvider;
@@ -88,7 +76,18 @@ public class DefaultBlockedUserService implements BlockedUsersService
     private Provider<XWikiContext> contextProvider;
 
     @Inject
-    @SuppressWarnings("unused")
+    private RequestGate requestGate;
+
+    @Inject
+    private AuditLog auditLog;
+
+    @Inject
+    private BlockingEventDispatcher eventDispatcher;
+
+    @Inject
+    private BlockingClock clock;
+
+    @Inject
     private Logger logger;
 
     /**
@@ -96,125 +95,294 @@ public class DefaultBlockedUserService implements BlockedUsersService
      */
     public DefaultBlockedUserService()
     {
-        blockedUsers = new HashMap<>();
-        blockedIPs = new HashMap<>();
+        shards = new WikiShards();
+        canonicalizer = new DefaultUsernameCanonicalizer();
+        clock = new BlockingClock();
     }
 
     @Override
     public void addFailedLogin(String username, XWikiContext context)
     {
-        LoginData data = new LoginData(username, ip(context));
-        synchronized (lock) {
-            addToMap(findWikiMapForUser(username, context), data.username, data);
-            if (!whitelistedIp(data.ip)) {
-                addToMap(findMapByWikiId(blockedIPs, context.getWikiId()), data.ip, data);
+        addFailedLogin(LoginAttempt.forRequest(username, context, clock.millis()));
+    }
+
+    @Override
+    public void addFailedLogin(LoginAttempt attempt)
+    {
+        attempt.resetVerdict();
+        final XWikiContext context = attempt.getContext();
+        final String username = attempt.getUsername();
+        // check the whitelist first, before touching any of the maps
+        final boolean countClient = !prepareClient(attempt);
+        prepareUser(attempt);
+        final String ip = attempt.getIP();
+        final String userWikiId = attempt.getUserWikiId();
+        final long now = attempt.getTimestamp();
+
+        // a refusal for the whole wiki says nothing about the user, and must not lock out real accounts
+        if (!isRefusedForWiki(attempt) && shards.getShard(userWikiId).addUserFailure(attempt.getUserKey(),
+            documentName(username), now, configProvider.getConfig(userWikiId))) {
+            audit(AuditLog.USER_BLOCKED, userWikiId, username, ip, null);
+            send(new UserBlockedEvent(userWikiId, username, ip));
+        }
+        if (!countClient) {
+            return;
+        }
+        final String wikiId = context.getWikiId();
+        final String newBlock = shards.getShard(wikiId).addClientFailure(ip, attempt.getSubnet(),
+            attempt.getUserKey(), now, configProvider.getConfig());
+        if (BlockingPolicy.IP_BLOCKED.equals(newBlock)) {
+            audit(AuditLog.IP_BLOCKED, wikiId, username, ip, null);
+            send(new IPBlockedEvent(wikiId, username, ip));
+        } else if (BlockingPolicy.SUBNET_BLOCKED.equals(newBlock)) {
+            audit(AuditLog.SUBNET_BLOCKED, wikiId, username, attempt.getSubnet(), null);
+            send(new IPBlockedEvent(wikiId, username, attempt.getSubnet()));
+        } else if (BlockingPolicy.WIKI_BLOCKED.equals(newBlock)) {
+            logger.warn("too many failed logins for wiki [{}]; blocking all logins for a while", wikiId);
+            audit(AuditLog.WIKI_BLOCKED, wikiId, username, ip, null);
+        }
+    }
+
+    private static boolean isRefusedForWiki(LoginAttempt attempt)
+    {
+        return BlockingPolicy.WIKI_BLOCKED.equals(attempt.getRefusal())
+            || BlockingPolicy.WIKI_BUSY.equals(attempt.getRefusal());
+    }
+
+    @Override
+    public void addSuccessfulLogin(LoginAttempt attempt)
+    {
+        attempt.resetVerdict();
+        prepareUser(attempt);
+        final String userWikiId = attempt.getUserWikiId();
+        if (configProvider.getConfig(userWikiId).resetUserOnSuccess) {
+            final WikiShard shard = shards.getExistingShard(userWikiId);
+            if (shard != null && shard.resetUser(attempt.getUserKey())) {
+                logger.debug("forgot failed logins of user [{}] after successful login", attempt.getUsername());
+            }
+        }
+        if (configProvider.getConfig().resetIPOnSuccess && !prepareClient(attempt)) {
+            final WikiShard shard = shards.getExistingShard(attempt.getContext().getWikiId());
+            if (shard != null && shard.resetIP(attempt.getIP())) {
+                logger.debug("forgot failed logins from IP [{}] after successful login", attempt.getIP());
             }
         }
     }
 
-    private Map<String, List<LoginData>> findMapByWikiId(Map<String, Map<String, List<LoginData>>> map, String wikiId)
+    @Override
+    public String checkLogin(LoginAttempt attempt)
     {
-        Map<String, List<LoginData>> mapForWiki = map.get(wikiId);
-        if (mapForWiki == null) {
-            mapForWiki = new HashMap<>();
-            map.put(wikiId, mapForWiki);
+        if (attempt.isChecked()) {
+            attempt.setRefusal(attempt.getVerdict());
+            return attempt.getVerdict();
         }
-        return mapForWiki;
+        String reason = checkHoneypot(attempt);
+        if (reason == null) {
+            reason = checkUser(attempt) ? BlockingPolicy.USER_BLOCKED : checkClient(attempt);
+        }
+        attempt.setVerdict(reason);
+        attempt.setRefusal(reason);
+        return reason;
     }
 
-    private String findWikiForUser(String username, XWikiContext context)
+    /**
+     * block the client IP at once if it tries to log in as a honeypot user, unless the IP is whitelisted
+     * or unknown.
+     * only the canonical user name is needed for the check, so the wiki of the user is not looked up.
+     */
+    private String checkHoneypot(LoginAttempt attempt)
     {
-        if (context.isMainWiki()) {
-            return context.getWikiId();
+        final Config config = configProvider.getConfig();
+        final XWikiContext context = attempt.getContext();
+        if (!config.isHoneypotUser(userKey(attempt), canonicalizer)
+            || prepareClient(attempt) || attempt.getIP() == null) {
+            return null;
         }
-        DocumentReference userDoc = new DocumentReference(username,
-            new SpaceReference(XWIKI_SPACE, new WikiReference(context.getWikiId())));
-        if (context.getWiki().exists(userDoc, context)) {
-            return context.getWikiId();
+        final String wikiId = context.getWikiId();
+        final String ip = attempt.getIP();
+        if (shards.getShard(wikiId).blockIP(ip, attempt.getTimestamp(), config)) {
+            logger.info("blocking IP [{}] trying to log in as honeypot user [{}]", ip, attempt.getUsername());
+            audit(AuditLog.IP_BLOCKED, wikiId, attempt.getUsername(), ip, null);
+            send(new IPBlockedEvent(wikiId, attempt.getUsername(), ip));
         }
-        userDoc = userDoc.setWikiReference(new WikiReference(context.getMainXWiki()));
-        if (context.getWiki().exists(userDoc, context)) {
-            return context.getMainXWiki();
+        return BlockingPolicy.IP_BLOCKED;
+    }
+
+    private boolean checkUser(LoginAttempt attempt)
+    {
+        prepareUser(attempt);
+        final String userWikiId = attempt.getUserWikiId();
+        final WikiShard shard = shards.getExistingShard(userWikiId);
+        return shard != null
+            && shard.isUserBlocked(attempt.getUserKey(), attempt.getTimestamp(), configProvider.getConfig(userWikiId));
+    }
+
+    private String checkClient(LoginAttempt attempt)
+    {
+        if (prepareClient(attempt)) {
+            return null;
+        }
+        final WikiShard shard = shards.getExistingShard(attempt.getContext().getWikiId());
+        if (shard == null) {
+            return null;
         }
-        return context.getWikiId();
+        return shard.checkClient(attempt.getIP(), attempt.getSubnet(), attempt.getTimestamp(),
+            configProvider.getConfig());
     }
 
-    private Map<String, List<LoginData>> findWikiMapForUser(String username, XWikiContext context)
+    /**
+     * get the time until which the user or the client of a refused attempt stays blocked, with the block time
+     * of the escalation level.
+     *
+     * @param attempt
+     *            the refused attempt, after it has been recorded as failure
+     * @param reason
+     *            the reason why the attempt has been refused
+     * @return the time in milliseconds, or zero if the attempt is not refused for a blocked user, IP or subnet
+     */
+    long getBlockedUntil(LoginAttempt attempt, String reason)
     {
-        String wikiId = findWikiForUser(username, context);
-        return findMapByWikiId(blockedUsers, wikiId);
+        final boolean userBlocked = BlockingPolicy.USER_BLOCKED.equals(reason);
+        final String wikiId = userBlocked ? attempt.getUserWikiId() : attempt.getContext().getWikiId();
+        final WikiShard shard = wikiId == null ? null : shards.getExistingShard(wikiId);
+        if (shard == null) {
+            return 0L;
+        }
+        if (userBlocked) {
+            return shard.getUserBlockedUntil(attempt.getUserKey(), attempt.getTimestamp(),
+                configProvider.getConfig(wikiId));
+        }
+        if (BlockingPolicy.IP_BLOCKED.equals(reason) || BlockingPolicy.SUBNET_BLOCKED.equals(reason)) {
+            return shard.getClientBlockedUntil(attempt.getIP(), attempt.getSubnet(), attempt.getTimestamp(),
+                configProvider.getConfig());
+        }
+        return 0L;
     }
 
-    private static void addToMap(Map<String, List<LoginData>> map, String key, LoginData data)
+    /**
+     * determine the values of the client once for the attempt.
+     *
+     * @return true if the client IP is whitelisted
+     */
+    private boolean prepareClient(LoginAttempt attempt)
     {
-        if (key == null) {
-            return;
+        Boolean whitelisted = attempt.getWhitelisted();
+        if (whitelisted == null) {
+            final Config config = configProvider.getConfig();
+            // an IP set by the caller is kept, e.g. for attempts replayed without a request
+            final String ip = attempt.getIP() == null ? ip(attempt.getContext()) : attempt.getIP();
+            attempt.setIP(ip);
+            whitelisted = config.whitelistMatcher().matches(ip);
+            attempt.setWhitelisted(whitelisted);
+            if (config.maxSubnetAttempts > 0) {
+                attempt.setSubnet(IPMatcher.subnet(ip));
+            }
+        }
+        return whitelisted;
+    }
+
+    /**
+     * determine the values of the user once for the attempt.
+     */
+    private void prepareUser(LoginAttempt attempt)
+    {
+        if (attempt.getUserWikiId() == null) {
+            attempt.setUserWikiId(findWikiForUser(attempt.getUsername(), userKey(attempt), attempt.getContext()));
         }
-        List<LoginData> blockedList = map.get(key);
-        if (blockedList == null) {
-            blockedList = new ArrayList<>();
-            map.put(key, blockedList);
+    }
+
+    /**
+     * get the canonical name for the user of the attempt, which is used as key for the failed logins.
+     * the result is kept in the attempt, as it is needed several times for each login.
+     */
+    private String userKey(LoginAttempt attempt)
+    {
+        if (attempt.getUserKey() == null && attempt.getUsername() != null) {
+            attempt.setUserKey(canonicalizer.canonicalize(attempt.getUsername()));
         }
-        blockedList.add(data);
+        return attempt.getUserKey();
+    }
+
+    /**
+     * get the name of the profile document for the user name as entered, to be shown in the list of blocked users.
+     */
+    private static String documentName(String username)
+    {
+        return username == null ? null : DefaultUsernameCanonicalizer.documentName(username);
+    }
+
+    private String findWikiForUser(String username, String userKey, XWikiContext context)
+    {
+        final String wikiId = context.getWikiId();
+        if (context.isMainWiki() || username == null) {
+            return wikiId;
+        }
+
+        final WikiShard shard = shards.getShard(wikiId);
+        final long now = clock.millis();
+        String userWikiId = shard.getUserWiki(userKey, now);
+        if (userWikiId == null) {
+            userWikiId = lookupWikiForUser(username, context);
+            if (userWikiId == null) {
+                // not cached for long, as the account might be created any time
+                shard.setUserMissing(userKey, now);
+                userWikiId = wikiId;
+            } else {
+                shard.setUserWiki(userKey, userWikiId);
+            }
+        }
+        return userWikiId;
+    }
+
+    /**
+     * find the wiki with the profile document of the user, looking in the current wiki first.
+     *
+     * @return the wiki id, or null if the user has no profile in the current nor the main wiki
+     */
+    private String lookupWikiForUser(String username, XWikiContext context)
+    {
+        DocumentReference userDoc = new DocumentReference(documentName(username),
+            new SpaceReference(XWIKI_SPACE, new WikiReference(context.getWikiId())));
+        if (context.getWiki().exists(userDoc, context)) {
+            return context.getWikiId();
+        }
+        userDoc = userDoc.setWikiReference(new WikiReference(context.getMainXWiki()));
+        if (context.getWiki().exists(userDoc, context)) {
+            return context.getMainXWiki();
+        }
+        return null;
     }
 
     @Override
     public boolean isUserBlocked(String username)
     {
-        final XWikiContext context = contextProvider.get();
-        final String wikiId = findWikiForUser(username, context);
-        final Config conf = configProvider.getConfig(wikiId);
-        synchronized (lock) {
-            return checkList(blockedUsers.get(wikiId), username, conf.maxUserAttempts, conf.blockTimeUser);
-        }
+        return checkUser(LoginAttempt.forRequest(username, contextProvider.get(), clock.millis()));
     }
 
     @Override
     public boolean isIPBlocked(XWikiContext context)
     {
-        Config conf = configProvider.getConfig();
-        synchronized (lock) {
-            return checkList(blockedIPs.get(context.getWikiId()), ip(context), conf.maxIPAttempts, conf.blockTimeIP);
-        }
+        return checkClient(LoginAttempt.forRequest(null, context, clock.millis())) != null;
     }
 
     @Override
     public List<BlockedUserInformation> getBlockedUsers()
     {
-        // TODO: lots of copy & paste in getBlockedIPs
         final List<BlockedUserInformation> blockedUserInfo = new ArrayList<>();
         final XWikiContext context = contextProvider.get();
-        final SpaceReference xwikiSpaceRef = new SpaceReference(XWIKI_SPACE, context.getWikiReference());
-        final Config config = configProvider.getConfig();
-        if (config.maxUserAttempts <= 0) {
+        final WikiShard shard = shards.getExistingShard(context.getWikiId());
+        if (shard == null) {
             return blockedUserInfo;
         }
 
-        synchronized (lock) {
-            Map<String, List<LoginData>> blockedUsersForWiki = blockedUsers.get(context.getWikiId());
-            if (blockedUsersForWiki == null) {
-                return blockedUserInfo;
-            }
-
-            for (Entry<String, List<LoginData>> entry : blockedUsersForWiki.entrySet()) {
-                final List<LoginData> loginAttempts = entry.getValue();
-                if (loginAttempts.size() < config.maxUserAttempts) {
-                    continue;
-                }
-                long lastLoginStamp = 0L;
-                for (LoginData loginAttempt : loginAttempts) {
-                    lastLoginStamp = Math.max(lastLoginStamp, loginAttempt.timestamp);
-                }
-                if (lastLoginStamp == 0L) {
-                    // this should never happen ...
-                    continue;
-                }
-                BlockedUserInformation userInfo = new BlockedUserInformation();
-                DocumentReference userRef = new DocumentReference(entry.getKey(), xwikiSpaceRef);
-                userInfo.setUserReference(userRef);
-                userInfo.setLastAttempt(new Date(lastLoginStamp));
-                blockedUserInfo.add(userInfo);
-            }
+        final SpaceReference xwikiSpaceRef = new SpaceReference(XWIKI_SPACE, context.getWikiReference());
+        final Config config = configProvider.getConfig();
+        for (Entry<String, Long> entry : shard.getBlockedUsers(config.maxUserAttempts, clock.millis()).entrySet()) {
+            BlockedUserInformation userInfo = new BlockedUserInformation();
+            DocumentReference userRef = new DocumentReference(entry.getKey(), xwikiSpaceRef);
+            userInfo.setUserReference(userRef);
+            userInfo.setLastAttempt(new Date(entry.getValue()));
+            blockedUserInfo.add(userInfo);
         }
 
         // sort by latest attempts first
@@ -234,54 +402,38 @@ public class DefaultBlockedUserService implements BlockedUsersService
     @Override
     public boolean unblockUser(String userName)
     {
-        boolean result;
-        XWikiContext context = contextProvider.get();
-        synchronized (lock) {
-            Map<String, List<LoginData>> blockedUsersForWiki = blockedUsers.get(context.getWikiId());
-            if (blockedUsersForWiki == null) {
-                result = false;
-            } else {
-                result = blockedUsersForWiki.remove(userName) != null;
+        final XWikiContext context = contextProvider.get();
+        final WikiShard shard = shards.getExistingShard(context.getWikiId());
+        // only a user blocked until now is reported as unblocked; other failures are just forgotten
+        final boolean result = shard != null
+            && shard.removeUser(userName == null ? null : canonicalizer.canonicalize(userName), clock.millis(),
+                configProvider.getConfig());
+        if (result) {
+            audit(AuditLog.USER_UNBLOCKED, context.getWikiId(), userName, null, context.getUser());
+            send(new UnblockedEvent(context.getWikiId(), userName, null));
+            if (requestGate != null) {
+                requestGate.releaseUser(userName);
             }
         }
-
         return result;
     }
 
     @Override
     public List<BlockedIPInformation> getBlockedIPs()
     {
-        // TODO: lots of copy & paste from getBlockedUsers
         final List<BlockedIPInformation> blockedIpInfo = new ArrayList<>();
-        Config config = configProvider.getConfig();
-        if (config.maxIPAttempts <= 0) {
+        final String wikiId = contextProvider.get().getWikiId();
+        final WikiShard shard = shards.getExistingShard(wikiId);
+        if (shard == null) {
             return blockedIpInfo;
         }
 
-        synchronized (lock) {
-            Map<String, List<LoginData>> blockedIpsForWiki = blockedIPs.get(contextProvider.get().getWikiId());
-            if (blockedIpsForWiki == null) {
-                return blockedIpInfo;
-            }
-
-            for (Entry<String, List<LoginData>> entry : blockedIpsForWiki.entrySet()) {
-                final List<LoginData> loginAttempts = entry.getValue();
-                if (loginAttempts.size() < config.maxIPAttempts) {
-                    continue;
-                }
-                long lastLoginStamp = 0L;
-                for (LoginData loginAttempt : loginAttempts) {
-                    lastLoginStamp = Math.max(lastLoginStamp, loginAttempt.timestamp);
-                }
-                if (lastLoginStamp == 0L) {
-                    // this should never happen ...
-                    continue;
-                }
-                BlockedIPInformation userInfo = new BlockedIPInformation();
-                userInfo.setIp(entry.getKey());
-                userInfo.setLastAttempt(new Date(lastLoginStamp));
-                blockedIpInfo.add(userInfo);
-            }
+        for (Entry<String, Long> entry : shard.getBlockedIPs(configProvider.getConfig(), clock.millis()).entrySet()) {
+            BlockedIPInformation ipInfo = new BlockedIPInformation();
+            ipInfo.setIp(entry.getKey());
+            ipInfo.setWikiId(wikiId);
+            ipInfo.setLastAttempt(new Date(entry.getValue()));
+            blockedIpInfo.add(ipInfo);
         }
 
         // sort by latest attempts first
@@ -301,75 +453,46 @@ public class DefaultBlockedUserService implements BlockedUsersService
     @Override
     public boolean unblockIP(String ip)
     {
-        boolean result;
-        XWikiContext context = contextProvider.get();
-        synchronized (lock) {
-            Map<String, List<LoginData>> blockedIPsForWiki = blockedIPs.get(context.getWikiId());
-            if (blockedIPsForWiki == null) {
-                result = false;
-            } else {
-                result = blockedIPsForWiki.remove(ip) != null;
+        final XWikiContext context = contextProvider.get();
+        final WikiShard shard = shards.getExistingShard(context.getWikiId());
+        final boolean result = shard != null && shard.removeIP(ip, clock.millis(), configProvider.getConfig());
+        if (result) {
+            audit(AuditLog.IP_UNBLOCKED, context.getWikiId(), null, ip, context.getUser());
+            send(new UnblockedEvent(context.getWikiId(), null, ip));
+            if (requestGate != null) {
+                requestGate.releaseIP(ip);
             }
         }
         return result;
     }
 
-    @Override
-    public String getCurrentIP()
+    private void audit(String type, String wikiId, String user, String ip, String actor)
     {
-        XWikiContext context = contextProvider.get();
-        if (context == null) {
-            return null;
+        if (auditLog != null) {
+            auditLog.log(type, wikiId, user, ip, actor);
         }
-        return ip(context);
     }
 
-    private boolean checkList(Map<String, List<LoginData>> map, String key, int maxAttempts, long blockTime)
+    private void send(AbstractBlockingEvent event)
     {
-        if (maxAttempts <= 0) {
-            return false;
-        }
-        if (map == null) {
-            return false;
+        if (eventDispatcher != null) {
+            eventDispatcher.send(event);
         }
-
-        List<LoginData> list = map.get(key);
-        if (list == null || list.isEmpty()) {
-            return false;
-        }
-
-        long evictTime = System.currentTimeMillis() - blockTime;
-        int size = list.size();
-
-        if (list.get(size - 1).timestamp < evictTime) {
-            list.clear();
-            return false;
-        }
-
-        return size >= maxAttempts;
     }
 
-    private String ip(XWikiContext context)
+    @Override
+    public String getCurrentIP()
     {
-        XWikiRequest request = context.getRequest();
-
-        String ip = request.getRemoteAddr();
-        // if we are proxied, then ...
-        String proxyIP = request.getHeader(FORWARDED_FOR_IP_HEADER);
-        if (!StringUtils.isEmpty(proxyIP) && trustedProxy(ip)) {
-            ip = proxyIP.substring(0, proxyIP.indexOf(','));
+        XWikiContext context = contextProvider.get();
+        if (context == null) {
+            return null;
         }
-        return ip;
-    }
-
-    private boolean trustedProxy(String ip)
-    {
-        return configProvider.getConfig().trustedProxies.contains(ip);
+        return ip(context);
     }
 
-    private boolean whitelistedIp(String ip)
+    private String ip(XWikiContext context)
     {
-        return configProvider.getConfig().whitelistedIPs.contains(ip);
+        return ClientIP.get(context.getRequest(), configProvider.getConfig().trustedProxyMatcher());
     }
 
     //
@@ -420,4 +543,37 @@ public class DefaultBlockedUserService implements BlockedUsersService
         this.contextProvider = provider;
     }
 
+    /**
+     * only for tests.
+     *
+     * @param dispatcher
+     *            the new event dispatcher
+     */
+    void setEventDispatcher(BlockingEventDispatcher dispatcher)
+    {
+        this.eventDispatcher = dispatcher;
+    }
+
+    /**
+     * only for tests.
+     *
+     * @param clock
+     *            the source of the current time
+     */
+    void setClock(BlockingClock clock)
+    {
+        this.clock = clock;
+    }
+
+    /**
+     * only for tests.
+     *
+     * @param shards
+     *            the holder of the blocking data of all wikis
+     */
+    void setShards(WikiShards shards)
+    {
+        this.shards = shards;
+    }
+
 }
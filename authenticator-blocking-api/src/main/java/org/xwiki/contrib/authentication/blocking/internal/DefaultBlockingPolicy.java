@@ -0,0 +1,162 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.internal;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.contrib.authentication.blocking.BlockedUsersService;
+import org.xwiki.contrib.authentication.blocking.BlockingPolicy;
+import org.xwiki.contrib.authentication.blocking.LoginAttempt;
+
+/**
+ * The default blocking policy. Checks the failures recorded by the {@link BlockedUsersService},
+ * then asks all other {@link BlockingPolicy} components, which are found by their role.
+ * The other policies are looked up once, and again only after a policy has been registered or removed,
+ * as told by the {@link BlockingPolicyListener}.
+ * The candidate configuration, if any, is evaluated alongside by the {@link ShadowEvaluation}.
+ *
+ * @version $Id$
+ * @since 2.0
+ */
+@Component
+@Singleton
+public class DefaultBlockingPolicy implements BlockingPolicy
+{
+    private static final String DEFAULT_HINT = "default";
+
+    @Inject
+    private BlockedUsersService blockedUsers;
+
+    @Inject
+    private ShadowEvaluation shadowEvaluation;
+
+    @Inject
+    @Named("context")
+    private Provider<ComponentManager> componentManagerProvider;
+
+    @Inject
+    private Logger logger;
+
+    /** the other policies by hint; null if they have to be looked up again. */
+    private volatile Map<String, BlockingPolicy> otherPolicies;
+
+    @Override
+    public String check(LoginAttempt attempt)
+    {
+        String reason = blockedUsers.checkLogin(attempt);
+        if (reason == null) {
+            for (BlockingPolicy policy : getOtherPolicies().values()) {
+                reason = policy.check(attempt);
+                if (reason != null) {
+                    break;
+                }
+            }
+        }
+        attempt.setRefusal(reason);
+        shadowEvaluation.check(attempt, reason);
+        return reason;
+    }
+
+    @Override
+    public void recordFailure(LoginAttempt attempt)
+    {
+        blockedUsers.addFailedLogin(attempt);
+        for (BlockingPolicy policy : getOtherPolicies().values()) {
+            policy.recordFailure(attempt);
+        }
+        shadowEvaluation.recordFailure(attempt);
+    }
+
+    @Override
+    public void recordSuccess(LoginAttempt attempt)
+    {
+        blockedUsers.addSuccessfulLogin(attempt);
+        for (BlockingPolicy policy : getOtherPolicies().values()) {
+            policy.recordSuccess(attempt);
+        }
+        shadowEvaluation.recordSuccess(attempt);
+    }
+
+    /**
+     * only for tests.
+     *
+     * @param service
+     *            the blocked users service
+     * @param shadow
+     *            the evaluation of the candidate configuration
+     * @param provider
+     *            the provider of the component manager to look up the other policies
+     * @param log
+     *            the logger
+     */
+    void setComponents(BlockedUsersService service, ShadowEvaluation shadow, Provider<ComponentManager> provider,
+        Logger log)
+    {
+        this.blockedUsers = service;
+        this.shadowEvaluation = shadow;
+        this.componentManagerProvider = provider;
+        this.logger = log;
+    }
+
+    /**
+     * forget the other policies, so that they are looked up again with the next login attempt.
+     */
+    void flushOtherPolicies()
+    {
+        otherPolicies = null;
+    }
+
+    private Map<String, BlockingPolicy> getOtherPolicies()
+    {
+        Map<String, BlockingPolicy> policies = otherPolicies;
+        if (policies == null) {
+            policies = lookupOtherPolicies();
+            otherPolicies = policies;
+        }
+        return policies;
+    }
+
+    private Map<String, BlockingPolicy> lookupOtherPolicies()
+    {
+        try {
+            final Map<String, BlockingPolicy> policies =
+                componentManagerProvider.get().getInstanceMap(BlockingPolicy.class);
+            if (policies.size() <= 1) {
+                return Collections.emptyMap();
+            }
+            policies.remove(DEFAULT_HINT);
+            return Collections.unmodifiableMap(new LinkedHashMap<>(policies));
+        } catch (ComponentLookupException e) {
+            logger.warn("failed to look up further blocking policies: [{}]", e.getMessage());
+            return Collections.emptyMap();
+        }
+    }
+}
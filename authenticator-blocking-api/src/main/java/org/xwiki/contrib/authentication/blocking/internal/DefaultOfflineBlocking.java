@@ -0,0 +1,102 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.internal;
+
+import org.slf4j.helpers.NOPLogger;
+import org.xwiki.contrib.authentication.blocking.BlockedUsersService;
+import org.xwiki.contrib.authentication.blocking.OfflineBlocking;
+import org.xwiki.contrib.authentication.blocking.internal.BlockingAuthConfiguration.Config;
+
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * Sets up a {@link DefaultBlockedUserService} with shards, a timing wheel and a clock of its own.
+ * Use {@link OfflineBlocking#create(Config, XWikiContext)} rather than this class.
+ *
+ * @version $Id$
+ * @since 2.0
+ */
+public final class DefaultOfflineBlocking implements OfflineBlocking
+{
+    /**
+     * the clock showing the time of the attempt being checked.
+     */
+    private static final class OfflineClock extends BlockingClock
+    {
+        private long now;
+
+        @Override
+        public long millis()
+        {
+            return now;
+        }
+    }
+
+    private final OfflineClock clock = new OfflineClock();
+
+    private final TimingWheel wheel = new TimingWheel();
+
+    private final DefaultBlockedUserService service = new DefaultBlockedUserService();
+
+    /**
+     * constructor.
+     *
+     * @param config
+     *            the configuration for all wikis
+     * @param context
+     *            the context of all attempts
+     */
+    public DefaultOfflineBlocking(final Config config, XWikiContext context)
+    {
+        final WikiShards shards = new WikiShards();
+        shards.setTimingWheel(wheel, null);
+        service.setShards(shards);
+        service.setClock(clock);
+        service.setConfig(new BlockingAuthConfiguration()
+        {
+            @Override
+            public Config getConfig()
+            {
+                return config;
+            }
+
+            @Override
+            public Config getConfig(String wikiId)
+            {
+                return config;
+            }
+        });
+        service.setContextProvider(() -> context);
+        service.setLogger(NOPLogger.NOP_LOGGER);
+    }
+
+    @Override
+    public BlockedUsersService getService()
+    {
+        return service;
+    }
+
+    @Override
+    public void advance(long now)
+    {
+        clock.now = now;
+        wheel.advance(now);
+    }
+}
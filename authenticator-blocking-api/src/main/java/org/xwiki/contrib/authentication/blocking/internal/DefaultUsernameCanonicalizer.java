@@ -0,0 +1,75 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.internal;
+
+import java.util.Locale;
+
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.authentication.blocking.UsernameCanonicalizer;
+
+/**
+ * Canonicalizes user names in the same way as the XWiki authentication service matches them:
+ * white space is ignored, a wiki prefix and the {@code XWiki.} space prefix are dropped,
+ * and the case does not matter.
+ * <p>
+ * If a name is already canonical, the same instance is returned.
+ *
+ * @version $Id$
+ * @since 2.0
+ */
+@Component
+@Singleton
+public class DefaultUsernameCanonicalizer implements UsernameCanonicalizer
+{
+    private static final String SPACE_PREFIX = "XWiki.";
+
+    private static final char WIKI_SEPARATOR = ':';
+
+    @Override
+    public String canonicalize(String username)
+    {
+        return documentName(username).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * get the name of the user profile document for a user name as entered, keeping its case.
+     *
+     * @param username
+     *            the user name, maybe prefixed with the wiki and the XWiki space
+     * @return the name of the document in the XWiki space
+     */
+    static String documentName(String username)
+    {
+        // deleteWhitespace copies the name even if there is nothing to delete
+        String name = StringUtils.containsWhitespace(username) ? StringUtils.deleteWhitespace(username) : username;
+        final int wikiSeparator = name.indexOf(WIKI_SEPARATOR);
+        if (wikiSeparator >= 0) {
+            name = name.substring(wikiSeparator + 1);
+        }
+        if (name.length() > SPACE_PREFIX.length()
+            && name.regionMatches(true, 0, SPACE_PREFIX, 0, SPACE_PREFIX.length())) {
+            name = name.substring(SPACE_PREFIX.length());
+        }
+        return name;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.internal;
+
+/**
+ * Estimates the number of distinct user names seen within a time window, using a small HyperLogLog sketch.
+ * <p>
+ * The sketch has a fixed size of {@value #REGISTERS} bytes, no matter how many names are added,
+ * and the estimate has a standard error of about nine percent. This is precise enough to tell an IP
+ * which tries many different user names from one which repeats a few of them.
+ * All access must be guarded by the lock of the map holding the counter.
+ *
+ * @version $Id$
+ * @since 2.0
+ */
+final class DistinctCounter
+{
+    private static final int PRECISION = 7;
+
+    private static final int REGISTERS = 1 << PRECISION;
+
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / REGISTERS);
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final byte[] registers = new byte[REGISTERS];
+
+    /** sum of 2^-register over all registers, maintained incrementally. */
+    private double inverseSum = REGISTERS;
+
+    private int zeroRegisters = REGISTERS;
+
+    private long windowStart;
+
+    /**
+     * add a name and estimate the number of distinct names in the current window.
+     *
+     * @param name
+     *            the name to add
+     * @param timestamp
+     *            the current time, in milliseconds
+     * @param window
+     *            the length of the window in milliseconds; if a new window starts, all previous names are forgotten.
+     *            if zero or below, names are never forgotten
+     * @return the estimated number of distinct names
+     */
+    int add(String name, long timestamp, long window)
+    {
+        if (isExpired(timestamp, window)) {
+            clear();
+        }
+        if (zeroRegisters == REGISTERS) {
+            windowStart = timestamp;
+        }
+
+        final long hash = hash(name);
+        final int index = (int) (hash >>> (Long.SIZE - PRECISION));
+        // the sentinel bit limits the rank to the number of remaining bits plus one
+        final int rank = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+        final int old = registers[index];
+        if (rank > old) {
+            registers[index] = (byte) rank;
+            inverseSum += Math.scalb(1.0, -rank) - Math.scalb(1.0, -old);
+            if (old == 0) {
+                zeroRegisters--;
+            }
+        }
+        return estimate();
+    }
+
+    /**
+     * @param now
+     *            the current time, in milliseconds
+     * @param window
+     *            the length of the window in milliseconds
+     * @return true if the window has passed, and all names should be forgotten
+     */
+    boolean isExpired(long now, long window)
+    {
+        return window > 0 && now - windowStart >= window;
+    }
+
+    /**
+     * @param window
+     *            the time window in which names are counted, in milliseconds
+     * @return the time when the current window ends, in milliseconds
+     */
+    long expiresAt(long window)
+    {
+        return windowStart + window;
+    }
+
+    /**
+     * forget all names.
+     */
+    void clear()
+    {
+        for (int i = 0; i < REGISTERS; i++) {
+            registers[i] = 0;
+        }
+        inverseSum = REGISTERS;
+        zeroRegisters = REGISTERS;
+    }
+
+    private int estimate()
+    {
+        double estimate = ALPHA * REGISTERS * REGISTERS / inverseSum;
+        if (estimate <= 2.5 * REGISTERS && zeroRegisters > 0) {
+            // linear counting is more precise for small numbers
+            estimate = REGISTERS * Math.log((double) REGISTERS / zeroRegisters);
+        }
+        return (int) Math.round(estimate);
+    }
+
+    private static long hash(String name)
+    {
+        // FNV-1a, followed by the finalizer of MurmurHash3 to spread the bits
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < name.length(); i++) {
+            hash ^= name.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.internal;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+
+/**
+ * Remembers credentials which recently failed to log in, so that repeating them can be rejected
+ * without the database lookup and the password hash check.
+ * <p>
+ * The credentials are never stored; only a keyed hash (HMAC) of the wiki, the user name and the password is kept.
+ * The key is random and only held in memory, so the fingerprints are of no use outside of this instance.
+ * Entries expire after the configured time; as a password might have been changed to a value
+ * which failed before, this time should be short.
+ *
+ * @version $Id$
+ * @since 2.0
+ */
+@Component(roles = { FailedCredentialsCache.class })
+@Singleton
+public class FailedCredentialsCache
+{
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private static final char SEPARATOR = '\u0000';
+
+    private static final int KEY_SIZE = 32;
+
+    private final SecretKeySpec key;
+
+    private final Lock lock = new ReentrantLock();
+
+    private volatile int maxEntries = WikiShard.DEFAULT_MAX_ENTRIES;
+
+    /**
+     * the fingerprints of the failed credentials, with the time until which they are remembered.
+     */
+    private final Map<String, Long> failed = new LinkedHashMap<String, Long>()
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Entry<String, Long> eldest)
+        {
+            return size() > maxEntries;
+        }
+    };
+
+    /**
+     * constructor. creates a new random key.
+     */
+    public FailedCredentialsCache()
+    {
+        final byte[] bytes = new byte[KEY_SIZE];
+        new SecureRandom().nextBytes(bytes);
+        key = new SecretKeySpec(bytes, ALGORITHM);
+    }
+
+    /**
+     * check if credentials failed recently.
+     *
+     * @param wikiId
+     *            the wiki to log in to
+     * @param username
+     *            the user name as entered
+     * @param password
+     *            the password as entered
+     * @param now
+     *            the current time, in milliseconds
+     * @return true if the same credentials failed to log in to the same wiki recently
+     */
+    boolean hasFailed(String wikiId, String username, String password, long now)
+    {
+        final String fingerprint = fingerprint(wikiId, username, password);
+        lock.lock();
+        try {
+            final Long until = failed.get(fingerprint);
+            if (until == null) {
+                return false;
+            }
+            if (until <= now) {
+                failed.remove(fingerprint);
+                return false;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * remember credentials which failed to log in.
+     *
+     * @param wikiId
+     *            the wiki to log in to
+     * @param username
+     *            the user name as entered
+     * @param password
+     *            the password as entered
+     * @param now
+     *            the current time, in milliseconds
+     * @param ttl
+     *            the time for which the credentials are rejected, in milliseconds
+     * @param limit
+     *            the maximal number of remembered credentials; if zero or below a default is used
+     */
+    void addFailure(String wikiId, String username, String password, long now, long ttl, int limit)
+    {
+        final String fingerprint = fingerprint(wikiId, username, password);
+        lock.lock();
+        try {
+            maxEntries = limit > 0 ? limit : WikiShard.DEFAULT_MAX_ENTRIES;
+            // re-insert to keep the map in the order of expiry, so expired entries can be dropped from the start
+            failed.remove(fingerprint);
+            failed.put(fingerprint, now + ttl);
+            final Iterator<Long> entries = failed.values().iterator();
+            while (entries.hasNext() && entries.next() <= now) {
+                entries.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private String fingerprint(String wikiId, String username, String password)
+    {
+        final StringBuilder data = new StringBuilder();
+        data.append(wikiId).append(SEPARATOR).append(username).append(SEPARATOR).append(password);
+        return Base64.getEncoder().encodeToString(getMac().doFinal(data.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * create a new HMAC for each fingerprint. this is cheap compared to the password check it saves,
+     * and keeps no instances attached to the threads of the servlet container.
+     */
+    private Mac getMac()
+    {
+        try {
+            final Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            // every Java platform is required to support HmacSHA256
+            throw new IllegalStateException("cannot create the HMAC for the failed credentials", e);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.internal;
+
+/**
+ * Mutable record of the failed logins for a single user or IP.
+ * <p>
+ * Instances are created once per key and then updated in place, so that recording
+ * further failures for a key which is already tracked does not allocate any memory.
+ * All access must be guarded by the lock of the map holding the counter.
+ * <p>
+ * Besides the current failures the counter remembers how often the key has been blocked
+ * recently (the escalation level); each repeated block lasts longer than the previous one.
+ * The level decays by one for each decay period without any failure.
+ *
+ * @version $Id$
+ * @since 2.0
+ */
+final class FailureCounter
+{
+    /** number of failures since the counter has been reset last. */
+    int failures;
+
+    /** timestamp of the last failure, in milliseconds. */
+    long lastFailure;
+
+    /** number of recent blocks, i.e. how often the block time has been escalated. */
+    int level;
+
+    /** the profile document name entered with the last failure, if different from the key; for display only. */
+    String name;
+
+    /** time until which the key is blocked regardless of the number of failures, in milliseconds. */
+    long blockedUntil;
+
+    /** the distinct user names which failed to log in from an IP; null for users or if not enabled. */
+    DistinctCounter distinctUsers;
+
+    /**
+     * if the key has been blocked and the end of the block has not been noticed yet;
+     * read by the timing wheel without the lock.
+     */
+    volatile boolean blocked;
+
+    /** if the expiry of this counter is scheduled in the {@link TimingWheel}. */
+    boolean scheduled;
+
+    /** if this counter has been removed from its map; read by the timing wheel without the lock. */
+    volatile boolean removed;
+
+    /**
+     * record a new failure.
+     *
+     * @param timestamp
+     *            the time of the failure, in milliseconds
+     * @param maxAttempts
+     *            the number of failures after which the key is blocked
+     * @param blockTimeFactor
+     *            the factor to escalate the block time with; values below two disable the escalation
+     * @param decayTime
+     *            the time after which the escalation level is decreased by one, if no failure happened.
+     *            if zero or below the level never decreases.
+     * @return true if this failure caused the key to get blocked
+     */
+    boolean add(long timestamp, int maxAttempts, int blockTimeFactor, long decayTime)
+    {
+        if (level > 0 && decayTime > 0) {
+            long periods = (timestamp - lastFailure) / decayTime;
+            level = periods >= level ? 0 : level - (int) periods;
+        }
+        if (failures < Integer.MAX_VALUE) {
+            failures++;
+        }
+        lastFailure = timestamp;
+
+        boolean blocked = maxAttempts > 0 && failures == maxAttempts;
+        if (blocked) {
+            escalate(blockTimeFactor);
+        }
+        return blocked;
+    }
+
+    /**
+     * raise the escalation level for a new block, if escalation is enabled.
+     *
+     * @param blockTimeFactor
+     *            the factor to escalate the block time with; values below two disable the escalation
+     */
+    void escalate(int blockTimeFactor)
+    {
+        if (blockTimeFactor > 1 && level < Integer.MAX_VALUE) {
+            level++;
+        }
+    }
+
+    /**
+     * the block time for the current escalation level.
+     * the first block lasts the base time, and each repeated block the previous time times the factor.
+     *
+     * @param blockTime
+     *            the base block time, in milliseconds
+     * @param blockTimeFactor
+     *            the factor to escalate the block time with; values below two disable the escalation
+     * @param maxBlockTime
+     *            the upper limit for the block time, in milliseconds; if zero or below there is no limit
+     * @return the block time in milliseconds
+     */
+    long blockTime(long blockTime, int blockTimeFactor, long maxBlockTime)
+    {
+        long time = blockTime;
+        if (blockTimeFactor > 1) {
+            for (int i = 1; i < level && time > 0; i++) {
+                if (time > Long.MAX_VALUE / blockTimeFactor) {
+                    time = Long.MAX_VALUE;
+                    break;
+                }
+                time *= blockTimeFactor;
+                if (maxBlockTime > 0 && time >= maxBlockTime) {
+                    break;
+                }
+            }
+        }
+        if (maxBlockTime > 0 && time > maxBlockTime) {
+            time = maxBlockTime;
+        }
+        return time;
+    }
+
+    /**
+     * check if the escalation level has decayed completely, i.e. no failure happened for the decay period
+     * as many times as the current level.
+     *
+     * @param now
+     *            the current time, in milliseconds
+     * @param decayTime
+     *            the time after which the escalation level is decreased by one; if zero or below it never decays
+     * @return true if there is a level which has decayed completely
+     */
+    boolean isDecayed(long now, long decayTime)
+    {
+        return level > 0 && decayTime > 0 && (now - lastFailure) / decayTime >= level;
+    }
+
+    /**
+     * get the next time when the failures, the block, the distinct user names or the escalation level
+     * of this counter expire.
+     *
+     * @param now
+     *            the current time, in milliseconds
+     * @param baseBlockTime
+     *            the base block time, in milliseconds
+     * @param conf
+     *            the configuration of the wiki
+     * @return the time in milliseconds, or zero if nothing expires
+     */
+    long nextExpiry(long now, long baseBlockTime, BlockingAuthConfiguration.Config conf)
+    {
+        long next = Long.MAX_VALUE;
+        if (failures > 0) {
+            // the failures are forgotten once the block time has fully passed
+            next = plus(lastFailure, plus(blockTime(baseBlockTime, conf.blockTimeFactor, conf.maxBlockTime), 1L));
+        }
+        if (blockedUntil > now) {
+            next = Math.min(next, blockedUntil);
+        }
+        if (distinctUsers != null && conf.distinctUsersWindow > 0) {
+            next = Math.min(next, distinctUsers.expiresAt(conf.distinctUsersWindow));
+        }
+        if (failures == 0 && level > 0 && conf.escalationDecayTime > 0) {
+            next = Math.min(next, plus(lastFailure, level > Long.MAX_VALUE / conf.escalationDecayTime
+                ? Long.MAX_VALUE : level * conf.escalationDecayTime));
+        }
+        return next == Long.MAX_VALUE ? 0L : next;
+    }
+
+    /**
+     * add a duration to a time, without overflow.
+     *
+     * @param time
+     *            the time, in milliseconds
+     * @param duration
+     *            the duration to add, in milliseconds; not negative
+     * @return the sum, or the largest possible time
+     */
+    static long plus(long time, long duration)
+    {
+        return time > Long.MAX_VALUE - duration ? Long.MAX_VALUE : time + duration;
+    }
+
+    /**
+     * check if this counter still needs to be kept.
+     *
+     * @return true if there are neither failures, escalation nor user names to remember
+     */
+    boolean isEmpty()
+    {
+        return failures == 0 && level == 0 && distinctUsers == null;
+    }
+
+    /**
+     * forget about all failures.
+     */
+    void reset()
+    {
+        failures = 0;
+    }
+}
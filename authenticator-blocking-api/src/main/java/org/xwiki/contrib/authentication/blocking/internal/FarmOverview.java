@@ -0,0 +1,191 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.internal;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.authentication.blocking.BlockedIPInformation;
+import org.xwiki.contrib.authentication.blocking.BlockedOverview;
+import org.xwiki.contrib.authentication.blocking.BlockedUserInformation;
+import org.xwiki.contrib.authentication.blocking.internal.BlockingAuthConfiguration.Config;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.SpaceReference;
+import org.xwiki.model.reference.WikiReference;
+
+/**
+ * Collects the users and IPs blocked in all wikis of the farm.
+ * <p>
+ * The configuration of each wiki is looked up first, in the calling thread, as loading it needs the XWiki context.
+ * Then the blocked users and IPs of each wiki are collected in parallel, each under the lock of its own
+ * {@link WikiShard} only, and merged into one list of users and one of IPs, latest attempts first.
+ * A wiki blocking many clients thus never stalls the logins to the other wikis.
+ *
+ * @version $Id$
+ * @since 2.0
+ */
+@Component(roles = { FarmOverview.class })
+@Singleton
+public class FarmOverview
+{
+    private static final String XWIKI_SPACE = "XWiki";
+
+    private static final Comparator<BlockedUserInformation> USERS_LATEST_FIRST =
+        Comparator.comparing(BlockedUserInformation::getLastAttempt).reversed()
+            .thenComparing(info -> info.getUserReference().getWikiReference().getName())
+            .thenComparing(info -> info.getUserReference().getName());
+
+    private static final Comparator<BlockedIPInformation> IPS_LATEST_FIRST =
+        Comparator.comparing(BlockedIPInformation::getLastAttempt).reversed()
+            .thenComparing(BlockedIPInformation::getWikiId).thenComparing(BlockedIPInformation::getIp);
+
+    /**
+     * the blocked users and IPs of one wiki.
+     */
+    private static final class WikiSummary
+    {
+        private final String wikiId;
+
+        private final WikiShard shard;
+
+        private final Config config;
+
+        private final List<BlockedUserInformation> users = new ArrayList<>();
+
+        private final List<BlockedIPInformation> ips = new ArrayList<>();
+
+        WikiSummary(String wikiId, WikiShard shard, Config config)
+        {
+            this.wikiId = wikiId;
+            this.shard = shard;
+            this.config = config;
+        }
+
+        WikiSummary collect(long now)
+        {
+            final SpaceReference xwikiSpaceRef = new SpaceReference(XWIKI_SPACE, new WikiReference(wikiId));
+            for (Entry<String, Long> entry : shard.getBlockedUsers(config.maxUserAttempts, now).entrySet()) {
+                BlockedUserInformation userInfo = new BlockedUserInformation();
+                userInfo.setUserReference(new DocumentReference(entry.getKey(), xwikiSpaceRef));
+                userInfo.setLastAttempt(new Date(entry.getValue()));
+                users.add(userInfo);
+            }
+            for (Entry<String, Long> entry : shard.getBlockedIPs(config, now).entrySet()) {
+                BlockedIPInformation ipInfo = new BlockedIPInformation();
+                ipInfo.setIp(entry.getKey());
+                ipInfo.setWikiId(wikiId);
+                ipInfo.setLastAttempt(new Date(entry.getValue()));
+                ips.add(ipInfo);
+            }
+            return this;
+        }
+    }
+
+    @Inject
+    private WikiShards shards;
+
+    @Inject
+    private BlockingAuthConfiguration configProvider;
+
+    @Inject
+    private BlockingClock clock;
+
+    /**
+     * get one page of the users and IPs blocked in any wiki, together with the number of blocks of each wiki.
+     * the same page of both lists is returned.
+     *
+     * @param offset
+     *            the number of users and IPs to skip
+     * @param limit
+     *            the maximal number of users and IPs to return; zero or less to return all
+     * @return the users and IPs, never null
+     */
+    public BlockedOverview getOverview(int offset, int limit)
+    {
+        final List<WikiSummary> summaries = new ArrayList<>();
+        for (Entry<String, WikiShard> entry : new ArrayList<>(shards.getShards().entrySet())) {
+            summaries.add(new WikiSummary(entry.getKey(), entry.getValue(), configProvider.getConfig(entry.getKey())));
+        }
+
+        final long now = clock.millis();
+        final List<WikiSummary> collected =
+            summaries.parallelStream().map(summary -> summary.collect(now)).collect(Collectors.toList());
+
+        final List<BlockedUserInformation> users = new ArrayList<>();
+        final List<BlockedIPInformation> ips = new ArrayList<>();
+        final Map<String, Integer> usersByWiki = new TreeMap<>();
+        final Map<String, Integer> ipsByWiki = new TreeMap<>();
+        for (WikiSummary summary : collected) {
+            users.addAll(summary.users);
+            ips.addAll(summary.ips);
+            if (!summary.users.isEmpty()) {
+                usersByWiki.put(summary.wikiId, summary.users.size());
+            }
+            if (!summary.ips.isEmpty()) {
+                ipsByWiki.put(summary.wikiId, summary.ips.size());
+            }
+        }
+        users.sort(USERS_LATEST_FIRST);
+        ips.sort(IPS_LATEST_FIRST);
+
+        final BlockedOverview overview = new BlockedOverview();
+        overview.setUsers(page(users, offset, limit));
+        overview.setIPs(page(ips, offset, limit));
+        overview.setTotalUsers(users.size());
+        overview.setTotalIPs(ips.size());
+        overview.setBlockedUsersByWiki(usersByWiki);
+        overview.setBlockedIPsByWiki(ipsByWiki);
+        return overview;
+    }
+
+    private static <T> List<T> page(List<T> all, int offset, int limit)
+    {
+        final int from = Math.min(Math.max(offset, 0), all.size());
+        final int to = limit > 0 ? (int) Math.min((long) from + limit, all.size()) : all.size();
+        return new ArrayList<>(all.subList(from, to));
+    }
+
+    /**
+     * only for tests.
+     *
+     * @param wikiShards
+     *            the blocking data of all wikis
+     * @param config
+     *            the config provider
+     * @param blockingClock
+     *            the clock
+     */
+    void setComponents(WikiShards wikiShards, BlockingAuthConfiguration config, BlockingClock blockingClock)
+    {
+        this.shards = wikiShards;
+        this.configProvider = config;
+        this.clock = blockingClock;
+    }
+}
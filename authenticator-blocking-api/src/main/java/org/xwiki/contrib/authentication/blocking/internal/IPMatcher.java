@@ -0,0 +1,338 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.internal;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Matches IPs against a list of single addresses, CIDR ranges like {@code 10.0.0.0/8} or {@code fd00::/8},
+ * and ranges like {@code 192.168.1.10-192.168.1.20}.
+ * <p>
+ * Single addresses are compared as strings first, so the common case does not need to parse the IP.
+ * Only literal addresses are accepted; entries which are no valid address or range are ignored,
+ * so that no DNS lookup ever happens.
+ *
+ * @version $Id$
+ * @since 2.0
+ */
+final class IPMatcher
+{
+    /** a matcher which matches nothing. */
+    static final IPMatcher EMPTY = new IPMatcher(null);
+
+    private static final char PREFIX_SEPARATOR = '/';
+
+    private static final char RANGE_SEPARATOR = '-';
+
+    private final Set<String> source;
+
+    private final int sourceSize;
+
+    private final Set<String> addresses = new HashSet<>();
+
+    /** the single addresses once more, to compare them with a part of a string without a lookup. */
+    private String[] addressArray = new String[0];
+
+    private final List<byte[]> rangeStarts = new ArrayList<>();
+
+    private final List<byte[]> rangeEnds = new ArrayList<>();
+
+    private IPMatcher(Set<String> source)
+    {
+        this.source = source;
+        this.sourceSize = source == null ? 0 : source.size();
+    }
+
+    /**
+     * create a matcher for the given entries.
+     *
+     * @param entries
+     *            the single addresses and CIDR ranges; may be null
+     * @return a new matcher
+     */
+    static IPMatcher compile(Set<String> entries)
+    {
+        final IPMatcher matcher = new IPMatcher(entries);
+        for (String entry : entries == null ? Collections.<String>emptySet() : entries) {
+            matcher.addEntry(entry.trim());
+        }
+        matcher.addressArray = matcher.addresses.toArray(matcher.addressArray);
+        return matcher;
+    }
+
+    /**
+     * check if this matcher has been created from the given entries, and these have not been changed since.
+     *
+     * @param entries
+     *            the entries
+     * @return true if the matcher is still up to date
+     */
+    boolean isCompiledFrom(Set<String> entries)
+    {
+        return source == entries && sourceSize == (entries == null ? 0 : entries.size());
+    }
+
+    /**
+     * @return true if no address can match
+     */
+    boolean isEmpty()
+    {
+        return addresses.isEmpty() && rangeStarts.isEmpty();
+    }
+
+    /**
+     * check if the given IP is one of the addresses or in one of the ranges.
+     * only IPs outside of the single addresses need to be parsed.
+     *
+     * @param ip
+     *            the IP; IPv6 addresses may be enclosed in brackets
+     * @return true if the IP matches
+     */
+    boolean matches(String ip)
+    {
+        if (ip == null || isEmpty()) {
+            return false;
+        }
+        if (addresses.contains(ip)) {
+            return true;
+        }
+        return !rangeStarts.isEmpty() && inRange(parse(ip));
+    }
+
+    /**
+     * check if a part of a string, like an address in a forwarded header, matches. this is the same as
+     * {@link #matches(String)} with the substring, but no substring is created for IPv4 addresses.
+     *
+     * @param value
+     *            the string holding the IP
+     * @param from
+     *            the index of the first character of the IP
+     * @param to
+     *            the index after the last character of the IP
+     * @return true if the IP matches
+     */
+    boolean matches(String value, int from, int to)
+    {
+        if (from == 0 && to == value.length()) {
+            return matches(value);
+        }
+        if (isEmpty() || from >= to) {
+            return false;
+        }
+        final int length = to - from;
+        for (String address : addressArray) {
+            if (address.length() == length && value.regionMatches(from, address, 0, length)) {
+                return true;
+            }
+        }
+        return !rangeStarts.isEmpty() && inRange(parse(value, from, to));
+    }
+
+    private boolean inRange(byte[] address)
+    {
+        if (address == null) {
+            return false;
+        }
+        for (int i = 0; i < rangeStarts.size(); i++) {
+            if (compare(rangeStarts.get(i), address) <= 0 && compare(address, rangeEnds.get(i)) <= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void addEntry(String entry)
+    {
+        if (entry.isEmpty()) {
+            return;
+        }
+        final int rangeSeparator = entry.indexOf(RANGE_SEPARATOR);
+        if (rangeSeparator > 0) {
+            final byte[] first = parse(entry.substring(0, rangeSeparator).trim());
+            final byte[] last = parse(entry.substring(rangeSeparator + 1).trim());
+            if (first != null && last != null && first.length == last.length && compare(first, last) <= 0) {
+                addRange(first, last);
+            }
+            return;
+        }
+        final int separator = entry.indexOf(PREFIX_SEPARATOR);
+        final String address = separator < 0 ? entry : entry.substring(0, separator);
+        final byte[] network = parse(address);
+        if (separator < 0) {
+            addresses.add(entry);
+            if (network != null && network.length > 4) {
+                // IPv6 addresses have many spellings; match them by value as well
+                addRange(network, network);
+            }
+            return;
+        }
+        if (network == null) {
+            return;
+        }
+        try {
+            final int prefix = Integer.parseInt(entry.substring(separator + 1).trim());
+            if (prefix >= 0 && prefix <= network.length * 8) {
+                addNetwork(network, prefix);
+            }
+        } catch (NumberFormatException e) {
+            // not a range; ignore
+        }
+    }
+
+    private void addNetwork(byte[] network, int prefix)
+    {
+        final byte[] first = network.clone();
+        final byte[] last = network.clone();
+        for (int i = 0; i < network.length; i++) {
+            final int bits = Math.max(0, Math.min(8, prefix - i * 8));
+            final int mask = (0xFF00 >> bits) & 0xFF;
+            first[i] = (byte) (network[i] & mask);
+            last[i] = (byte) (network[i] | ~mask);
+        }
+        addRange(first, last);
+    }
+
+    private void addRange(byte[] first, byte[] last)
+    {
+        rangeStarts.add(first);
+        rangeEnds.add(last);
+    }
+
+    /**
+     * compare two addresses as unsigned numbers; addresses of different length are ordered by length,
+     * so IPv4 addresses never fall into IPv6 ranges and vice versa.
+     */
+    private static int compare(byte[] address1, byte[] address2)
+    {
+        if (address1.length != address2.length) {
+            return address1.length - address2.length;
+        }
+        for (int i = 0; i < address1.length; i++) {
+            final int diff = (address1[i] & 0xFF) - (address2[i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * parse a literal IP address without any name lookup.
+     *
+     * @param ip
+     *            the address, IPv6 addresses optionally in brackets
+     * @return the bytes of the address, or null if this is not a literal address
+     */
+    static byte[] parse(String ip)
+    {
+        return parse(ip, 0, ip.length());
+    }
+
+    /**
+     * parse a literal IP address in a part of a string; IPv4 addresses are parsed without a substring.
+     */
+    private static byte[] parse(String value, int start, int end)
+    {
+        int from = start;
+        int to = end;
+        if (to - from > 2 && value.charAt(from) == '[' && value.charAt(to - 1) == ']') {
+            from++;
+            to--;
+        }
+        final int colon = value.indexOf(':', from);
+        if (colon < 0 || colon >= to) {
+            return parseIPv4(value, from, to);
+        }
+        for (int i = from; i < to; i++) {
+            char c = value.charAt(i);
+            if (!(c == ':' || c == '.' || Character.digit(c, 16) >= 0)) {
+                // also rejects zone ids, which would need a lookup of the interface
+                return null;
+            }
+        }
+        try {
+            return InetAddress.getByName(value.substring(from, to)).getAddress();
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    /**
+     * get the subnet of an address, which is counted as a single client for the failures per subnet:
+     * the /24 network for IPv4 addresses, and the /64 network for IPv6 addresses.
+     *
+     * @param ip
+     *            the client IP
+     * @return the subnet in CIDR notation, or null if the IP is not a literal address
+     */
+    static String subnet(String ip)
+    {
+        final byte[] address = ip == null ? null : parse(ip);
+        if (address == null) {
+            return null;
+        }
+        final StringBuilder subnet = new StringBuilder();
+        if (address.length == 4) {
+            for (int i = 0; i < 3; i++) {
+                subnet.append(address[i] & 0xFF).append('.');
+            }
+            return subnet.append("0/24").toString();
+        }
+        for (int i = 0; i < 8; i += 2) {
+            subnet.append(Integer.toHexString(((address[i] & 0xFF) << 8) | (address[i + 1] & 0xFF))).append(':');
+        }
+        return subnet.append(":/64").toString();
+    }
+
+    private static byte[] parseIPv4(String ip, int from, int to)
+    {
+        final byte[] address = new byte[4];
+        int part = 0;
+        int value = -1;
+        for (int i = from; i < to; i++) {
+            char c = ip.charAt(i);
+            if (c == '.') {
+                if (value < 0 || part == 3) {
+                    return null;
+                }
+                address[part++] = (byte) value;
+                value = -1;
+            } else if (c >= '0' && c <= '9') {
+                value = (value < 0 ? 0 : value * 10) + (c - '0');
+                if (value > 255) {
+                    return null;
+                }
+            } else {
+                return null;
+            }
+        }
+        if (value < 0 || part != 3) {
+            return null;
+        }
+        address[part] = (byte) value;
+        return address;
+    }
+}
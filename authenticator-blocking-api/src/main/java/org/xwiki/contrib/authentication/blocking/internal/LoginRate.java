@@ -0,0 +1,112 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.internal;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Measures the rate of failed logins for a wiki over the last few seconds.
+ * <p>
+ * The failures are counted in one bucket per second; the buckets are reused round robin.
+ * Updates are lock free, as the meter is hit by every failed login of a wiki, and the
+ * rate is only needed approximately: a failure counted while its bucket is being reset may get lost.
+ *
+ * @version $Id$
+ * @since 2.0
+ */
+final class LoginRate
+{
+    /** the number of seconds over which the rate is averaged. */
+    static final int SECONDS = 10;
+
+    private static final long SECOND = 1000L;
+
+    /** the second each bucket currently counts. */
+    private final AtomicLongArray seconds = new AtomicLongArray(SECONDS);
+
+    private final AtomicIntegerArray counts = new AtomicIntegerArray(SECONDS);
+
+    private volatile boolean open;
+
+    /**
+     * count a failed login.
+     *
+     * @param timestamp
+     *            the time of the failure, in milliseconds
+     */
+    void add(long timestamp)
+    {
+        final long second = timestamp / SECOND;
+        final int bucket = (int) (second % SECONDS);
+        final long current = seconds.get(bucket);
+        if (current != second && seconds.compareAndSet(bucket, current, second)) {
+            counts.set(bucket, 0);
+        }
+        counts.incrementAndGet(bucket);
+    }
+
+    /**
+     * get the number of failures in the last {@link #SECONDS} seconds.
+     *
+     * @param now
+     *            the current time, in milliseconds
+     * @return the number of failures
+     */
+    int count(long now)
+    {
+        final long oldest = now / SECOND - SECONDS;
+        int count = 0;
+        for (int bucket = 0; bucket < SECONDS; bucket++) {
+            if (seconds.get(bucket) > oldest) {
+                count += counts.get(bucket);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * check if the average rate of failures exceeds a threshold.
+     *
+     * @param now
+     *            the current time, in milliseconds
+     * @param maxPerSecond
+     *            the maximal number of failures per second
+     * @return true if there have been more failures
+     */
+    boolean isExceeded(long now, int maxPerSecond)
+    {
+        return count(now) > (long) maxPerSecond * SECONDS;
+    }
+
+    /**
+     * remember if the circuit breaker for the wiki is open.
+     *
+     * @param newState
+     *            true if the circuit breaker is open now
+     * @return true if the state changed
+     */
+    boolean setOpen(boolean newState)
+    {
+        final boolean changed = open != newState;
+        open = newState;
+        return changed;
+    }
+}
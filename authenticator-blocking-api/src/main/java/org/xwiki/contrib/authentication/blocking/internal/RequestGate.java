@@ -0,0 +1,331 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.internal;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.lang3.StringUtils;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.authentication.blocking.filter.BlockingAuthFilter;
+
+/**
+ * Keeps track of login attempts which should be slowed down before they even reach XWiki.
+ * <p>
+ * The table is filled by the {@link BlockingAuthServiceImpl} when it rejects a login attempt
+ * for a blocked user or IP, and consulted by the {@link BlockingAuthFilter}, which then delays
+ * the response to further login attempts of the same IP (and user) without holding a request thread.
+ * Each further attempt doubles the delay, up to the configured maximum.
+ * <p>
+ * Additionally the gate keeps the time until which blocked IPs are blocked, so that the filter can
+ * reject their login attempts at once, if enabled.
+ *
+ * @version $Id$
+ * @since 2.0
+ */
+@Component(roles = { RequestGate.class })
+@Singleton
+public class RequestGate
+{
+    private static final char KEY_SEPARATOR = ' ';
+
+    private static final String SEPARATOR = String.valueOf(KEY_SEPARATOR);
+
+    /**
+     * maximal number of tarpit entries; if the table is full new entries are dropped.
+     */
+    private static final int MAX_ENTRIES = 10000;
+
+    private static final class TarpitEntry
+    {
+        private final long baseDelay;
+
+        private final long maxDelay;
+
+        private volatile long until;
+
+        private final AtomicLong delay = new AtomicLong();
+
+        TarpitEntry(long baseDelay, long maxDelay)
+        {
+            this.baseDelay = baseDelay;
+            this.maxDelay = maxDelay;
+        }
+
+        long nextDelay()
+        {
+            return delay.getAndUpdate(current -> (current >= maxDelay / 2) ? maxDelay : current * 2);
+        }
+    }
+
+    private final Map<String, TarpitEntry> entries = new ConcurrentHashMap<>();
+
+    /** the time until which an IP is blocked, in milliseconds. */
+    private final Map<String, Long> blockedIPs = new ConcurrentHashMap<>();
+
+    private volatile IPMatcher trustedProxies = IPMatcher.EMPTY;
+
+    @Inject
+    private BlockingClock clock;
+
+    /**
+     * constructor. uses the system clock until another one is injected.
+     */
+    public RequestGate()
+    {
+        clock = new BlockingClock();
+    }
+
+    /**
+     * check quickly if there are any requests to slow down at all.
+     *
+     * @return true if no IP is currently tarpitted
+     */
+    public boolean isEmpty()
+    {
+        return entries.isEmpty();
+    }
+
+    /**
+     * slow down further login attempts from the given IP.
+     *
+     * @param ip
+     *            the IP to slow down
+     * @param username
+     *            the user name for which attempts should be slowed down; if null, all attempts of the IP are
+     * @param baseDelay
+     *            the delay for the first further attempt, in milliseconds
+     * @param maxDelay
+     *            the maximal delay, in milliseconds
+     * @param duration
+     *            how long the attempts should be slowed down, in milliseconds
+     */
+    public void tarpit(String ip, String username, long baseDelay, long maxDelay, long duration)
+    {
+        if (ip == null || baseDelay <= 0) {
+            return;
+        }
+        final String key = key(ip, username);
+        final long now = clock.millis();
+        TarpitEntry entry = entries.get(key);
+        if (entry == null || entry.until < now) {
+            if (entries.size() >= MAX_ENTRIES) {
+                purgeExpired(now);
+                if (entries.size() >= MAX_ENTRIES) {
+                    return;
+                }
+            }
+            entry = new TarpitEntry(baseDelay, Math.max(baseDelay, maxDelay));
+            entry.delay.set(baseDelay);
+            entries.put(key, entry);
+        }
+        entry.until = now + Math.max(duration, entry.baseDelay);
+    }
+
+    /**
+     * get the delay to apply to a login attempt, and escalate the delay for the next attempt.
+     *
+     * @param ip
+     *            the client IP of the attempt
+     * @param username
+     *            the user name used for the attempt, might be null
+     * @return the delay in milliseconds, or zero if the attempt should not be slowed down
+     */
+    public long nextDelay(String ip, String username)
+    {
+        if (ip == null) {
+            return 0L;
+        }
+        final long now = clock.millis();
+        long delay = nextDelay(ip, now);
+        if (delay == 0L && username != null) {
+            delay = nextDelay(key(ip, username), now);
+        }
+        return delay;
+    }
+
+    private long nextDelay(String key, long now)
+    {
+        TarpitEntry entry = entries.get(key);
+        if (entry == null) {
+            return 0L;
+        }
+        if (entry.until < now) {
+            entries.remove(key, entry);
+            return 0L;
+        }
+        return entry.nextDelay();
+    }
+
+    /**
+     * check quickly if there are any blocked IPs at all.
+     *
+     * @return true if there is any blocked IP
+     */
+    public boolean hasBlockedIPs()
+    {
+        return !blockedIPs.isEmpty();
+    }
+
+    /**
+     * record that an IP is blocked.
+     *
+     * @param ip
+     *            the blocked IP
+     * @param until
+     *            the time until which the IP is blocked, in milliseconds
+     */
+    public void block(String ip, long until)
+    {
+        if (ip == null) {
+            return;
+        }
+        if (blockedIPs.size() >= MAX_ENTRIES && !blockedIPs.containsKey(ip)) {
+            final long now = clock.millis();
+            blockedIPs.values().removeIf(time -> time <= now);
+            if (blockedIPs.size() >= MAX_ENTRIES) {
+                return;
+            }
+        }
+        blockedIPs.merge(ip, until, Math::max);
+    }
+
+    /**
+     * get the time until which an IP is blocked.
+     *
+     * @param ip
+     *            the client IP
+     * @param now
+     *            the current time, in milliseconds
+     * @return the time in milliseconds, or zero if the IP is not blocked
+     */
+    public long getBlockedUntil(String ip, long now)
+    {
+        if (ip == null) {
+            return 0L;
+        }
+        final Long until = blockedIPs.get(ip);
+        if (until == null) {
+            return 0L;
+        }
+        if (until <= now) {
+            blockedIPs.remove(ip, until);
+            return 0L;
+        }
+        return until;
+    }
+
+    /**
+     * stop slowing down attempts for a user name, from whatever IP.
+     *
+     * @param username
+     *            the user name
+     */
+    public void releaseUser(String username)
+    {
+        if (username == null) {
+            return;
+        }
+        final String suffix = KEY_SEPARATOR + username;
+        entries.keySet().removeIf(key -> key.endsWith(suffix));
+    }
+
+    /**
+     * stop slowing down and blocking attempts from an IP, for whatever user name.
+     *
+     * @param ip
+     *            the IP, or a subnet in CIDR notation
+     */
+    public void releaseIP(String ip)
+    {
+        if (ip == null) {
+            return;
+        }
+        if (ip.indexOf('/') > 0) {
+            final IPMatcher subnet = IPMatcher.compile(Collections.singleton(ip));
+            entries.keySet().removeIf(key -> subnet.matches(StringUtils.substringBefore(key, SEPARATOR)));
+            blockedIPs.keySet().removeIf(subnet::matches);
+            return;
+        }
+        final String prefix = ip + KEY_SEPARATOR;
+        entries.keySet().removeIf(key -> key.equals(ip) || key.startsWith(prefix));
+        blockedIPs.remove(ip);
+    }
+
+    /**
+     * set the proxies whose forwarded-for header is trusted when determining the client IP.
+     *
+     * @param proxies
+     *            the IPs and CIDR ranges of the trusted proxies; null if there are none
+     */
+    public void setTrustedProxies(Set<String> proxies)
+    {
+        if (proxies != null && !trustedProxies.isCompiledFrom(proxies)) {
+            trustedProxies = IPMatcher.compile(proxies);
+        }
+    }
+
+    /**
+     * determine the client IP in the same way as {@link DefaultBlockedUserService} does,
+     * but without access to the configuration of the current wiki.
+     *
+     * @param request
+     *            the current request
+     * @return the client IP
+     */
+    public String getClientIP(HttpServletRequest request)
+    {
+        return ClientIP.get(request, trustedProxies);
+    }
+
+    private void purgeExpired(long now)
+    {
+        for (Iterator<Entry<String, TarpitEntry>> it = entries.entrySet().iterator(); it.hasNext();) {
+            if (it.next().getValue().until < now) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * only for tests.
+     *
+     * @param blockingClock
+     *            the clock
+     */
+    void setClock(BlockingClock blockingClock)
+    {
+        this.clock = blockingClock;
+    }
+
+    private static String key(String ip, String username)
+    {
+        return username == null ? ip : ip + KEY_SEPARATOR + username;
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.internal;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.slf4j.helpers.NOPLogger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.contrib.authentication.blocking.LoginAttempt;
+import org.xwiki.contrib.authentication.blocking.internal.BlockingAuthConfiguration.Config;
+
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * Evaluates the candidate configuration of a wiki in shadow mode, alongside the live one.
+ * <p>
+ * The candidate has its own failure counters, kept by a second {@link DefaultBlockedUserService} which neither
+ * audits nor sends events. Its decisions never block a login; they are only counted, per wiki, and compared
+ * with the live decisions and the outcome of the password check. The counters start over whenever the
+ * configuration is changed. Without a candidate configuration, the evaluation costs one lookup per login.
+ *
+ * @version $Id$
+ * @since 2.0
+ */
+@Component(roles = { ShadowEvaluation.class })
+@Singleton
+public class ShadowEvaluation implements Initializable
+{
+    /**
+     * the counters of the evaluation.
+     */
+    private enum Metric
+    {
+        /** the login attempts evaluated. */
+        ATTEMPTS("attempts"),
+
+        /** the attempts refused by the live configuration. */
+        LIVE_REFUSED("liveRefused"),
+
+        /** the attempts the candidate would have refused. */
+        SHADOW_REFUSED("shadowRefused"),
+
+        /** the logins with the right password the candidate would have refused. */
+        LOGINS_REFUSED("loginsRefused"),
+
+        /** the failed logins the candidate would have refused, but the live configuration has not. */
+        FAILURES_REFUSED("failuresRefused"),
+
+        /** the attempts refused by the live configuration which the candidate would have let through. */
+        REFUSALS_LIFTED("refusalsLifted");
+
+        private final String key;
+
+        Metric(String key)
+        {
+            this.key = key;
+        }
+    }
+
+    /**
+     * the attribute of the live login attempt holding the state of the evaluation.
+     */
+    private static final String SHADOW = "blockingauth.shadow";
+
+    /**
+     * the counters of a wiki, for one candidate configuration.
+     */
+    private static final class Metrics
+    {
+        private final Config candidate;
+
+        private final LongAdder[] counters = new LongAdder[Metric.values().length];
+
+        Metrics(Config candidate)
+        {
+            this.candidate = candidate;
+            for (int i = 0; i < counters.length; i++) {
+                counters[i] = new LongAdder();
+            }
+        }
+
+        void increment(Metric metric)
+        {
+            counters[metric.ordinal()].increment();
+        }
+    }
+
+    /**
+     * the evaluation of one login attempt.
+     */
+    private static final class Evaluation
+    {
+        private final LoginAttempt attempt;
+
+        private final Metrics metrics;
+
+        private final boolean liveRefused;
+
+        private final boolean shadowRefused;
+
+        Evaluation(LoginAttempt attempt, Metrics metrics, boolean liveRefused, boolean shadowRefused)
+        {
+            this.attempt = attempt;
+            this.metrics = metrics;
+            this.liveRefused = liveRefused;
+            this.shadowRefused = shadowRefused;
+        }
+    }
+
+    @Inject
+    private BlockingAuthConfiguration configProvider;
+
+    @Inject
+    private Provider<XWikiContext> contextProvider;
+
+    @Inject
+    private TimingWheel wheel;
+
+    @Inject
+    private Logger logger;
+
+    private final Map<String, Metrics> metricsPerWiki = new ConcurrentHashMap<>();
+
+    private final WikiShards shards = new WikiShards();
+
+    private final DefaultBlockedUserService service = new DefaultBlockedUserService();
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        shards.setTimingWheel(wheel, null);
+        service.setShards(shards);
+        service.setContextProvider(contextProvider);
+        // the decisions of the candidate are only counted, not logged
+        service.setLogger(NOPLogger.NOP_LOGGER);
+        service.setConfig(new BlockingAuthConfiguration()
+        {
+            @Override
+            public Config getConfig()
+            {
+                return candidate(configProvider.getConfig());
+            }
+
+            @Override
+            public Config getConfig(String wikiId)
+            {
+                return candidate(configProvider.getConfig(wikiId));
+            }
+        });
+    }
+
+    /**
+     * the candidate configuration; for a wiki without a candidate, the live configuration of the wiki.
+     */
+    private static Config candidate(Config config)
+    {
+        return config.shadow == null ? config : config.shadow;
+    }
+
+    /**
+     * evaluate a login attempt with the candidate configuration, if any.
+     *
+     * @param attempt
+     *            the attempt, as already checked with the live configuration
+     * @param liveReason
+     *            the reason why the live configuration refuses the attempt, or null if it does not
+     */
+    public void check(LoginAttempt attempt, String liveReason)
+    {
+        final String wikiId = attempt.getContext().getWikiId();
+        final Config candidate = configProvider.getConfig(wikiId).shadow;
+        if (candidate == null) {
+            return;
+        }
+        final Metrics metrics = getMetrics(wikiId, candidate);
+
+        // the user has been looked up already; the client has to be checked again, e.g. for another whitelist
+        final LoginAttempt shadowAttempt =
+            new LoginAttempt(attempt.getUsername(), attempt.getContext(), attempt.getTimestamp());
+        shadowAttempt.setUserKey(attempt.getUserKey());
+        shadowAttempt.setUserWikiId(attempt.getUserWikiId());
+        final boolean shadowRefused = service.checkLogin(shadowAttempt) != null;
+
+        metrics.increment(Metric.ATTEMPTS);
+        if (liveReason != null) {
+            metrics.increment(Metric.LIVE_REFUSED);
+        }
+        if (shadowRefused) {
+            metrics.increment(Metric.SHADOW_REFUSED);
+        }
+        attempt.setAttribute(SHADOW, new Evaluation(shadowAttempt, metrics, liveReason != null, shadowRefused));
+    }
+
+    /**
+     * record a failed or refused login attempt with the candidate configuration.
+     *
+     * @param attempt
+     *            the attempt, as passed to {@link #check(LoginAttempt, String)} before
+     */
+    public void recordFailure(LoginAttempt attempt)
+    {
+        final Evaluation evaluation = (Evaluation) attempt.getAttribute(SHADOW);
+        if (evaluation == null) {
+            return;
+        }
+        service.addFailedLogin(evaluation.attempt);
+        if (evaluation.liveRefused && !evaluation.shadowRefused) {
+            evaluation.metrics.increment(Metric.REFUSALS_LIFTED);
+        } else if (!evaluation.liveRefused && evaluation.shadowRefused) {
+            evaluation.metrics.increment(Metric.FAILURES_REFUSED);
+        }
+    }
+
+    /**
+     * record a successful login attempt with the candidate configuration.
+     *
+     * @param attempt
+     *            the attempt, as passed to {@link #check(LoginAttempt, String)} before
+     */
+    public void recordSuccess(LoginAttempt attempt)
+    {
+        final Evaluation evaluation = (Evaluation) attempt.getAttribute(SHADOW);
+        if (evaluation == null) {
+            return;
+        }
+        if (!evaluation.shadowRefused) {
+            service.addSuccessfulLogin(evaluation.attempt);
+            return;
+        }
+        // the candidate would have refused the login, and counted it as failure
+        service.addFailedLogin(evaluation.attempt);
+        evaluation.metrics.increment(Metric.LOGINS_REFUSED);
+    }
+
+    /**
+     * get the counters of the evaluation of the candidate configuration for a wiki.
+     *
+     * @param wikiId
+     *            the id of the wiki
+     * @return the counters by name, in a fixed order; empty if the wiki has no candidate configuration
+     */
+    public Map<String, Long> getMetrics(String wikiId)
+    {
+        final Config candidate = configProvider.getConfig(wikiId).shadow;
+        if (candidate == null) {
+            return Collections.emptyMap();
+        }
+        final Metrics metrics = getMetrics(wikiId, candidate);
+        final Map<String, Long> result = new LinkedHashMap<>();
+        for (Metric metric : Metric.values()) {
+            result.put(metric.key, metrics.counters[metric.ordinal()].sum());
+        }
+        return result;
+    }
+
+    private Metrics getMetrics(String wikiId, Config candidate)
+    {
+        final Metrics metrics = metricsPerWiki.get(wikiId);
+        if (metrics != null && metrics.candidate == candidate) {
+            return metrics;
+        }
+        final Metrics newMetrics = new Metrics(candidate);
+        if (metrics == null ? metricsPerWiki.putIfAbsent(wikiId, newMetrics) == null
+            : metricsPerWiki.replace(wikiId, metrics, newMetrics)) {
+            // a changed configuration; start over with the counters of the candidate as well
+            shards.releaseShard(wikiId);
+            logger.debug("started shadow evaluation for wiki [{}]", wikiId);
+            return newMetrics;
+        }
+        return getMetrics(wikiId, candidate);
+    }
+
+    /**
+     * forget the evaluation for a deleted wiki.
+     *
+     * @param wikiId
+     *            the id of the wiki
+     */
+    public void releaseWiki(String wikiId)
+    {
+        metricsPerWiki.remove(wikiId);
+        shards.releaseShard(wikiId);
+    }
+
+    /**
+     * only for tests.
+     *
+     * @param config
+     *            the config provider
+     * @param provider
+     *            the xwiki context provider
+     * @param timingWheel
+     *            the timing wheel expiring the failures
+     * @param log
+     *            the logger
+     */
+    void setComponents(BlockingAuthConfiguration config, Provider<XWikiContext> provider, TimingWheel timingWheel,
+        Logger log)
+    {
+        this.configProvider = config;
+        this.contextProvider = provider;
+        this.wheel = timingWheel;
+        this.logger = log;
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.internal;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+
+/**
+ * A hashed timing wheel which expires the failures of all tracked users and IPs on schedule.
+ * <p>
+ * The wheel has a fixed number of slots, each covering one tick; a task is put into the slot of its deadline,
+ * with the number of full turns of the wheel still to wait. Scheduling and expiring a task is O(1).
+ * New tasks are queued by the request threads and only moved into the slots by the single thread
+ * turning the wheel, so the slots need no locking. A task may return a new deadline to be scheduled again.
+ * Simulations can turn the wheel in virtual time by calling {@link #advance(long)} directly.
+ *
+ * @version $Id$
+ * @since 2.0
+ */
+@Component(roles = { TimingWheel.class })
+@Singleton
+public class TimingWheel implements Initializable, Disposable
+{
+    /** the duration of a tick, in milliseconds. */
+    static final long TICK = 1000L;
+
+    /** the number of slots; a power of two. */
+    private static final int SLOTS = 512;
+
+    /**
+     * a task to run at its deadline.
+     */
+    interface Task
+    {
+        /**
+         * run the task.
+         *
+         * @param now
+         *            the current time, in milliseconds
+         * @return the time to run the task again, in milliseconds, or zero if the task is done
+         */
+        long run(long now);
+
+        /**
+         * @return true if the task does not need to run any more, and can be dropped before its deadline
+         */
+        boolean isCancelled();
+    }
+
+    private static final class Timeout
+    {
+        private final Task task;
+
+        private final long deadline;
+
+        private long rounds;
+
+        Timeout(Task task, long deadline)
+        {
+            this.task = task;
+            this.deadline = deadline;
+        }
+    }
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private BlockingClock clock;
+
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+
+    private final Queue<Timeout>[] slots;
+
+    /** held while turning the wheel; the tasks take the locks of the shards meanwhile. */
+    private final Lock lock = new ReentrantLock();
+
+    /** the number of the next tick to process, counted from the start time. */
+    private long tick;
+
+    private volatile long startTime = -1L;
+
+    private ScheduledExecutorService executor;
+
+    /**
+     * constructor. creates the empty wheel; the wheel starts turning when the component is initialized.
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheel()
+    {
+        slots = new Queue[SLOTS];
+        for (int i = 0; i < SLOTS; i++) {
+            slots[i] = new ArrayDeque<>();
+        }
+    }
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Blocking authenticator expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(() -> {
+            try {
+                advance(clock.millis());
+            } catch (RuntimeException e) {
+                logger.warn("failed to expire login failures", e);
+            }
+        }, TICK, TICK, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void dispose()
+    {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * schedule a task. this never blocks.
+     *
+     * @param deadline
+     *            the time to run the task, in milliseconds; the task runs at the first tick after this time
+     * @param task
+     *            the task
+     */
+    void schedule(long deadline, Task task)
+    {
+        pending.add(new Timeout(task, deadline));
+    }
+
+    /**
+     * turn the wheel up to the given time, and run all tasks which are due.
+     * only called by the thread turning the wheel, and by the tests.
+     *
+     * @param now
+     *            the current time, in milliseconds
+     */
+    void advance(long now)
+    {
+        lock.lock();
+        try {
+            if (startTime < 0L) {
+                startTime = now;
+            }
+            final long lastTick = (now - startTime) / TICK;
+            while (tick <= lastTick) {
+                transferPending();
+                final Iterator<Timeout> timeouts = slots[(int) (tick & (SLOTS - 1))].iterator();
+                while (timeouts.hasNext()) {
+                    final Timeout timeout = timeouts.next();
+                    if (timeout.task.isCancelled()) {
+                        timeouts.remove();
+                    } else if (timeout.rounds > 0) {
+                        timeout.rounds--;
+                    } else {
+                        timeouts.remove();
+                        run(timeout, now);
+                    }
+                }
+                tick++;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void run(Timeout timeout, long now)
+    {
+        long next;
+        try {
+            next = timeout.task.run(now);
+        } catch (RuntimeException e) {
+            logger.warn("failed to run expiry task [{}]", timeout.task, e);
+            next = 0L;
+        }
+        if (next > 0L) {
+            schedule(next, timeout.task);
+        }
+    }
+
+    private void transferPending()
+    {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            final long deadlineTick = Math.max((timeout.deadline - startTime + TICK - 1) / TICK, tick);
+            timeout.rounds = (deadlineTick - tick) / SLOTS;
+            slots[(int) (deadlineTick & (SLOTS - 1))].add(timeout);
+        }
+    }
+}
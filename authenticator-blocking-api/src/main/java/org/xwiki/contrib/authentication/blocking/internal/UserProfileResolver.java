@@ -0,0 +1,253 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.authentication.blocking.BlockedUserInformation;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+
+/**
+ * Resolves if blocked users exist, and their names to show, for a whole list of users at once.
+ * <p>
+ * The users not in the cache are looked up with one query per wiki, in chunks of at most {@value #CHUNK_SIZE}
+ * names, instead of loading the profile of each user. The results are cached for a short time only,
+ * so a new or deleted user shows up correctly when the list is shown again a bit later.
+ *
+ * @version $Id$
+ * @since 2.0
+ */
+@Component(roles = { UserProfileResolver.class })
+@Singleton
+public class UserProfileResolver
+{
+    /** the time to cache the data of a user, in milliseconds. */
+    static final long CACHE_TIME = 60000L;
+
+    /** the maximal number of user names in one query. */
+    private static final int CHUNK_SIZE = 500;
+
+    private static final String NAMES = "names";
+
+    /**
+     * the users only need the object of the XWikiUsers class to exist; the names are looked up by subqueries,
+     * as a join would drop the users without a first or last name property.
+     */
+    private static final String STATEMENT = "select doc.name, "
+        + "(select firstName.value from StringProperty firstName "
+        + "where firstName.id.id = obj.id and firstName.id.name = 'first_name'), "
+        + "(select lastName.value from StringProperty lastName "
+        + "where lastName.id.id = obj.id and lastName.id.name = 'last_name') "
+        + "from XWikiDocument doc, BaseObject obj "
+        + "where doc.space = 'XWiki' and doc.name in (:" + NAMES + ") and obj.name = doc.fullName "
+        + "and obj.className = 'XWiki.XWikiUsers'";
+
+    private static final char SEPARATOR = ':';
+
+    /**
+     * the cached data of a user.
+     */
+    private static final class Profile
+    {
+        private final boolean exists;
+
+        private final String displayName;
+
+        private final long until;
+
+        Profile(boolean exists, String displayName, long until)
+        {
+            this.exists = exists;
+            this.displayName = displayName;
+            this.until = until;
+        }
+    }
+
+    @Inject
+    private QueryManager queryManager;
+
+    @Inject
+    private BlockingClock clock;
+
+    @Inject
+    private Logger logger;
+
+    private final Lock lock = new ReentrantLock();
+
+    /**
+     * the cached users by wiki and name, in the order of expiry.
+     */
+    private final Map<String, Profile> profiles = new LinkedHashMap<String, Profile>()
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Entry<String, Profile> eldest)
+        {
+            return size() > WikiShard.DEFAULT_MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * set if the given users exist, and their names to show.
+     *
+     * @param users
+     *            the users to resolve; changed in place
+     * @return the given users
+     */
+    public List<BlockedUserInformation> resolve(List<BlockedUserInformation> users)
+    {
+        if (users == null || users.isEmpty()) {
+            return users;
+        }
+        final long now = clock.millis();
+        final Map<String, Set<String>> missing = new HashMap<>();
+        for (BlockedUserInformation user : users) {
+            final DocumentReference userRef = user.getUserReference();
+            final Profile profile = getCached(userRef, now);
+            if (profile == null) {
+                missing.computeIfAbsent(userRef.getWikiReference().getName(), wiki -> new LinkedHashSet<>())
+                    .add(userRef.getName());
+            } else {
+                user.setExistingUser(profile.exists);
+                user.setDisplayName(profile.displayName);
+            }
+        }
+
+        final Map<String, Profile> found = new HashMap<>();
+        for (Entry<String, Set<String>> wiki : missing.entrySet()) {
+            load(wiki.getKey(), new ArrayList<>(wiki.getValue()), now, found);
+        }
+        for (BlockedUserInformation user : users) {
+            final Profile profile = found.get(key(user.getUserReference()));
+            if (profile != null) {
+                user.setExistingUser(profile.exists);
+                user.setDisplayName(profile.displayName);
+            } else if (user.getDisplayName() == null) {
+                // could not be queried; do not cache this
+                user.setDisplayName(user.getUserReference().getName());
+            }
+        }
+        return users;
+    }
+
+    private Profile getCached(DocumentReference userRef, long now)
+    {
+        lock.lock();
+        try {
+            final Profile profile = profiles.get(key(userRef));
+            return profile != null && profile.until > now ? profile : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void load(String wikiId, List<String> names, long now, Map<String, Profile> found)
+    {
+        final Map<String, Profile> loaded = new HashMap<>();
+        for (int start = 0; start < names.size(); start += CHUNK_SIZE) {
+            final List<String> chunk = names.subList(start, Math.min(start + CHUNK_SIZE, names.size()));
+            final List<Object[]> rows;
+            try {
+                final Query query = queryManager.createQuery(STATEMENT, Query.HQL);
+                rows = query.setWiki(wikiId).bindValue(NAMES, chunk).execute();
+            } catch (QueryException e) {
+                logger.warn("failed to look up the blocked users of wiki [{}]", wikiId, e);
+                break;
+            }
+            final Set<String> existing = new LinkedHashSet<>();
+            for (Object[] row : rows) {
+                final String name = (String) row[0];
+                final String displayName = StringUtils.trimToEmpty(
+                    StringUtils.trimToEmpty((String) row[1]) + ' ' + StringUtils.trimToEmpty((String) row[2]));
+                existing.add(name);
+                loaded.put(key(wikiId, name), new Profile(true, displayName.isEmpty() ? name : displayName,
+                    now + CACHE_TIME));
+            }
+            for (String name : chunk) {
+                if (!existing.contains(name)) {
+                    loaded.put(key(wikiId, name), new Profile(false, name, now + CACHE_TIME));
+                }
+            }
+        }
+
+        found.putAll(loaded);
+        lock.lock();
+        try {
+            // re-insert to keep the map in the order of expiry, so expired entries can be dropped from the start
+            for (Entry<String, Profile> entry : loaded.entrySet()) {
+                profiles.remove(entry.getKey());
+                profiles.put(entry.getKey(), entry.getValue());
+            }
+            final Iterator<Profile> cached = profiles.values().iterator();
+            while (cached.hasNext() && cached.next().until <= now) {
+                cached.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static String key(DocumentReference userRef)
+    {
+        return key(userRef.getWikiReference().getName(), userRef.getName());
+    }
+
+    private static String key(String wikiId, String name)
+    {
+        return wikiId + SEPARATOR + name;
+    }
+
+    /**
+     * only for tests.
+     *
+     * @param manager
+     *            the query manager
+     * @param blockingClock
+     *            the clock
+     * @param log
+     *            the logger
+     */
+    void setComponents(QueryManager manager, BlockingClock blockingClock, Logger log)
+    {
+        this.queryManager = manager;
+        this.clock = blockingClock;
+        this.logger = log;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.internal;
+
+import java.util.Arrays;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.bridge.event.WikiDeletedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+
+/**
+ * Drops the blocking data and the cached configuration of a wiki when the wiki is deleted.
+ *
+ * @version $Id$
+ * @since 2.0
+ */
+@Component
+@Named(WikiDeletedListener.NAME)
+@Singleton
+public class WikiDeletedListener extends AbstractEventListener
+{
+    /**
+     * The name of the listener.
+     */
+    public static final String NAME = "org.xwiki.contrib.authentication.blocking.internal.WikiDeletedListener";
+
+    @Inject
+    private WikiShards shards;
+
+    @Inject
+    private BlockingAuthConfiguration config;
+
+    @Inject
+    private ShadowEvaluation shadowEvaluation;
+
+    @Inject
+    private Logger logger;
+
+    /**
+     * Constructor. Defines which events we listen to.
+     */
+    public WikiDeletedListener()
+    {
+        super(NAME, Arrays.asList(new WikiDeletedEvent()));
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        final String wikiId = ((WikiDeletedEvent) event).getWikiId();
+        if (shards.releaseShard(wikiId)) {
+            logger.debug("released blocking data for deleted wiki [{}]", wikiId);
+        }
+        shadowEvaluation.releaseWiki(wikiId);
+        config.flushCacheForWiki(new WikiReference(wikiId));
+    }
+}
@@ -0,0 +1,940 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.internal;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.xwiki.contrib.authentication.blocking.BlockingPolicy;
+import org.xwiki.contrib.authentication.blocking.internal.BlockingAuthConfiguration.Config;
+
+/**
+ * The failed logins recorded for a single wiki.
+ * <p>
+ * Each wiki has its own lock and its own limit for the number of tracked users and IPs,
+ * so that an attack on one wiki does not slow down or evict the data of the other wikis.
+ * If the limit is reached, the least recently used entry which is not blocked is dropped; entries which only
+ * remember the escalation level of a repeat offender are dropped last. If all entries are blocked, a small
+ * overflow beyond the limit keeps tracking new keys.
+ * <p>
+ * Failures are tracked per user, and for the client side per IP, per subnet and for the whole wiki.
+ * All rules for the client are checked and updated together with a single lock acquisition.
+ *
+ * @version $Id$
+ * @since 2.0
+ */
+final class WikiShard
+{
+    /**
+     * the default for the maximal number of tracked users resp. IPs, if not configured.
+     */
+    static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    /**
+     * the time for which a client with a successful login is known, in milliseconds.
+     */
+    static final long KNOWN_CLIENT_TIME = TimeUnit.DAYS.toMillis(7);
+
+    /**
+     * maximal number of entries kept in the cache of user wikis before it gets flushed.
+     */
+    private static final int MAX_CACHE_SIZE = 10000;
+
+    /**
+     * time for which a user without account in this wiki or the main wiki is remembered, in milliseconds.
+     * kept short, so that an account created meanwhile is found soon.
+     */
+    private static final long MISSING_USER_TIME = 60000L;
+
+    /**
+     * the size of the overflow for new keys when all tracked entries are blocked, as fraction of the limit.
+     */
+    private static final int OVERFLOW_DIVISOR = 10;
+
+    private final String wikiId;
+
+    /** the holder of this shard, which schedules the expiry of the failures; null if not scheduled. */
+    private final WikiShards owner;
+
+    private final Lock lock = new ReentrantLock();
+
+    private final Map<String, FailureCounter> users = new BoundedMap();
+
+    private final Map<String, FailureCounter> ips = new BoundedMap();
+
+    private final Map<String, FailureCounter> subnets = new BoundedMap();
+
+    /**
+     * the IPs from which users recently logged in successfully, with the time of the last successful login,
+     * in access order.
+     */
+    private final Map<String, Long> knownClients = new LinkedHashMap<String, Long>(16, 0.75f, true)
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Entry<String, Long> eldest)
+        {
+            int limit = maxEntries;
+            return limit > 0 && size() > limit;
+        }
+    };
+
+    private final LoginRate loginRate = new LoginRate();
+
+    /**
+     * cache for the wiki owning a user account which tries to log in to this wiki.
+     */
+    private final Map<String, String> userWikis = new ConcurrentHashMap<>();
+
+    /**
+     * users which have no account in this wiki nor in the main wiki, with the time until which this is assumed.
+     */
+    private final Map<String, Long> missingUsers = new ConcurrentHashMap<>();
+
+    private volatile int maxEntries = DEFAULT_MAX_ENTRIES;
+
+    /** start of the current window for the failures of the whole wiki, in milliseconds. */
+    private long wikiWindowStart;
+
+    /** the failures of the whole wiki in the current window. */
+    private int wikiFailures;
+
+    /** the configuration used with the last failure, for the scheduled expiry. */
+    private Config config;
+
+    private volatile boolean released;
+
+    /**
+     * a map in access order, so that the least recently used entries come first when one has to be evicted.
+     */
+    private static final class BoundedMap extends LinkedHashMap<String, FailureCounter>
+    {
+        private static final long serialVersionUID = 1L;
+
+        BoundedMap()
+        {
+            super(16, 0.75f, true);
+        }
+    }
+
+    /**
+     * the scheduled expiry of a counter. the expiry checks the counter like a login would,
+     * so that expired failures are forgotten even if the key does not try to log in again,
+     * and reports the end of a block when it happens.
+     */
+    private final class Expiry implements TimingWheel.Task
+    {
+        private final Map<String, FailureCounter> map;
+
+        private final String key;
+
+        private final FailureCounter counter;
+
+        Expiry(Map<String, FailureCounter> map, String key, FailureCounter counter)
+        {
+            this.map = map;
+            this.key = key;
+            this.counter = counter;
+        }
+
+        @Override
+        public boolean isCancelled()
+        {
+            return released || counter.removed && !counter.blocked;
+        }
+
+        @Override
+        public long run(long now)
+        {
+            final boolean unblocked;
+            long next = 0L;
+            lock.lock();
+            try {
+                final Config conf = config;
+                final boolean blocked = !counter.removed
+                    && check(map, key, counter, now, maxAttempts(map, conf), blockTime(map, conf), conf);
+                unblocked = counter.blocked && !blocked;
+                if (unblocked) {
+                    counter.blocked = false;
+                }
+                if (!counter.removed) {
+                    next = counter.nextExpiry(now, blockTime(map, conf), conf);
+                }
+                counter.scheduled = next > 0L;
+            } finally {
+                lock.unlock();
+            }
+            if (unblocked && !released) {
+                if (map == users) {
+                    owner.unblocked(wikiId, counter.name == null ? key : counter.name, null);
+                } else {
+                    owner.unblocked(wikiId, null, key);
+                }
+            }
+            return next;
+        }
+    }
+
+    /**
+     * @param wikiId
+     *            the id of the wiki this data belongs to
+     */
+    WikiShard(String wikiId)
+    {
+        this(wikiId, null);
+    }
+
+    /**
+     * @param wikiId
+     *            the id of the wiki this data belongs to
+     * @param owner
+     *            the holder of this shard, which schedules the expiry of the failures; null if not scheduled
+     */
+    WikiShard(String wikiId, WikiShards owner)
+    {
+        this.wikiId = wikiId;
+        this.owner = owner;
+    }
+
+    /**
+     * @return the id of the wiki this data belongs to
+     */
+    String getWikiId()
+    {
+        return wikiId;
+    }
+
+    /**
+     * record a failed login for a user of this wiki.
+     *
+     * @param userKey
+     *            the canonical user name
+     * @param username
+     *            the name of the profile document of the user; kept for display if different from the canonical name
+     * @param timestamp
+     *            the time of the failed login, in milliseconds
+     * @param conf
+     *            the configuration of this wiki
+     * @return true if this failure caused the user to get blocked
+     */
+    boolean addUserFailure(String userKey, String username, long timestamp, Config conf)
+    {
+        if (userKey == null) {
+            return false;
+        }
+        lock.lock();
+        try {
+            final FailureCounter counter = counter(users, userKey, conf, timestamp);
+            // only keep the entered name if it differs, to save the memory for the extra string
+            counter.name = userKey.equals(username) ? null : username;
+            final boolean blocked =
+                counter.add(timestamp, conf.maxUserAttempts, conf.blockTimeFactor, conf.escalationDecayTime);
+            track(users, userKey, counter, timestamp, conf);
+            return blocked;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * record a failed login from a client to this wiki.
+     * <p>
+     * The failure is counted for the IP, the subnet of the IP and the whole wiki. If enabled, the distinct
+     * user names tried from the IP are counted as well, and the IP is blocked if it tries too many different
+     * user names, even if the number of failures per IP is not reached yet.
+     *
+     * @param ip
+     *            the client IP
+     * @param subnet
+     *            the subnet of the client IP; null if failures per subnet are not counted
+     * @param userKey
+     *            the canonical user name of the failed login; may be null
+     * @param timestamp
+     *            the time of the failed login, in milliseconds
+     * @param conf
+     *            the configuration of this wiki
+     * @return the message key of the {@link BlockingPolicy} for the block caused by this failure,
+     *         or null if nothing new got blocked
+     */
+    String addClientFailure(String ip, String subnet, String userKey, long timestamp, Config conf)
+    {
+        String newBlock = null;
+        lock.lock();
+        try {
+            if (ip != null && addIPFailure(ip, userKey, timestamp, conf)) {
+                newBlock = BlockingPolicy.IP_BLOCKED;
+            }
+            if (subnet != null && conf.maxSubnetAttempts > 0) {
+                final FailureCounter counter = counter(subnets, subnet, conf, timestamp);
+                if (counter.add(timestamp, conf.maxSubnetAttempts, conf.blockTimeFactor, conf.escalationDecayTime)
+                    && newBlock == null) {
+                    newBlock = BlockingPolicy.SUBNET_BLOCKED;
+                }
+                track(subnets, subnet, counter, timestamp, conf);
+            }
+            if (conf.maxWikiAttempts > 0 && conf.wikiAttemptsWindow > 0) {
+                if (timestamp - wikiWindowStart >= conf.wikiAttemptsWindow) {
+                    wikiWindowStart = timestamp;
+                    wikiFailures = 0;
+                }
+                if (++wikiFailures == conf.maxWikiAttempts && newBlock == null) {
+                    newBlock = BlockingPolicy.WIKI_BLOCKED;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return newBlock;
+    }
+
+    private boolean addIPFailure(String ip, String userKey, long timestamp, Config conf)
+    {
+        final FailureCounter counter = counter(ips, ip, conf, timestamp);
+        boolean blocked = counter.add(timestamp, conf.maxIPAttempts, conf.blockTimeFactor,
+            conf.escalationDecayTime);
+        if (conf.maxDistinctUsers > 0 && userKey != null) {
+            if (counter.distinctUsers == null) {
+                counter.distinctUsers = new DistinctCounter();
+            }
+            final int distinctUsers = counter.distinctUsers.add(userKey, timestamp, conf.distinctUsersWindow);
+            if (distinctUsers >= conf.maxDistinctUsers && counter.blockedUntil <= timestamp) {
+                // the next block needs as many new user names again
+                counter.distinctUsers.clear();
+                // this is a new block, unless the IP has been blocked before for its number of failures
+                if (!isBlockedByFailures(counter, conf.maxIPAttempts)) {
+                    counter.escalate(conf.blockTimeFactor);
+                    blocked = true;
+                }
+                counter.blockedUntil = timestamp + counter.blockTime(clientBlockTime(conf),
+                    conf.blockTimeFactor, conf.maxBlockTime);
+            }
+        }
+        track(ips, ip, counter, timestamp, conf);
+        return blocked;
+    }
+
+    /**
+     * block a client IP of this wiki at once, as it tried to log in as a honeypot user.
+     * the attempt is counted as a failure of the IP, and a new block raises the escalation level and lasts
+     * the block time of that level, like the block of an IP trying too many different user names.
+     *
+     * @param ip
+     *            the client IP
+     * @param timestamp
+     *            the time of the attempt, in milliseconds
+     * @param conf
+     *            the configuration of this wiki
+     * @return true if the IP has not been blocked before
+     */
+    boolean blockIP(String ip, long timestamp, Config conf)
+    {
+        lock.lock();
+        try {
+            final FailureCounter counter = counter(ips, ip, conf, timestamp);
+            final boolean wasBlocked =
+                counter.blockedUntil > timestamp || isBlockedByFailures(counter, conf.maxIPAttempts);
+            if (!counter.add(timestamp, conf.maxIPAttempts, conf.blockTimeFactor, conf.escalationDecayTime)
+                && !wasBlocked) {
+                // escalate like for a block after too many failures, which the call to add has done already
+                counter.escalate(conf.blockTimeFactor);
+            }
+            counter.blockedUntil = Math.max(counter.blockedUntil,
+                timestamp + counter.blockTime(clientBlockTime(conf), conf.blockTimeFactor, conf.maxBlockTime));
+            track(ips, ip, counter, timestamp, conf);
+            return !wasBlocked;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * remember if a counter is blocked, and schedule its expiry if not yet done. must be called with the lock held.
+     */
+    private void track(Map<String, FailureCounter> map, String key, FailureCounter counter, long now, Config conf)
+    {
+        config = conf;
+        if (counter.removed) {
+            // not tracked, as the map is full of blocked entries
+            return;
+        }
+        if (!counter.blocked
+            && (isBlockedByFailures(counter, maxAttempts(map, conf)) || counter.blockedUntil > now)) {
+            counter.blocked = true;
+        }
+        if (owner != null && !counter.scheduled) {
+            final long next = counter.nextExpiry(now, blockTime(map, conf), conf);
+            if (next > 0L) {
+                counter.scheduled = true;
+                owner.schedule(next, new Expiry(map, key, counter));
+            }
+        }
+    }
+
+    private int maxAttempts(Map<String, FailureCounter> map, Config conf)
+    {
+        if (map == users) {
+            return conf.maxUserAttempts;
+        }
+        return map == ips ? conf.maxIPAttempts : conf.maxSubnetAttempts;
+    }
+
+    private long blockTime(Map<String, FailureCounter> map, Config conf)
+    {
+        if (map == users) {
+            return conf.blockTimeUser;
+        }
+        return map == ips ? conf.blockTimeIP : clientBlockTime(conf);
+    }
+
+    /**
+     * the block time for rules which might be used without blocking single IPs.
+     */
+    private static long clientBlockTime(Config conf)
+    {
+        return conf.blockTimeIP > 0 ? conf.blockTimeIP : conf.blockTimeUser;
+    }
+
+    private static boolean isBlockedByFailures(FailureCounter counter, int maxAttempts)
+    {
+        return maxAttempts > 0 && counter.failures >= maxAttempts;
+    }
+
+    /**
+     * check if a user of this wiki is blocked, and forget expired failures.
+     *
+     * @param userKey
+     *            the canonical user name
+     * @param now
+     *            the current time, in milliseconds
+     * @param conf
+     *            the configuration of this wiki
+     * @return true if the user is blocked
+     */
+    boolean isUserBlocked(String userKey, long now, Config conf)
+    {
+        if (userKey == null) {
+            return false;
+        }
+        lock.lock();
+        try {
+            return check(users, userKey, now, conf.maxUserAttempts, conf.blockTimeUser, conf);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * check if a client may not log in to this wiki, and forget expired failures.
+     *
+     * @param ip
+     *            the client IP
+     * @param subnet
+     *            the subnet of the client IP; null if failures per subnet are not counted
+     * @param now
+     *            the current time, in milliseconds
+     * @param conf
+     *            the configuration of this wiki
+     * @return the message key of the {@link BlockingPolicy} if the client is blocked, or null
+     */
+    String checkClient(String ip, String subnet, long now, Config conf)
+    {
+        lock.lock();
+        try {
+            if (ip != null && check(ips, ip, now, conf.maxIPAttempts, conf.blockTimeIP, conf)) {
+                return BlockingPolicy.IP_BLOCKED;
+            }
+            if (subnet != null && conf.maxSubnetAttempts > 0
+                && check(subnets, subnet, now, conf.maxSubnetAttempts, clientBlockTime(conf), conf)) {
+                return BlockingPolicy.SUBNET_BLOCKED;
+            }
+            if (conf.maxWikiAttempts > 0 && wikiFailures >= conf.maxWikiAttempts
+                && now - wikiWindowStart < conf.wikiAttemptsWindow) {
+                return BlockingPolicy.WIKI_BLOCKED;
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * get the time until which a user of this wiki is blocked, with the block time of its escalation level.
+     *
+     * @param userKey
+     *            the canonical user name
+     * @param now
+     *            the current time, in milliseconds
+     * @param conf
+     *            the configuration of this wiki
+     * @return the time in milliseconds, or zero if the user is not blocked
+     */
+    long getUserBlockedUntil(String userKey, long now, Config conf)
+    {
+        lock.lock();
+        try {
+            return blockedUntil(users.get(userKey), now, conf.maxUserAttempts, conf.blockTimeUser, conf);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * get the time until which a client is blocked for this wiki, with the block time of its escalation level.
+     *
+     * @param ip
+     *            the client IP
+     * @param subnet
+     *            the subnet of the client IP; null if failures per subnet are not counted
+     * @param now
+     *            the current time, in milliseconds
+     * @param conf
+     *            the configuration of this wiki
+     * @return the time in milliseconds, or zero if neither the IP nor its subnet are blocked
+     */
+    long getClientBlockedUntil(String ip, String subnet, long now, Config conf)
+    {
+        lock.lock();
+        try {
+            long until = blockedUntil(ips.get(ip), now, conf.maxIPAttempts, conf.blockTimeIP, conf);
+            if (subnet != null && conf.maxSubnetAttempts > 0) {
+                until = Math.max(until,
+                    blockedUntil(subnets.get(subnet), now, conf.maxSubnetAttempts, clientBlockTime(conf), conf));
+            }
+            return until;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * forget the failures of a user after a successful login, but keep the escalation level.
+     * costs a single lookup with the lock of this wiki held.
+     *
+     * @param userKey
+     *            the canonical user name
+     * @return true if there had been any failures
+     */
+    boolean resetUser(String userKey)
+    {
+        return reset(users, userKey);
+    }
+
+    /**
+     * forget the failures of an IP after a successful login, but keep the escalation level
+     * and the user names tried. costs a single lookup with the lock of this wiki held.
+     *
+     * @param ip
+     *            the client IP
+     * @return true if there had been any failures
+     */
+    boolean resetIP(String ip)
+    {
+        return reset(ips, ip);
+    }
+
+    private boolean reset(Map<String, FailureCounter> map, String key)
+    {
+        if (key == null) {
+            return false;
+        }
+        lock.lock();
+        try {
+            final FailureCounter counter = map.get(key);
+            if (counter == null || counter.failures == 0) {
+                return false;
+            }
+            counter.reset();
+            if (counter.isEmpty()) {
+                forget(map.remove(key));
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * forget all failures of a user.
+     *
+     * @param userKey
+     *            the canonical user name
+     * @param now
+     *            the current time, in milliseconds
+     * @param conf
+     *            the configuration of this wiki
+     * @return true if the user has been blocked
+     */
+    boolean removeUser(String userKey, long now, Config conf)
+    {
+        lock.lock();
+        try {
+            return remove(users, userKey, now, conf.maxUserAttempts, conf.blockTimeUser, conf);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * forget all failures of an IP or a subnet.
+     *
+     * @param ip
+     *            the client IP, or the subnet as listed in the blocked IPs
+     * @param now
+     *            the current time, in milliseconds
+     * @param conf
+     *            the configuration of this wiki
+     * @return true if the IP or the subnet has been blocked
+     */
+    boolean removeIP(String ip, long now, Config conf)
+    {
+        lock.lock();
+        try {
+            final boolean blocked = remove(ips, ip, now, conf.maxIPAttempts, conf.blockTimeIP, conf);
+            return remove(subnets, ip, now, conf.maxSubnetAttempts, clientBlockTime(conf), conf) || blocked;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * get the users with at least the given number of failures.
+     *
+     * @param maxAttempts
+     *            the number of failures after which a user is blocked
+     * @param now
+     *            the current time, in milliseconds
+     * @return a map from the profile document names of the users as last entered to the time of their last failure
+     */
+    Map<String, Long> getBlockedUsers(int maxAttempts, long now)
+    {
+        return getBlocked(users, maxAttempts, now, new HashMap<String, Long>());
+    }
+
+    /**
+     * get the IPs with at least the given number of failures, or blocked for trying too many user names,
+     * and the blocked subnets.
+     *
+     * @param conf
+     *            the configuration of this wiki
+     * @param now
+     *            the current time, in milliseconds
+     * @return a map from the IPs and subnets to the time of their last failure
+     */
+    Map<String, Long> getBlockedIPs(Config conf, long now)
+    {
+        final Map<String, Long> blocked = getBlocked(ips, conf.maxIPAttempts, now, new HashMap<String, Long>());
+        return conf.maxSubnetAttempts > 0 ? getBlocked(subnets, conf.maxSubnetAttempts, now, blocked) : blocked;
+    }
+
+    /**
+     * stop the scheduled expiry of all failures, as this shard is not used any more.
+     */
+    void release()
+    {
+        released = true;
+    }
+
+    /**
+     * @return the rate of failed logins to this wiki
+     */
+    LoginRate getLoginRate()
+    {
+        return loginRate;
+    }
+
+    /**
+     * remember a client from which a user logged in successfully.
+     *
+     * @param ip
+     *            the client IP
+     * @param timestamp
+     *            the time of the successful login, in milliseconds
+     */
+    void addKnownClient(String ip, long timestamp)
+    {
+        if (ip == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            knownClients.put(ip, timestamp);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * check if a user logged in successfully from a client recently, i.e. within {@link #KNOWN_CLIENT_TIME}.
+     *
+     * @param ip
+     *            the client IP
+     * @param now
+     *            the current time, in milliseconds
+     * @return true if the client is known
+     */
+    boolean isKnownClient(String ip, long now)
+    {
+        if (ip == null) {
+            return false;
+        }
+        lock.lock();
+        try {
+            final Long lastLogin = knownClients.get(ip);
+            if (lastLogin == null) {
+                return false;
+            }
+            if (now - lastLogin >= KNOWN_CLIENT_TIME) {
+                knownClients.remove(ip);
+                return false;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * get the cached wiki owning the account of a user who logs in to this wiki.
+     * a user without account is assumed to belong to this wiki, until the cached lookup expires.
+     *
+     * @param userKey
+     *            the canonical user name
+     * @param now
+     *            the current time, in milliseconds
+     * @return the wiki id, or null if not cached
+     */
+    String getUserWiki(String userKey, long now)
+    {
+        final String userWikiId = userWikis.get(userKey);
+        if (userWikiId != null) {
+            return userWikiId;
+        }
+        final Long missingUntil = missingUsers.get(userKey);
+        if (missingUntil == null) {
+            return null;
+        }
+        if (missingUntil > now) {
+            return wikiId;
+        }
+        missingUsers.remove(userKey, missingUntil);
+        return null;
+    }
+
+    /**
+     * cache the wiki owning the account of a user who logs in to this wiki.
+     *
+     * @param userKey
+     *            the canonical user name
+     * @param userWikiId
+     *            the wiki id
+     */
+    void setUserWiki(String userKey, String userWikiId)
+    {
+        if (userWikis.size() >= MAX_CACHE_SIZE) {
+            userWikis.clear();
+        }
+        userWikis.put(userKey, userWikiId);
+        missingUsers.remove(userKey);
+    }
+
+    /**
+     * remember for a short time that a user who logs in to this wiki has no account in this wiki nor the main wiki.
+     *
+     * @param userKey
+     *            the canonical user name
+     * @param now
+     *            the current time, in milliseconds
+     */
+    void setUserMissing(String userKey, long now)
+    {
+        if (missingUsers.size() >= MAX_CACHE_SIZE) {
+            missingUsers.clear();
+        }
+        missingUsers.put(userKey, FailureCounter.plus(now, MISSING_USER_TIME));
+    }
+
+    /**
+     * get the counter for a key, and create it if missing. must be called with the lock held.
+     * <p>
+     * If the limit of tracked entries is exceeded, the least recently used entry which is not blocked
+     * is evicted, so that an attacker cannot lift a block by flooding the map with new keys.
+     * If all other entries are blocked, the new key is kept in an overflow of a tenth of the limit, so that
+     * new attackers are still blocked during a flood. Only if the overflow is full of blocked entries as well,
+     * the new key is not tracked.
+     */
+    private FailureCounter counter(Map<String, FailureCounter> map, String key, Config conf, long now)
+    {
+        final int limit = conf.maxTrackedEntries > 0 ? conf.maxTrackedEntries : DEFAULT_MAX_ENTRIES;
+        if (maxEntries != limit) {
+            maxEntries = limit;
+        }
+        FailureCounter counter = map.get(key);
+        if (counter == null) {
+            counter = new FailureCounter();
+            map.put(key, counter);
+            if (map.size() > limit && !evict(map, counter, now, maxAttempts(map, conf))
+                && map.size() > limit + Math.max(1, limit / OVERFLOW_DIVISOR)) {
+                forget(map.remove(key));
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * drop the least recently used counter which is not blocked, other than the one just added.
+     * counters with an escalation level are only dropped if there is no other, as they keep the longer blocks
+     * of repeat offenders. must be called with the lock held.
+     * an evicted counter is forgotten silently, without an event when its block would have ended.
+     *
+     * @return true if a counter has been dropped
+     */
+    private static boolean evict(Map<String, FailureCounter> map, FailureCounter added, long now, int maxAttempts)
+    {
+        String escalated = null;
+        for (Entry<String, FailureCounter> entry : map.entrySet()) {
+            final FailureCounter counter = entry.getValue();
+            if (counter != added && counter.blockedUntil <= now && !isBlockedByFailures(counter, maxAttempts)) {
+                if (counter.level == 0) {
+                    return forget(map.remove(entry.getKey()));
+                }
+                if (escalated == null) {
+                    escalated = entry.getKey();
+                }
+            }
+        }
+        return escalated != null && forget(map.remove(escalated));
+    }
+
+    /**
+     * a counter removed on request is forgotten without an event when its block would have ended.
+     * must be called with the lock held.
+     *
+     * @return true if there has been a counter
+     */
+    private static boolean forget(FailureCounter counter)
+    {
+        if (counter == null) {
+            return false;
+        }
+        counter.blocked = false;
+        counter.removed = true;
+        return true;
+    }
+
+    /**
+     * get the end of the block of a counter, in the same way as it is checked. must be called with the lock held.
+     */
+    private static long blockedUntil(FailureCounter counter, long now, int maxAttempts, long blockTime, Config conf)
+    {
+        if (counter == null) {
+            return 0L;
+        }
+        long until = counter.blockedUntil;
+        if (isBlockedByFailures(counter, maxAttempts)) {
+            until = Math.max(until, FailureCounter.plus(counter.lastFailure,
+                counter.blockTime(blockTime, conf.blockTimeFactor, conf.maxBlockTime)));
+        }
+        return until > now ? until : 0L;
+    }
+
+    /**
+     * remove a counter on request. must be called with the lock held.
+     *
+     * @return true if the key has been blocked until now
+     */
+    private static boolean remove(Map<String, FailureCounter> map, String key, long now, int maxAttempts,
+        long blockTime, Config conf)
+    {
+        final FailureCounter counter = map.get(key);
+        final boolean blocked = counter != null && check(map, key, counter, now, maxAttempts, blockTime, conf);
+        forget(map.remove(key));
+        return blocked;
+    }
+
+    /**
+     * check if a key is blocked, and forget expired failures. must be called with the lock held.
+     */
+    private static boolean check(Map<String, FailureCounter> map, String key, long now, int maxAttempts,
+        long blockTime, Config conf)
+    {
+        FailureCounter counter = map.get(key);
+        if (counter == null) {
+            return false;
+        }
+        return check(map, key, counter, now, maxAttempts, blockTime, conf);
+    }
+
+    /**
+     * check if a counter is blocked, forget expired failures, and drop the counter if it is empty.
+     * must be called with the lock held.
+     */
+    private static boolean check(Map<String, FailureCounter> map, String key, FailureCounter counter, long now,
+        int maxAttempts, long blockTime, Config conf)
+    {
+        if (counter.blockedUntil > now) {
+            return true;
+        }
+
+        if (counter.failures > 0) {
+            long evictTime = now - counter.blockTime(blockTime, conf.blockTimeFactor, conf.maxBlockTime);
+            if (counter.lastFailure < evictTime) {
+                counter.reset();
+            }
+        }
+        if (counter.distinctUsers != null && counter.distinctUsers.isExpired(now, conf.distinctUsersWindow)) {
+            counter.distinctUsers = null;
+        }
+        if (counter.failures == 0 && counter.isDecayed(now, conf.escalationDecayTime)) {
+            counter.level = 0;
+        }
+        if (counter.isEmpty()) {
+            map.remove(key);
+            counter.removed = true;
+            return false;
+        }
+
+        return isBlockedByFailures(counter, maxAttempts);
+    }
+
+    private Map<String, Long> getBlocked(Map<String, FailureCounter> map, int maxAttempts, long now,
+        Map<String, Long> blocked)
+    {
+        lock.lock();
+        try {
+            for (Entry<String, FailureCounter> entry : map.entrySet()) {
+                final FailureCounter counter = entry.getValue();
+                if ((isBlockedByFailures(counter, maxAttempts) || counter.blockedUntil > now)
+                    && counter.lastFailure != 0L) {
+                    blocked.put(counter.name == null ? entry.getKey() : counter.name, counter.lastFailure);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return blocked;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.internal;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.authentication.blocking.event.UnblockedEvent;
+
+/**
+ * Holds the {@link WikiShard} with the blocking data for each wiki.
+ * The expiry of the failures in all shards is scheduled in the {@link TimingWheel}.
+ *
+ * @version $Id$
+ * @since 2.0
+ */
+@Component(roles = { WikiShards.class })
+@Singleton
+public class WikiShards
+{
+    private final Map<String, WikiShard> shards = new ConcurrentHashMap<>();
+
+    @Inject
+    private TimingWheel timingWheel;
+
+    @Inject
+    private BlockingEventDispatcher eventDispatcher;
+
+    /**
+     * get the data for a wiki, and create it if not yet present.
+     *
+     * @param wikiId
+     *            the id of the wiki
+     * @return the data for the wiki, never null
+     */
+    WikiShard getShard(String wikiId)
+    {
+        WikiShard shard = shards.get(wikiId);
+        if (shard == null) {
+            shard = new WikiShard(wikiId, this);
+            WikiShard existing = shards.putIfAbsent(wikiId, shard);
+            if (existing != null) {
+                shard = existing;
+            }
+        }
+        return shard;
+    }
+
+    /**
+     * get the data for a wiki, if already present.
+     *
+     * @param wikiId
+     *            the id of the wiki
+     * @return the data for the wiki, or null if nothing has been recorded yet
+     */
+    WikiShard getExistingShard(String wikiId)
+    {
+        return shards.get(wikiId);
+    }
+
+    /**
+     * get the data of all wikis for which anything has been recorded.
+     *
+     * @return a read only view of the data by wiki id; it reflects wikis added or released later
+     */
+    Map<String, WikiShard> getShards()
+    {
+        return Collections.unmodifiableMap(shards);
+    }
+
+    /**
+     * drop all data of a wiki.
+     *
+     * @param wikiId
+     *            the id of the wiki
+     * @return true if there has been any data for the wiki
+     */
+    public boolean releaseShard(String wikiId)
+    {
+        final WikiShard shard = shards.remove(wikiId);
+        if (shard == null) {
+            return false;
+        }
+        shard.release();
+        return true;
+    }
+
+    /**
+     * schedule the expiry of failures.
+     *
+     * @param deadline
+     *            the time of the expiry, in milliseconds
+     * @param task
+     *            the task checking the expiry
+     */
+    void schedule(long deadline, TimingWheel.Task task)
+    {
+        if (timingWheel != null) {
+            timingWheel.schedule(deadline, task);
+        }
+    }
+
+    /**
+     * send the event that the block of a user or an IP has ended.
+     *
+     * @param wikiId
+     *            the wiki of the block
+     * @param username
+     *            the user which is not blocked any more, or null for an IP
+     * @param ip
+     *            the IP or subnet which is not blocked any more, or null for a user
+     */
+    void unblocked(String wikiId, String username, String ip)
+    {
+        if (eventDispatcher != null) {
+            eventDispatcher.send(new UnblockedEvent(wikiId, username, ip));
+        }
+    }
+
+    /**
+     * only for tests.
+     *
+     * @param wheel
+     *            the timing wheel for the expiry
+     * @param dispatcher
+     *            the dispatcher for the events
+     */
+    void setTimingWheel(TimingWheel wheel, BlockingEventDispatcher dispatcher)
+    {
+        this.timingWheel = wheel;
+        this.eventDispatcher = dispatcher;
+    }
+}
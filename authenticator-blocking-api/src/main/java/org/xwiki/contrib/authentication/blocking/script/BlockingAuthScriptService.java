@@ -20,6 +20,7 @@
 package org.xwiki.contrib.authentication.blocking.script;
 
 import java.util.List;
+import java.util.Map;
 import java.util.function.Supplier;
 
 import javax.inject.Inject;
@@ -30,9 +31,13 @@ import javax.inject.Singleton;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.context.Execution;
 import org.xwiki.contrib.authentication.blocking.BlockedIPInformation;
+import org.xwiki.contrib.authentication.blocking.BlockedOverview;
 import org.xwiki.contrib.authentication.blocking.BlockedUserInformation;
 import org.xwiki.contrib.authentication.blocking.BlockedUsersService;
 import org.xwiki.contrib.authentication.blocking.internal.BlockingAuthConfiguration;
+import org.xwiki.contrib.authentication.blocking.internal.FarmOverview;
+import org.xwiki.contrib.authentication.blocking.internal.ShadowEvaluation;
+import org.xwiki.contrib.authentication.blocking.internal.UserProfileResolver;
 import org.xwiki.script.service.ScriptService;
 import org.xwiki.security.authorization.ContextualAuthorizationManager;
 import org.xwiki.security.authorization.Right;
@@ -67,6 +72,15 @@ public class BlockingAuthScriptService implements ScriptService
     @Inject
     private BlockingAuthConfiguration blockedConfig;
 
+    @Inject
+    private ShadowEvaluation shadowEvaluation;
+
+    @Inject
+    private FarmOverview farmOverview;
+
+    @Inject
+    private UserProfileResolver userProfiles;
+
     @Inject
     private Provider<ContextualAuthorizationManager> authManagerProvider;
 
@@ -90,13 +104,14 @@ public class BlockingAuthScriptService implements ScriptService
 
     /**
      * get the list of blocked users.
+     * it tells if the users exist, and their names to show, as looked up for all of them at once.
      *
      * @return a list, or null if an error happened
      */
     public List<BlockedUserInformation> getBlockedUsers()
     {
         return doWithExceptionHandling(() -> {
-            return blockedUsers.getBlockedUsers();
+            return userProfiles.resolve(blockedUsers.getBlockedUsers());
         });
     }
 
@@ -156,6 +171,45 @@ public class BlockingAuthScriptService implements ScriptService
         });
     }
 
+    /**
+     * get the counters of the evaluation of the candidate configuration of the current wiki.
+     * the candidate configuration is a second configuration object on the configuration page;
+     * it is evaluated alongside the live one, without blocking anything.
+     *
+     * @return the counters by name, empty if there is no candidate configuration, or null in case of errors
+     * @since 2.0
+     */
+    public Map<String, Long> getShadowMetrics()
+    {
+        return doWithExceptionHandling(() -> {
+            return shadowEvaluation.getMetrics(wikiContextProvider.get().getWikiId());
+        });
+    }
+
+    /**
+     * get the users and IPs blocked in any wiki of the farm, latest attempts first.
+     * only available in the main wiki, to its admins.
+     *
+     * @param offset
+     *            the number of users and IPs to skip
+     * @param limit
+     *            the maximal number of users and IPs to return; zero or less to return all
+     * @return the same page of the blocked users and of the blocked IPs, with their total numbers and
+     *         the numbers per wiki, or null in case of errors
+     * @since 2.0
+     */
+    public BlockedOverview getFarmOverview(final int offset, final int limit)
+    {
+        return doWithExceptionHandling(() -> {
+            if (!wikiContextProvider.get().isMainWiki()) {
+                throw new IllegalStateException("the blocks of all wikis are only available in the main wiki");
+            }
+            final BlockedOverview overview = farmOverview.getOverview(offset, limit);
+            userProfiles.resolve(overview.getUsers());
+            return overview;
+        });
+    }
+
     /**
      * fetch the result from the given provider after checking for admin rights.
      *
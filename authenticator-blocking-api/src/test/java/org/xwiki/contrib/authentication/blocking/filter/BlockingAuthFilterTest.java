@@ -0,0 +1,167 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.filter;
+
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.contrib.authentication.blocking.internal.BlockingClock;
+import org.xwiki.contrib.authentication.blocking.internal.RequestGate;
+
+public class BlockingAuthFilterTest
+{
+    private final String USER = "user1";
+    private final String IP = "192.0.2.1";
+    private final int TOO_MANY_REQUESTS = 429;
+
+    BlockingAuthFilter filter;
+
+    RequestGate gate;
+
+    FilterChain chain;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        FilterConfig config = mock(FilterConfig.class);
+        when(config.getServletContext()).thenReturn(mock(ServletContext.class));
+        when(config.getInitParameter("maxParkedRequests")).thenReturn("1");
+        when(config.getInitParameter("rejectBlockedIPs")).thenReturn("true");
+        filter = new BlockingAuthFilter();
+        filter.init(config);
+        gate = new RequestGate();
+        filter.setComponents(gate, new BlockingClock());
+        chain = mock(FilterChain.class);
+    }
+
+    @After
+    public void tearDown()
+    {
+        filter.destroy();
+    }
+
+    @Test
+    public void testAnswerParkedRequestAfterDelay() throws Exception
+    {
+        gate.tarpit(IP, USER, 200L, 1000L, 60000L);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        AsyncContext async = mock(AsyncContext.class);
+        HttpServletRequest request = request(IP, USER, async);
+        when(async.getResponse()).thenReturn(response);
+
+        final long start = System.nanoTime();
+        filter.doFilter(request, response, chain);
+        verify(request).startAsync();
+        verify(response, never()).sendError(anyInt());
+        verify(response, timeout(5000)).sendError(TOO_MANY_REQUESTS);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200L));
+        verify(response).setHeader("Retry-After", "1");
+        verify(async, timeout(5000)).complete();
+        verify(chain, never()).doFilter(any(ServletRequest.class), any(ServletResponse.class));
+    }
+
+    @Test
+    public void testRejectAtOnceBeyondParkLimit() throws Exception
+    {
+        gate.tarpit(IP, null, 1000L, 1000L, 60000L);
+        AsyncContext async = mock(AsyncContext.class);
+        filter.doFilter(request(IP, USER, async), mock(HttpServletResponse.class), chain);
+
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        HttpServletRequest request = request(IP, "other", mock(AsyncContext.class));
+        filter.doFilter(request, response, chain);
+        verify(request, never()).startAsync();
+        verify(response).sendError(TOO_MANY_REQUESTS);
+        verify(chain, never()).doFilter(any(ServletRequest.class), any(ServletResponse.class));
+    }
+
+    @Test
+    public void testPassOtherRequests() throws Exception
+    {
+        gate.tarpit(IP, USER, 1000L, 1000L, 60000L);
+        filter.doFilter(request(IP, "other", null), mock(HttpServletResponse.class), chain);
+        filter.doFilter(request("192.0.2.2", USER, null), mock(HttpServletResponse.class), chain);
+        filter.doFilter(request(IP, null, null), mock(HttpServletResponse.class), chain);
+        verify(chain, times(3)).doFilter(any(ServletRequest.class), any(ServletResponse.class));
+    }
+
+    @Test
+    public void testRejectBlockedIPs() throws Exception
+    {
+        gate.block(IP, System.currentTimeMillis() + 60000L);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        filter.doFilter(request(IP, USER, null), response, chain);
+        verify(response).sendError(TOO_MANY_REQUESTS);
+
+        // only login attempts are rejected
+        filter.doFilter(request(IP, null, null), mock(HttpServletResponse.class), chain);
+        verify(chain).doFilter(any(ServletRequest.class), any(ServletResponse.class));
+    }
+
+    @Test
+    public void testReadParametersOnlyForLoginSubmit() throws Exception
+    {
+        HttpServletRequest request = request(IP, USER, null);
+        filter.doFilter(request, mock(HttpServletResponse.class), chain);
+
+        gate.tarpit(IP, USER, 1000L, 1000L, 60000L);
+        gate.block(IP, System.currentTimeMillis() + 60000L);
+        HttpServletRequest save = request(IP, USER, null);
+        when(save.getRequestURI()).thenReturn("/xwiki/bin/save/Main/WebHome");
+        filter.doFilter(save, mock(HttpServletResponse.class), chain);
+
+        verify(chain, times(2)).doFilter(any(ServletRequest.class), any(ServletResponse.class));
+        verify(request, never()).getParameter(anyString());
+        verify(save, never()).getParameter(anyString());
+    }
+
+    private HttpServletRequest request(String ip, String username, AsyncContext async)
+    {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getRequestURI()).thenReturn("/xwiki/bin/loginsubmit/XWiki/XWikiLogin");
+        when(request.getRemoteAddr()).thenReturn(ip);
+        when(request.getParameter("j_username")).thenReturn(username);
+        when(request.isAsyncSupported()).thenReturn(async != null);
+        when(request.startAsync()).thenReturn(async);
+        return request;
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.internal;
+
+import static org.mockito.Mockito.mock;
+
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.slf4j.helpers.NOPLogger;
+import org.xwiki.contrib.authentication.blocking.LoginAttempt;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.web.XWikiRequest;
+import com.xpn.xwiki.web.XWikiServletRequest;
+
+/**
+ * Replays synthetic login attempts in virtual time against the real {@link DefaultBlockedUserService}.
+ * <p>
+ * The traffic mixes legitimate users, who sometimes mistype their password, with a brute force attack
+ * from a few IPs on a few accounts and a credential stuffing attack from many IPs on many accounts.
+ * Each attempt is checked and recorded like the authenticator does, with the time taken from a virtual clock,
+ * and the timing wheel is turned in the same virtual time. A day of traffic takes seconds of wall time.
+ * Run it with:
+ * <pre>
+ * mvn -Psimulation test-compile exec:exec -Dsimulation.attempts=1000000 -Dsimulation.hours=24
+ * </pre>
+ * At the end the blocking decisions per kind of traffic, the memory in use and the throughput are reported.
+ *
+ * @version $Id$
+ */
+public final class BlockingSimulation
+{
+    private static final String WIKI = "xwiki";
+
+    private static final int USERS = 10000;
+
+    private static final int BRUTE_FORCE_IPS = 50;
+
+    private static final int BRUTE_FORCE_TARGETS = 5;
+
+    private static final int STUFFING_IPS = 100000;
+
+    /** percentage of the attempts from legitimate users, brute force and credential stuffing attackers. */
+    private static final int LEGITIMATE_SHARE = 40;
+
+    private static final int BRUTE_FORCE_SHARE = 30;
+
+    /** percentage of the legitimate attempts with a mistyped password. */
+    private static final int TYPO_RATE = 5;
+
+    private static final int PERCENT = 100;
+
+    private static final int KIND_LEGITIMATE = 0;
+
+    private static final int KIND_BRUTE_FORCE = 1;
+
+    private static final int KIND_STUFFING = 2;
+
+    private static final String[] KIND_NAMES = { "legitimate", "brute force", "credential stuffing" };
+
+    /**
+     * the virtual clock.
+     */
+    private static final class VirtualClock extends BlockingClock
+    {
+        private long now;
+
+        @Override
+        public long millis()
+        {
+            return now;
+        }
+    }
+
+    private final VirtualClock clock = new VirtualClock();
+
+    private final TimingWheel wheel = new TimingWheel();
+
+    private final DefaultBlockedUserService service = new DefaultBlockedUserService();
+
+    private final Random random = new Random(42L);
+
+    private String currentIP;
+
+    private final XWikiContext context;
+
+    private final long[] attempts = new long[KIND_NAMES.length];
+
+    private final long[] refused = new long[KIND_NAMES.length];
+
+    /** the legitimate logins with the right password which have been refused. */
+    private long lockedOut;
+
+    private BlockingSimulation(BlockingAuthConfiguration.Config config)
+    {
+        final XWikiRequest request = new XWikiServletRequest(mock(HttpServletRequest.class))
+        {
+            @Override
+            public String getRemoteAddr()
+            {
+                return currentIP;
+            }
+
+            @Override
+            public String getHeader(String name)
+            {
+                return null;
+            }
+        };
+        final XWiki xwiki = mock(XWiki.class);
+        context = new XWikiContext()
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public String getWikiId()
+            {
+                return WIKI;
+            }
+
+            @Override
+            public boolean isMainWiki()
+            {
+                return true;
+            }
+
+            @Override
+            public XWiki getWiki()
+            {
+                return xwiki;
+            }
+
+            @Override
+            public XWikiRequest getRequest()
+            {
+                return request;
+            }
+        };
+
+        final WikiShards shards = new WikiShards();
+        shards.setTimingWheel(wheel, null);
+        service.setShards(shards);
+        service.setClock(clock);
+        service.setConfig(new BlockingAuthConfiguration()
+        {
+            @Override
+            public Config getConfig()
+            {
+                return config;
+            }
+
+            @Override
+            public Config getConfig(String wikiId)
+            {
+                return config;
+            }
+        });
+        service.setContextProvider(() -> context);
+        service.setLogger(NOPLogger.NOP_LOGGER);
+    }
+
+    /**
+     * run the simulation.
+     *
+     * @param args
+     *            not used; the number of attempts and the simulated hours are taken from the system properties
+     *            {@code simulation.attempts} and {@code simulation.hours}
+     */
+    public static void main(String[] args)
+    {
+        final long count = Long.getLong("simulation.attempts", 1000000L);
+        final long duration = TimeUnit.HOURS.toMillis(Long.getLong("simulation.hours", 24L));
+
+        final BlockingAuthConfiguration.Config config = new BlockingAuthConfiguration.Config();
+        config.maxUserAttempts = 5;
+        config.blockTimeUser = TimeUnit.MINUTES.toMillis(15);
+        config.maxIPAttempts = 20;
+        config.blockTimeIP = TimeUnit.HOURS.toMillis(1);
+        config.blockTimeFactor = 2;
+        config.maxBlockTime = TimeUnit.HOURS.toMillis(24);
+        config.escalationDecayTime = TimeUnit.HOURS.toMillis(24);
+        config.maxDistinctUsers = 20;
+        config.distinctUsersWindow = TimeUnit.HOURS.toMillis(1);
+        config.maxSubnetAttempts = 200;
+        config.resetUserOnSuccess = true;
+        config.whitelistedIPs = Collections.emptySet();
+        config.trustedProxies = Collections.emptySet();
+
+        new BlockingSimulation(config).run(count, duration);
+    }
+
+    private void run(long count, long duration)
+    {
+        final long start = System.nanoTime();
+        clock.now = TimeUnit.DAYS.toMillis(365);
+        final long end = clock.now + duration;
+        final double step = (double) duration / count;
+        wheel.advance(clock.now);
+        for (long i = 0; i < count; i++) {
+            clock.now = end - duration + (long) (i * step);
+            wheel.advance(clock.now);
+            attempt();
+        }
+        final long wallTime = System.nanoTime() - start;
+
+        report(count, duration, wallTime);
+    }
+
+    private void attempt()
+    {
+        final int roll = random.nextInt(PERCENT);
+        final int kind;
+        final String username;
+        final boolean rightPassword;
+        if (roll < LEGITIMATE_SHARE) {
+            kind = KIND_LEGITIMATE;
+            final int user = random.nextInt(USERS);
+            username = "user" + user;
+            // each user logs in from a home IP
+            currentIP = "10." + (user >> 8 & 0xFF) + '.' + (user & 0xFF) + ".1";
+            rightPassword = random.nextInt(PERCENT) >= TYPO_RATE;
+        } else if (roll < LEGITIMATE_SHARE + BRUTE_FORCE_SHARE) {
+            kind = KIND_BRUTE_FORCE;
+            username = random.nextBoolean() ? "Admin" : "user" + random.nextInt(BRUTE_FORCE_TARGETS);
+            currentIP = "203.0.113." + random.nextInt(BRUTE_FORCE_IPS);
+            rightPassword = false;
+        } else {
+            kind = KIND_STUFFING;
+            final int ip = random.nextInt(STUFFING_IPS);
+            username = "user" + random.nextInt(USERS * 10);
+            currentIP = "198." + (ip >> 16 & 0xFF) + '.' + (ip >> 8 & 0xFF) + '.' + (ip & 0xFF);
+            rightPassword = false;
+        }
+
+        attempts[kind]++;
+        final LoginAttempt attempt = new LoginAttempt(username, context, clock.now);
+        if (service.checkLogin(attempt) != null) {
+            refused[kind]++;
+            if (rightPassword) {
+                lockedOut++;
+            }
+            service.addFailedLogin(attempt);
+        } else if (!rightPassword) {
+            service.addFailedLogin(attempt);
+        } else {
+            service.addSuccessfulLogin(attempt);
+        }
+    }
+
+    private void report(long count, long duration, long wallTime)
+    {
+        System.gc();
+        final Runtime runtime = Runtime.getRuntime();
+        final long usedMemory = runtime.totalMemory() - runtime.freeMemory();
+        final double seconds = wallTime / 1e9;
+
+        System.out.printf("simulated %d attempts in %d hours of virtual time%n", count,
+            TimeUnit.MILLISECONDS.toHours(duration));
+        for (int kind = 0; kind < KIND_NAMES.length; kind++) {
+            System.out.printf("  %-20s %10d attempts, %10d refused (%5.1f%%)%n", KIND_NAMES[kind], attempts[kind],
+                refused[kind], attempts[kind] == 0 ? 0.0 : PERCENT * (double) refused[kind] / attempts[kind]);
+        }
+        System.out.printf("  legitimate logins with the right password refused: %d%n", lockedOut);
+        System.out.printf("wall time %.2f s, %.0f attempts/s, %d MB heap in use%n", seconds, count / seconds,
+            usedMemory >> 20);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.HashSet;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.xwiki.contrib.authentication.blocking.BlockedUsersService;
+import org.xwiki.contrib.authentication.blocking.BlockingPolicy;
+import org.xwiki.contrib.authentication.blocking.LoginAttempt;
+
+import com.xpn.xwiki.XWikiContext;
+
+public class CircuitBreakerPolicyTest
+{
+    private final String WIKI = "dummy";
+    private final String USER_1 = "user1";
+    private final String USER_2 = "login2";
+    private final String IP_1 = "1.1.1.1";
+    private final String IP_2 = "[::FF]";
+
+    XWikiContext context;
+
+    BlockingAuthConfiguration configProvider;
+
+    BlockingAuthConfiguration.Config testConfig;
+
+    @Before
+    public void setUp()
+    {
+        context = mock(XWikiContext.class);
+        when(context.getWikiId()).thenReturn(WIKI);
+        testConfig = new BlockingAuthConfiguration.Config();
+        testConfig.whitelistedIPs = new HashSet<String>();
+        configProvider = mock(BlockingAuthConfiguration.class);
+        when(configProvider.getConfig()).thenReturn(testConfig);
+        when(configProvider.getConfig(anyString())).thenReturn(testConfig);
+    }
+
+    @Test
+    public void testCircuitBreakerRefusesUnknownClients()
+    {
+        testConfig.circuitBreakerRate = 1;
+        CircuitBreakerPolicy breaker = new CircuitBreakerPolicy();
+        breaker.setComponents(new WikiShards(), configProvider, mock(BlockedUsersService.class), mock(Logger.class));
+
+        breaker.recordSuccess(attempt(USER_1, IP_1));
+        assertNull(breaker.check(attempt(USER_2, IP_1)));
+
+        for (int i = 0; i <= LoginRate.SECONDS; i++) {
+            breaker.recordFailure(attempt("user" + i, IP_2));
+        }
+        assertEquals(BlockingPolicy.WIKI_BUSY, breaker.check(attempt(USER_2, IP_2)));
+
+        // the client with a successful login can still log in
+        assertNull(breaker.check(attempt(USER_1, IP_1)));
+    }
+
+    @Test
+    public void testKnownClientsExpire()
+    {
+        WikiShard shard = new WikiShard(WIKI);
+        long now = System.currentTimeMillis();
+        shard.addKnownClient(IP_1, now);
+        assertTrue(shard.isKnownClient(IP_1, now + WikiShard.KNOWN_CLIENT_TIME - 1L));
+        assertFalse(shard.isKnownClient(IP_1, now + WikiShard.KNOWN_CLIENT_TIME));
+        assertFalse(shard.isKnownClient(IP_2, now));
+    }
+
+    //
+    // helpers
+    //
+
+    /**
+     * @return a login attempt from the given client IP, happening now
+     */
+    private LoginAttempt attempt(String username, String ip)
+    {
+        LoginAttempt attempt = new LoginAttempt(username, context, System.currentTimeMillis());
+        attempt.setIP(ip);
+        return attempt;
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.internal;
+
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.helpers.NOPLogger;
+import org.xwiki.contrib.authentication.blocking.LoginAttempt;
+import org.xwiki.model.reference.DocumentReference;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.web.XWikiRequest;
+import com.xpn.xwiki.web.XWikiServletRequest;
+
+/**
+ * Micro benchmarks for the check-and-record path of the {@link DefaultBlockedUserService}.
+ * <p>
+ * Run the benchmarks with the GC profiler, which reports the bytes allocated per operation as
+ * {@code gc.alloc.rate.norm}:
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:exec
+ * </pre>
+ * The context and request are plain subclasses rather than mocks, as mocks allocate on every call.
+ * The login attempt memoized in the context and the client IP cached in the request are dropped on each
+ * invocation, so that each invocation is a request of its own.
+ * <p>
+ * In the steady state, i.e. once the wiki of the user is cached and the counters exist, looking up and
+ * updating the counters and parsing the forwarded header allocate nothing. What is left is allocated
+ * once per request: the login attempt (64 bytes with compressed pointers), its entry in the context
+ * (32 bytes), the client IP taken from the forwarded header (48 bytes for an IPv4 address), and the
+ * entry caching it in the request together with the trusted proxies (24 bytes).
+ * On Java 17 the benchmarks report:
+ * <ul>
+ * <li>{@code isUserBlocked}: 96 bytes; the attempt and its entry in the context</li>
+ * <li>{@code isIPBlocked} and {@code checkAndRecordFailure}: 168 bytes; the client IP in addition</li>
+ * <li>{@code checkAndRecordAttempt}: 136 bytes; the attempt is not kept in the context</li>
+ * <li>{@code checkAndRecordAttemptWithShadow}: 456 bytes; the shadow evaluation needs a second attempt,
+ * keeps its result as attribute of the first one, and resolves the client IP once more for the trusted
+ * proxies of the candidate configuration</li>
+ * </ul>
+ * A real container allocates in addition for the request attribute and the header enumeration.
+ *
+ * @version $Id$
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DefaultBlockedUserServiceBenchmark
+{
+    private static final String MAIN_WIKI = "xwiki";
+
+    private static final String SUB_WIKI = "subwiki";
+
+    private static final String USER = "attacker";
+
+    private static final String PROXY_IP = "127.0.0.1";
+
+    private static final String FORWARDED_FOR_HEADER = "X-Forwarded-For";
+
+    private static final String FORWARDED_FOR = "10.1.2.3, 127.0.0.1";
+
+    private DefaultBlockedUserService service;
+
+    private ShadowEvaluation shadowEvaluation;
+
+    private XWikiContext context;
+
+    private RequestStub request;
+
+    /**
+     * a request from a client behind a trusted proxy. all methods used by the service are implemented here,
+     * without allocating, and the wrapped request is never used. the request keeps a single attribute,
+     * which is all the service needs.
+     */
+    private static final class RequestStub extends XWikiServletRequest
+    {
+        private String attributeName;
+
+        private Object attributeValue;
+
+        RequestStub()
+        {
+            super(null);
+        }
+
+        @Override
+        public String getRemoteAddr()
+        {
+            return PROXY_IP;
+        }
+
+        @Override
+        public String getHeader(String name)
+        {
+            return FORWARDED_FOR_HEADER.equalsIgnoreCase(name) ? FORWARDED_FOR : null;
+        }
+
+        @Override
+        public Enumeration<String> getHeaders(String name)
+        {
+            // as for a container which does not allow to enumerate the header lines
+            return null;
+        }
+
+        @Override
+        public Object getAttribute(String name)
+        {
+            return name.equals(attributeName) ? attributeValue : null;
+        }
+
+        @Override
+        public void setAttribute(String name, Object value)
+        {
+            attributeName = name;
+            attributeValue = value;
+        }
+
+        @Override
+        public void removeAttribute(String name)
+        {
+            if (name.equals(attributeName)) {
+                attributeName = null;
+                attributeValue = null;
+            }
+        }
+    }
+
+    /**
+     * set up a service with a fixed configuration and a context for a login in a sub wiki via a trusted proxy.
+     */
+    @Setup
+    public void setUp() throws Exception
+    {
+        final BlockingAuthConfiguration.Config config = new BlockingAuthConfiguration.Config();
+        config.maxUserAttempts = 3;
+        config.blockTimeUser = TimeUnit.HOURS.toMillis(1);
+        config.maxIPAttempts = 3;
+        config.blockTimeIP = TimeUnit.HOURS.toMillis(1);
+        config.whitelistedIPs = Collections.emptySet();
+        config.trustedProxies = Collections.singleton(PROXY_IP);
+
+        final BlockingAuthConfiguration.Config candidate = new BlockingAuthConfiguration.Config();
+        candidate.maxUserAttempts = 5;
+        candidate.blockTimeUser = TimeUnit.HOURS.toMillis(1);
+        candidate.maxIPAttempts = 5;
+        candidate.blockTimeIP = TimeUnit.HOURS.toMillis(1);
+        candidate.whitelistedIPs = Collections.emptySet();
+        candidate.trustedProxies = Collections.singleton(PROXY_IP);
+        config.shadow = candidate;
+
+        request = new RequestStub();
+        // the account exists in the sub wiki, so its wiki is looked up once and then cached for good
+        final XWiki wiki = mock(XWiki.class);
+        when(wiki.exists(any(DocumentReference.class), any(XWikiContext.class))).thenReturn(true);
+
+        context = new XWikiContext()
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public String getWikiId()
+            {
+                return SUB_WIKI;
+            }
+
+            @Override
+            public String getMainXWiki()
+            {
+                return MAIN_WIKI;
+            }
+
+            @Override
+            public boolean isMainWiki()
+            {
+                return false;
+            }
+
+            @Override
+            public XWiki getWiki()
+            {
+                return wiki;
+            }
+
+            @Override
+            public XWikiRequest getRequest()
+            {
+                return request;
+            }
+        };
+
+        final BlockingAuthConfiguration configProvider = new BlockingAuthConfiguration()
+        {
+            @Override
+            public Config getConfig()
+            {
+                return config;
+            }
+
+            @Override
+            public Config getConfig(String wikiId)
+            {
+                return config;
+            }
+        };
+        service = new DefaultBlockedUserService();
+        service.setConfig(configProvider);
+        service.setContextProvider(() -> context);
+        service.setLogger(NOPLogger.NOP_LOGGER);
+
+        shadowEvaluation = new ShadowEvaluation();
+        shadowEvaluation.setComponents(configProvider, () -> context, new TimingWheel(), NOPLogger.NOP_LOGGER);
+        shadowEvaluation.initialize();
+    }
+
+    /**
+     * start a new request: forget the attempt memoized in the context and the client IP cached in the request.
+     */
+    private void nextRequest()
+    {
+        context.remove(LoginAttempt.CONTEXT_KEY);
+        request.removeAttribute(ClientIP.REQUEST_ATTRIBUTE);
+    }
+
+    /**
+     * check if the user is blocked.
+     *
+     * @return the result, to avoid dead code elimination
+     */
+    @Benchmark
+    public boolean isUserBlocked()
+    {
+        nextRequest();
+        return service.isUserBlocked(USER);
+    }
+
+    /**
+     * check if the IP is blocked.
+     *
+     * @return the result, to avoid dead code elimination
+     */
+    @Benchmark
+    public boolean isIPBlocked()
+    {
+        nextRequest();
+        return service.isIPBlocked(context);
+    }
+
+    /**
+     * the full check-and-record path as done by the authenticator for a blocked login attempt.
+     *
+     * @return the result, to avoid dead code elimination
+     */
+    @Benchmark
+    public boolean checkAndRecordFailure()
+    {
+        nextRequest();
+        boolean blocked = service.isUserBlocked(USER) || service.isIPBlocked(context);
+        service.addFailedLogin(USER, context);
+        return blocked;
+    }
+
+    /**
+     * the check-and-record path of a failed login attempt, as done by the blocking policy.
+     *
+     * @return the result, to avoid dead code elimination
+     */
+    @Benchmark
+    public String checkAndRecordAttempt()
+    {
+        request.removeAttribute(ClientIP.REQUEST_ATTRIBUTE);
+        final LoginAttempt attempt = new LoginAttempt(USER, context, System.currentTimeMillis());
+        final String reason = service.checkLogin(attempt);
+        service.addFailedLogin(attempt);
+        return reason;
+    }
+
+    /**
+     * the same path with a candidate configuration evaluated in shadow mode. the difference to
+     * {@link #checkAndRecordAttempt()} is the cost of the shadow mode per login.
+     *
+     * @return the result, to avoid dead code elimination
+     */
+    @Benchmark
+    public String checkAndRecordAttemptWithShadow()
+    {
+        request.removeAttribute(ClientIP.REQUEST_ATTRIBUTE);
+        final LoginAttempt attempt = new LoginAttempt(USER, context, System.currentTimeMillis());
+        final String reason = service.checkLogin(attempt);
+        shadowEvaluation.check(attempt, reason);
+        service.addFailedLogin(attempt);
+        shadowEvaluation.recordFailure(attempt);
+        return reason;
+    }
+}
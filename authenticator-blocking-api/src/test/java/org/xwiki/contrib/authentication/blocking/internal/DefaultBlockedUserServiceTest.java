@@ -21,14 +21,29 @@ package org.xwiki.contrib.authentication.blocking.internal;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.security.Principal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Provider;
 
@@ -41,11 +56,20 @@ import org.slf4j.Logger;
 import org.xwiki.contrib.authentication.blocking.BlockedIPInformation;
 import org.xwiki.contrib.authentication.blocking.BlockedUserInformation;
 import org.xwiki.contrib.authentication.blocking.BlockedUsersService;
+import org.xwiki.contrib.authentication.blocking.BlockingPolicy;
+import org.xwiki.contrib.authentication.blocking.LoginAttempt;
+import org.xwiki.contrib.authentication.blocking.event.IPBlockedEvent;
+import org.xwiki.contrib.authentication.blocking.event.UnblockedEvent;
+import org.xwiki.contrib.authentication.blocking.event.UserBlockedEvent;
 import org.xwiki.contrib.authentication.blocking.internal.BlockingAuthConfiguration;
 import org.xwiki.contrib.authentication.blocking.internal.DefaultBlockedUserService;
+import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.WikiReference;
 
+import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.user.api.XWikiAuthService;
 import com.xpn.xwiki.web.XWikiRequest;
 
 // @ComponentTest
@@ -69,12 +93,18 @@ public class DefaultBlockedUserServiceTest
     @Mock
     XWikiRequest request;
 
+    @Mock
+    XWiki xwiki;
+
     @Mock
     Logger logger;
 
     @Mock
     BlockingAuthConfiguration configProvider;
 
+    @Mock
+    BlockingEventDispatcher eventDispatcher;
+
     BlockingAuthConfiguration.Config testConfig;
 
     WikiReference dummyWiki;
@@ -88,6 +118,7 @@ public class DefaultBlockedUserServiceTest
         serviceUnderTest.setConfig(configProvider);
         serviceUnderTest.setContextProvider(contextProvider);
         serviceUnderTest.setLogger(logger);
+        serviceUnderTest.setEventDispatcher(eventDispatcher);
         service = serviceUnderTest;
 
         testConfig = new BlockingAuthConfiguration.Config();
@@ -125,6 +156,55 @@ public class DefaultBlockedUserServiceTest
         assertEquals(USER_1, blockedUsers.get(0).getUserReference().getName());
     }
 
+    @Test
+    public void testSendEventsOnlyWhenBlockingStateChanges()
+    {
+        service.addFailedLogin(USER_1, context);
+        service.addFailedLogin(USER_1, context);
+        service.addFailedLogin(USER_1, context);
+        verify(eventDispatcher, times(1)).send(any(UserBlockedEvent.class));
+        verify(eventDispatcher, times(1)).send(any(IPBlockedEvent.class));
+
+        assertTrue(service.unblockUser(USER_1));
+        assertFalse(service.unblockUser(USER_1));
+        verify(eventDispatcher, times(1)).send(any(UnblockedEvent.class));
+    }
+
+    @Test
+    public void testUnblockOnlyBlockedKeys()
+    {
+        testConfig.maxIPAttempts = 3;
+        service.addFailedLogin(USER_1, context);
+        assertFalse(service.unblockUser(USER_1));
+        assertFalse(service.unblockIP(IP_1));
+        verify(eventDispatcher, never()).send(any(UnblockedEvent.class));
+
+        // the failures are forgotten anyway
+        service.addFailedLogin(USER_1, context);
+        assertFalse(service.isUserBlocked(USER_1));
+    }
+
+    @Test
+    public void testCountSpellingsOfUserNameTogether()
+    {
+        service.addFailedLogin("Admin", context);
+        service.addFailedLogin(" XWiki.admin", context);
+        assertTrue(service.isUserBlocked("admin"));
+        assertTrue(service.isUserBlocked("xwiki:XWiki.ADMIN"));
+        assertFalse(service.isUserBlocked(USER_1));
+
+        // the list shows the profile document of the name as entered last
+        List<BlockedUserInformation> blockedUsers = service.getBlockedUsers();
+        assertEquals(1, blockedUsers.size());
+        assertEquals("admin", blockedUsers.get(0).getUserReference().getName());
+        assertEquals("XWiki", blockedUsers.get(0).getUserReference().getParent().getName());
+        service.addFailedLogin("xwiki:XWiki.Admin", context);
+        assertEquals("Admin", service.getBlockedUsers().get(0).getUserReference().getName());
+
+        assertTrue(service.unblockUser("ADMIN"));
+        assertFalse(service.isUserBlocked("Admin"));
+    }
+
     @Test
     public void testUnblockUserAfterBlockTime()
     {
@@ -199,6 +279,55 @@ public class DefaultBlockedUserServiceTest
         assertFalse(service.isUserBlocked(USER_1));
         service.addFailedLogin(USER_1, context);
     }
+    @Test
+    public void testResetFailuresOnSuccessfulLogin()
+    {
+        testConfig.resetUserOnSuccess = true;
+        service.addFailedLogin(USER_1, context);
+        LoginAttempt attempt = attempt(USER_1);
+        assertNull(service.checkLogin(attempt));
+        service.addSuccessfulLogin(attempt);
+        service.addFailedLogin(USER_1, context);
+        assertFalse(service.isUserBlocked(USER_1));
+        // the failures of the IP are kept, unless configured otherwise
+        assertTrue(service.isIPBlocked(context));
+
+        testConfig.resetIPOnSuccess = true;
+        when(request.getRemoteAddr()).thenReturn(IP_2);
+        service.addFailedLogin(USER_2, context);
+        attempt = attempt(USER_2);
+        assertNull(service.checkLogin(attempt));
+        service.addSuccessfulLogin(attempt);
+        service.addFailedLogin(USER_2, context);
+        assertFalse(service.isIPBlocked(context));
+    }
+
+    @Test
+    public void testReuseAttemptAndVerdictWithinRequest()
+    {
+        LoginAttempt attempt = LoginAttempt.forRequest(USER_1, context, 0L);
+        verify(context).put(LoginAttempt.CONTEXT_KEY, attempt);
+        when(context.get(LoginAttempt.CONTEXT_KEY)).thenReturn(attempt);
+        assertSame(attempt, LoginAttempt.forRequest(USER_1, context, 1L));
+        assertSame(attempt, LoginAttempt.forRequest(null, context, 1L));
+        assertNotSame(attempt, LoginAttempt.forRequest(USER_2, context, 1L));
+
+        assertNull(service.checkLogin(attempt));
+        // the values of the request are kept in the attempt only
+        assertTrue(attempt.isChecked());
+        assertEquals(USER_1, attempt.getUserKey());
+        assertEquals(IP_1, attempt.getIP());
+        assertEquals(Boolean.FALSE, attempt.getWhitelisted());
+        verify(context, times(2)).put(anyString(), any());
+        // blocked in another request; the verdict of this request is kept until it records an outcome
+        service.addFailedLogin(attempt(USER_1));
+        service.addFailedLogin(attempt(USER_1));
+        assertNull(service.checkLogin(attempt));
+        service.addFailedLogin(attempt);
+        assertFalse(attempt.isChecked());
+        assertEquals(BlockingPolicy.USER_BLOCKED, service.checkLogin(attempt));
+    }
+
     @Test
     public void testReBlockUserByUnsuccesfullLogin()
     {
@@ -212,6 +341,48 @@ public class DefaultBlockedUserServiceTest
         assertTrue(service.isUserBlocked(USER_1));
     }
 
+    @Test
+    public void testEscalateBlockTimeForRepeatedBlocks()
+    {
+        testConfig.blockTimeFactor = 2;
+        testConfig.maxBlockTime = 150L;
+
+        service.addFailedLogin(USER_1, context);
+        service.addFailedLogin(USER_1, context);
+        assertTrue(service.isUserBlocked(USER_1));
+
+        waitForExpiry();
+        assertFalse(service.isUserBlocked(USER_1));
+
+        // the second block lasts longer, but not longer than the configured maximum
+        service.addFailedLogin(USER_1, context);
+        service.addFailedLogin(USER_1, context);
+        waitForExpiry();
+        assertTrue(service.isUserBlocked(USER_1));
+        waitHalfExpiry();
+        waitHalfExpiry();
+        assertFalse(service.isUserBlocked(USER_1));
+    }
+
+    @Test
+    public void testEscalationDecays()
+    {
+        testConfig.blockTimeFactor = 2;
+        testConfig.escalationDecayTime = 100L;
+
+        service.addFailedLogin(USER_1, context);
+        service.addFailedLogin(USER_1, context);
+        assertTrue(service.isUserBlocked(USER_1));
+
+        // after the decay time without any failures the next block is a first block again
+        waitForExpiry();
+        assertFalse(service.isUserBlocked(USER_1));
+        service.addFailedLogin(USER_1, context);
+        service.addFailedLogin(USER_1, context);
+        waitForExpiry();
+        assertFalse(service.isUserBlocked(USER_1));
+    }
+
     @Test
     public void testBlockIp()
     {
@@ -271,10 +442,535 @@ public class DefaultBlockedUserServiceTest
         assertTrue(service.isUserBlocked(USER_1));
     }
 
+    @Test
+    public void testIpWhitelistRanges()
+    {
+        testConfig.maxIPAttempts = 1;
+        testConfig.whitelistedIPs.add("1.1.0.0/16");
+        testConfig.whitelistedIPs.add("2.2.2.10-2.2.2.20");
+        testConfig.whitelistedIPs.add("fd00::/8");
+
+        for (String ip : Arrays.asList(IP_1, "2.2.2.10", "2.2.2.20", "fd00:0:0::1")) {
+            when(request.getRemoteAddr()).thenReturn(ip);
+            service.addFailedLogin(USER_1, context);
+            assertFalse(ip, service.isIPBlocked(context));
+        }
+        for (String ip : Arrays.asList("1.2.0.1", "2.2.2.21", "fe00::1")) {
+            when(request.getRemoteAddr()).thenReturn(ip);
+            service.addFailedLogin(USER_1, context);
+            assertTrue(ip, service.isIPBlocked(context));
+        }
+    }
+
+    @Test
+    public void testBlockIPTryingManyUsers()
+    {
+        testConfig.maxIPAttempts = 0;
+        testConfig.maxUserAttempts = 0;
+        testConfig.maxDistinctUsers = 10;
+        testConfig.distinctUsersWindow = 60000L;
+
+        // repeating the same few users does not count
+        for (int i = 0; i < 30; i++) {
+            service.addFailedLogin("user" + (i % 3), context);
+        }
+        assertFalse(service.isIPBlocked(context));
+
+        for (int i = 0; i < 20 && !service.isIPBlocked(context); i++) {
+            service.addFailedLogin("other" + i, context);
+        }
+        assertTrue(service.isIPBlocked(context));
+        assertEquals(1, service.getBlockedIPs().size());
+
+        waitForExpiry();
+        assertFalse(service.isIPBlocked(context));
+    }
+
+    @Test
+    public void testBlockSubnet()
+    {
+        testConfig.maxIPAttempts = 0;
+        testConfig.maxUserAttempts = 0;
+        testConfig.maxSubnetAttempts = 3;
+
+        for (int i = 1; i <= 3; i++) {
+            when(request.getRemoteAddr()).thenReturn("192.0.2." + i);
+            assertNull(service.checkLogin(attempt(USER_1)));
+            service.addFailedLogin(USER_1, context);
+        }
+        when(request.getRemoteAddr()).thenReturn("192.0.2.200");
+        assertEquals(BlockingPolicy.SUBNET_BLOCKED, service.checkLogin(attempt(USER_1)));
+        when(request.getRemoteAddr()).thenReturn("192.0.3.1");
+        assertNull(service.checkLogin(attempt(USER_1)));
+
+        assertEquals("192.0.2.0/24", service.getBlockedIPs().get(0).getIp());
+        assertTrue(service.unblockIP("192.0.2.0/24"));
+        when(request.getRemoteAddr()).thenReturn("192.0.2.200");
+        assertFalse(service.isIPBlocked(context));
+    }
+
+    @Test
+    public void testBlockWikiAfterTooManyFailures()
+    {
+        testConfig.maxIPAttempts = 0;
+        testConfig.maxUserAttempts = 0;
+        testConfig.maxWikiAttempts = 5;
+        testConfig.wikiAttemptsWindow = 100L;
+
+        for (int i = 0; i < 5; i++) {
+            when(request.getRemoteAddr()).thenReturn("198.51.100." + i);
+            service.addFailedLogin("user" + i, context);
+        }
+        when(request.getRemoteAddr()).thenReturn(IP_2);
+        assertEquals(BlockingPolicy.WIKI_BLOCKED, service.checkLogin(attempt(USER_2)));
+
+        waitForExpiry();
+        assertNull(service.checkLogin(attempt(USER_2)));
+    }
+
+    @Test
+    public void testWikiRefusalsDoNotCountForUser()
+    {
+        for (String reason : Arrays.asList(BlockingPolicy.WIKI_BUSY, BlockingPolicy.WIKI_BLOCKED)) {
+            for (int i = 0; i < testConfig.maxUserAttempts; i++) {
+                LoginAttempt attempt = attempt(USER_1);
+                attempt.setRefusal(reason);
+                service.addFailedLogin(attempt);
+            }
+        }
+        assertFalse(service.isUserBlocked(USER_1));
+        // the client is still counted
+        assertEquals(BlockingPolicy.IP_BLOCKED, service.checkLogin(attempt(USER_2)));
+    }
+
+    @Test
+    public void testShadowConfigOnlyCounts() throws Exception
+    {
+        BlockingAuthConfiguration.Config candidate = new BlockingAuthConfiguration.Config();
+        candidate.maxUserAttempts = 1;
+        candidate.blockTimeUser = 100L;
+        candidate.whitelistedIPs = new HashSet<String>();
+        ShadowEvaluation shadow = new ShadowEvaluation();
+        shadow.setComponents(configProvider, contextProvider, new TimingWheel(), logger);
+        shadow.initialize();
+        assertTrue(shadow.getMetrics(dummyWiki.getName()).isEmpty());
+
+        testConfig.shadow = candidate;
+        LoginAttempt attempt = attempt(USER_1);
+        String reason = service.checkLogin(attempt);
+        shadow.check(attempt, reason);
+        service.addFailedLogin(attempt);
+        shadow.recordFailure(attempt);
+
+        // the candidate would refuse the second attempt, but the login succeeds
+        attempt = attempt(USER_1);
+        reason = service.checkLogin(attempt);
+        assertNull(reason);
+        shadow.check(attempt, reason);
+        shadow.recordSuccess(attempt);
+        assertFalse(service.isUserBlocked(USER_1));
+
+        Map<String, Long> metrics = shadow.getMetrics(dummyWiki.getName());
+        assertEquals(Long.valueOf(2L), metrics.get("attempts"));
+        assertEquals(Long.valueOf(0L), metrics.get("liveRefused"));
+        assertEquals(Long.valueOf(1L), metrics.get("shadowRefused"));
+        assertEquals(Long.valueOf(1L), metrics.get("loginsRefused"));
+        assertEquals(Long.valueOf(0L), metrics.get("refusalsLifted"));
+    }
+
+    @Test
+    public void testRememberFailedCredentials()
+    {
+        FailedCredentialsCache cache = new FailedCredentialsCache();
+        long now = System.currentTimeMillis();
+        cache.addFailure("wiki", USER_1, "wrong", now, 100L, 0);
+
+        assertTrue(cache.hasFailed("wiki", USER_1, "wrong", now + 50L));
+        assertFalse(cache.hasFailed("wiki", USER_1, "right", now + 50L));
+        assertFalse(cache.hasFailed("wiki", USER_2, "wrong", now + 50L));
+        assertFalse(cache.hasFailed("other", USER_1, "wrong", now + 50L));
+        assertFalse(cache.hasFailed("wiki", USER_1, "wrong", now + 100L));
+    }
+
+    @Test
+    public void testDelegateOnlyAllowedAttempts() throws Exception
+    {
+        final BlockingPolicy policy = mock(BlockingPolicy.class);
+        BlockingAuthServiceImpl authService = newAuthService(policy, new FailedCredentialsCache());
+        XWikiAuthService delegate = mock(XWikiAuthService.class);
+        Principal principal = mock(Principal.class);
+        when(delegate.authenticate(USER_2, "secret", context)).thenReturn(principal);
+        authService.setDelegate(delegate);
+        when(policy.check(any(LoginAttempt.class))).thenAnswer(
+            invocation -> USER_1.equals(((LoginAttempt) invocation.getArguments()[0]).getUsername())
+                ? BlockingPolicy.USER_BLOCKED : null);
+
+        assertNull(authService.authenticate(USER_1, "secret", context));
+        verify(delegate, never()).authenticate(anyString(), anyString(), any(XWikiContext.class));
+        verify(policy, times(1)).recordFailure(any(LoginAttempt.class));
+
+        assertSame(principal, authService.authenticate(USER_2, "secret", context));
+        verify(delegate, times(1)).authenticate(USER_2, "secret", context);
+        verify(policy, times(1)).recordSuccess(any(LoginAttempt.class));
+    }
+
+    @Test
+    public void testRememberOnlyDefiniteFailures() throws Exception
+    {
+        testConfig.failedCredentialsTime = 60000L;
+        FailedCredentialsCache cache = new FailedCredentialsCache();
+        BlockingAuthServiceImpl authService = newAuthService(mock(BlockingPolicy.class), cache);
+        authService.setDelegate(null);
+        when(context.getWiki()).thenReturn(xwiki);
+
+        // the database is not available, so the password might not have been checked
+        when(xwiki.getDocument(any(DocumentReference.class), any(XWikiContext.class)))
+            .thenThrow(new XWikiException());
+        assertNull(authService.authenticate(USER_1, "wrong", context));
+        assertFalse(cache.hasFailed(dummyWiki.getName(), USER_1, "wrong", System.currentTimeMillis()));
+
+        when(xwiki.getDocument(any(DocumentReference.class), any(XWikiContext.class))).thenReturn(null);
+        assertNull(authService.authenticate(USER_1, "wrong", context));
+        assertTrue(cache.hasFailed(dummyWiki.getName(), USER_1, "wrong", System.currentTimeMillis()));
+
+        // the backend of a delegate might not be available either
+        authService.setDelegate(mock(XWikiAuthService.class));
+        assertNull(authService.authenticate(USER_2, "wrong", context));
+        assertFalse(cache.hasFailed(dummyWiki.getName(), USER_2, "wrong", System.currentTimeMillis()));
+    }
+
+    @Test
+    public void testBlockIPOnHoneypotUser()
+    {
+        testConfig.honeypotUsers = new HashSet<String>(Arrays.asList("Root", "XWiki.test"));
+
+        assertNull(service.checkLogin(attempt(USER_1)));
+        assertEquals(BlockingPolicy.IP_BLOCKED, service.checkLogin(attempt("xwiki:XWiki.root")));
+        verify(eventDispatcher, times(1)).send(any(IPBlockedEvent.class));
+        assertEquals(IP_1, service.getBlockedIPs().get(0).getIp());
+        // the IP is blocked for any user now, without another event
+        assertEquals(BlockingPolicy.IP_BLOCKED, service.checkLogin(attempt(USER_1)));
+        assertEquals(BlockingPolicy.IP_BLOCKED, service.checkLogin(attempt("TEST")));
+        verify(eventDispatcher, times(1)).send(any(IPBlockedEvent.class));
+
+        // whitelisted IPs are never blocked
+        testConfig.whitelistedIPs = new HashSet<String>(Arrays.asList(IP_2));
+        when(request.getRemoteAddr()).thenReturn(IP_2);
+        assertNull(service.checkLogin(attempt("root")));
+    }
+
+    @Test
+    public void testEscalateBlocksWithoutFailureLimit()
+    {
+        final long hour = TimeUnit.HOURS.toMillis(1);
+        testConfig.maxIPAttempts = 0;
+        testConfig.blockTimeIP = hour;
+        testConfig.blockTimeFactor = 2;
+        testConfig.escalationDecayTime = TimeUnit.DAYS.toMillis(1);
+        testConfig.maxDistinctUsers = 2;
+        testConfig.distinctUsersWindow = hour;
+        WikiShard shard = new WikiShard(dummyWiki.getName());
+        long now = TimeUnit.DAYS.toMillis(1000);
+
+        // honeypot users
+        assertTrue(shard.blockIP(IP_1, now, testConfig));
+        assertFalse(shard.blockIP(IP_1, now, testConfig));
+        assertEquals(BlockingPolicy.IP_BLOCKED, shard.checkClient(IP_1, null, now + hour - 1, testConfig));
+        assertNull(shard.checkClient(IP_1, null, now + hour, testConfig));
+        assertTrue(shard.blockIP(IP_1, now + hour, testConfig));
+        assertEquals(BlockingPolicy.IP_BLOCKED, shard.checkClient(IP_1, null, now + 3 * hour - 1, testConfig));
+        assertNull(shard.checkClient(IP_1, null, now + 3 * hour, testConfig));
+
+        // too many distinct user names
+        assertNull(shard.addClientFailure(IP_2, null, USER_1, now, testConfig));
+        assertEquals(BlockingPolicy.IP_BLOCKED, shard.addClientFailure(IP_2, null, USER_2, now, testConfig));
+        assertNull(shard.checkClient(IP_2, null, now + hour, testConfig));
+        shard.addClientFailure(IP_2, null, USER_1, now + hour, testConfig);
+        assertEquals(BlockingPolicy.IP_BLOCKED,
+            shard.addClientFailure(IP_2, null, USER_2, now + hour, testConfig));
+        assertEquals(BlockingPolicy.IP_BLOCKED, shard.checkClient(IP_2, null, now + 3 * hour - 1, testConfig));
+        assertNull(shard.checkClient(IP_2, null, now + 3 * hour, testConfig));
+    }
+
+    @Test
+    public void testSprayingNamesDoesNotEvictBlocks()
+    {
+        testConfig.maxTrackedEntries = 10;
+        WikiShard shard = new WikiShard(dummyWiki.getName());
+        long now = System.currentTimeMillis();
+        shard.addUserFailure(USER_1, USER_1, now, testConfig);
+        shard.addUserFailure(USER_1, USER_1, now, testConfig);
+        assertTrue(shard.isUserBlocked(USER_1, now, testConfig));
+
+        for (int i = 0; i < 1000; i++) {
+            shard.addUserFailure("sprayed" + i, null, now, testConfig);
+        }
+        assertTrue(shard.isUserBlocked(USER_1, now, testConfig));
+        assertFalse(shard.isUserBlocked("sprayed0", now, testConfig));
+        // the most recent names are still tracked
+        shard.addUserFailure("sprayed999", null, now, testConfig);
+        assertTrue(shard.isUserBlocked("sprayed999", now, testConfig));
+    }
+
+    @Test
+    public void testEvictEscalatedEntriesLast()
+    {
+        testConfig.maxTrackedEntries = 3;
+        testConfig.blockTimeFactor = 2;
+        testConfig.escalationDecayTime = TimeUnit.DAYS.toMillis(1);
+        WikiShard shard = new WikiShard(dummyWiki.getName());
+        long now = TimeUnit.DAYS.toMillis(1000);
+
+        // after the first block only the escalation level is left
+        shard.addUserFailure(USER_1, USER_1, now, testConfig);
+        shard.addUserFailure(USER_1, USER_1, now, testConfig);
+        now += testConfig.blockTimeUser + 1;
+        assertFalse(shard.isUserBlocked(USER_1, now, testConfig));
+
+        // the older names are evicted first
+        for (int i = 0; i < 10; i++) {
+            shard.addUserFailure("sprayed" + i, null, now, testConfig);
+        }
+        shard.addUserFailure(USER_1, USER_1, now, testConfig);
+        shard.addUserFailure(USER_1, USER_1, now, testConfig);
+        assertEquals(now + 2 * testConfig.blockTimeUser, shard.getUserBlockedUntil(USER_1, now, testConfig));
+    }
+
+    @Test
+    public void testTrackNewKeysWhenAllEntriesAreBlocked()
+    {
+        testConfig.maxTrackedEntries = 10;
+        WikiShard shard = new WikiShard(dummyWiki.getName());
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 10; i++) {
+            shard.addUserFailure("blocked" + i, null, now, testConfig);
+            shard.addUserFailure("blocked" + i, null, now, testConfig);
+        }
+
+        // a new attacker is still blocked, and the overflow for new keys is bounded
+        shard.addUserFailure(USER_1, USER_1, now, testConfig);
+        shard.addUserFailure(USER_1, USER_1, now, testConfig);
+        assertTrue(shard.isUserBlocked(USER_1, now, testConfig));
+        shard.addUserFailure(USER_2, USER_2, now, testConfig);
+        shard.addUserFailure(USER_2, USER_2, now, testConfig);
+        assertFalse(shard.isUserBlocked(USER_2, now, testConfig));
+        for (int i = 0; i < 10; i++) {
+            assertTrue(shard.isUserBlocked("blocked" + i, now, testConfig));
+        }
+        assertEquals(11, shard.getBlockedUsers(testConfig.maxUserAttempts, now).size());
+    }
+
+    @Test
+    public void testEscalateBlocksInVirtualTime()
+    {
+        final long[] now = { TimeUnit.DAYS.toMillis(1000) };
+        ((DefaultBlockedUserService) service).setClock(new BlockingClock()
+        {
+            @Override
+            public long millis()
+            {
+                return now[0];
+            }
+        });
+        testConfig.blockTimeUser = TimeUnit.HOURS.toMillis(1);
+        testConfig.blockTimeFactor = 2;
+        testConfig.escalationDecayTime = TimeUnit.DAYS.toMillis(1);
+
+        service.addFailedLogin(USER_1, context);
+        service.addFailedLogin(USER_1, context);
+        assertTrue(service.isUserBlocked(USER_1));
+        now[0] += TimeUnit.HOURS.toMillis(1) + 1;
+        assertFalse(service.isUserBlocked(USER_1));
+
+        // the second block lasts twice as long
+        service.addFailedLogin(USER_1, context);
+        service.addFailedLogin(USER_1, context);
+        now[0] += TimeUnit.HOURS.toMillis(1) + 1;
+        assertTrue(service.isUserBlocked(USER_1));
+        now[0] += TimeUnit.HOURS.toMillis(1);
+        assertFalse(service.isUserBlocked(USER_1));
+
+        // after the escalation decayed, a block lasts the base time again
+        now[0] += TimeUnit.DAYS.toMillis(2);
+        service.addFailedLogin(USER_1, context);
+        service.addFailedLogin(USER_1, context);
+        now[0] += TimeUnit.HOURS.toMillis(1) + 1;
+        assertFalse(service.isUserBlocked(USER_1));
+    }
+
+    @Test
+    public void testBlockedUntilWithEscalatedBlockTime()
+    {
+        final long[] now = { TimeUnit.DAYS.toMillis(1000) };
+        ((DefaultBlockedUserService) service).setClock(new BlockingClock()
+        {
+            @Override
+            public long millis()
+            {
+                return now[0];
+            }
+        });
+        testConfig.blockTimeUser = TimeUnit.HOURS.toMillis(1);
+        testConfig.blockTimeFactor = 2;
+        testConfig.escalationDecayTime = TimeUnit.DAYS.toMillis(1);
+
+        service.addFailedLogin(new LoginAttempt(USER_1, context, now[0]));
+        LoginAttempt attempt = new LoginAttempt(USER_1, context, now[0]);
+        service.addFailedLogin(attempt);
+        assertEquals(BlockingPolicy.USER_BLOCKED, service.checkLogin(attempt));
+        assertEquals(now[0] + TimeUnit.HOURS.toMillis(1),
+            ((DefaultBlockedUserService) service).getBlockedUntil(attempt, BlockingPolicy.USER_BLOCKED));
+        assertEquals(0L, ((DefaultBlockedUserService) service).getBlockedUntil(attempt, BlockingPolicy.WIKI_BUSY));
+
+        // the second block lasts twice as long, and so does the tarpit
+        now[0] += TimeUnit.HOURS.toMillis(1) + 1;
+        assertFalse(service.isUserBlocked(USER_1));
+        service.addFailedLogin(new LoginAttempt(USER_1, context, now[0]));
+        attempt = new LoginAttempt(USER_1, context, now[0]);
+        service.addFailedLogin(attempt);
+        assertEquals(now[0] + TimeUnit.HOURS.toMillis(2),
+            ((DefaultBlockedUserService) service).getBlockedUntil(attempt, BlockingPolicy.USER_BLOCKED));
+    }
+
+    @Test
+    public void testSingleForwardedForAddress()
+    {
+        testConfig.trustedProxies = new HashSet<String>(Arrays.asList("10.0.0.0/8"));
+        when(request.getRemoteAddr()).thenReturn("10.1.2.3");
+        when(request.getHeader("X-Forwarded-For")).thenReturn(IP_1);
+
+        assertEquals(IP_1, service.getCurrentIP());
+    }
+
+    @Test
+    public void testForwardedForSkipsTrustedProxies()
+    {
+        testConfig.trustedProxies = new HashSet<String>(Arrays.asList("10.0.0.0/8", "192.168.1.1"));
+        when(request.getRemoteAddr()).thenReturn("10.1.2.3");
+        // the left most entry is sent by the client and must not be trusted
+        when(request.getHeader("X-Forwarded-For")).thenReturn("6.6.6.6, " + IP_1 + ", 192.168.1.1");
+
+        assertEquals(IP_1, service.getCurrentIP());
+    }
+
+    @Test
+    public void testForwardedForWithOnlyTrustedProxies()
+    {
+        testConfig.trustedProxies = new HashSet<String>(Arrays.asList("10.0.0.0/8", "192.168.1.1"));
+        when(request.getRemoteAddr()).thenReturn("10.1.2.3");
+        when(request.getHeaders("X-Forwarded-For")).thenReturn(Collections.enumeration(
+            Arrays.asList(" 10.0.0.5 ", "10.0.0.7:8080, 192.168.1.1")));
+
+        // the proxy farthest away is taken as client
+        assertEquals("10.0.0.5", service.getCurrentIP());
+    }
+
+    @Test
+    public void testForwardedHeader()
+    {
+        testConfig.trustedProxies = new HashSet<String>(Arrays.asList("[::1]"));
+        when(request.getRemoteAddr()).thenReturn("0:0:0:0:0:0:0:1");
+        when(request.getHeaders("Forwarded")).thenReturn(Collections.enumeration(
+            Arrays.asList("for=6.6.6.6", "for=\"[2001:db8:cafe::17]:4711\";proto=https, for=::1")));
+
+        assertEquals("2001:db8:cafe::17", service.getCurrentIP());
+    }
+
+    @Test
+    public void testCacheClientIPPerTrustedProxies()
+    {
+        final Map<String, Object> attributes = new HashMap<>();
+        doAnswer(invocation -> attributes.put((String) invocation.getArguments()[0], invocation.getArguments()[1]))
+            .when(request).setAttribute(anyString(), any());
+        when(request.getAttribute(anyString())).thenAnswer(invocation -> attributes.get(invocation.getArguments()[0]));
+        testConfig.trustedProxies = new HashSet<String>(Arrays.asList("10.0.0.0/8"));
+        when(request.getRemoteAddr()).thenReturn("10.1.2.3");
+        when(request.getHeader("X-Forwarded-For")).thenReturn(IP_1);
+
+        // the filter does not know the proxies trusted by the wiki, which must not override them
+        assertEquals("10.1.2.3", new RequestGate().getClientIP(request));
+        assertEquals(IP_1, service.getCurrentIP());
+        assertEquals(IP_1, service.getCurrentIP());
+        verify(request, times(1)).getHeader("X-Forwarded-For");
+    }
+
+    @Test
+    public void testForwardedForFromUntrustedClient()
+    {
+        testConfig.trustedProxies = new HashSet<String>(Arrays.asList("10.0.0.0/8"));
+        when(request.getHeader("X-Forwarded-For")).thenReturn(IP_2);
+
+        assertEquals(IP_1, service.getCurrentIP());
+    }
+
+    @Test
+    public void testLookUpMissingUsersAgainAfterShortTime()
+    {
+        final long[] now = { TimeUnit.DAYS.toMillis(1000) };
+        ((DefaultBlockedUserService) service).setClock(new BlockingClock()
+        {
+            @Override
+            public long millis()
+            {
+                return now[0];
+            }
+        });
+        final boolean[] created = { false };
+        when(context.isMainWiki()).thenReturn(false);
+        when(context.getMainXWiki()).thenReturn("xwiki");
+        when(context.getWiki()).thenReturn(xwiki);
+        when(xwiki.exists(any(DocumentReference.class), any(XWikiContext.class))).thenAnswer(invocation -> created[0]
+            && "xwiki".equals(((DocumentReference) invocation.getArguments()[0]).getWikiReference().getName()));
+
+        // the current and the main wiki are looked up once, and the missing user is remembered for a short time
+        service.isUserBlocked(USER_1);
+        service.isUserBlocked(USER_1);
+        verify(xwiki, times(2)).exists(any(DocumentReference.class), any(XWikiContext.class));
+
+        // an account created meanwhile is found after that time, and then is remembered
+        created[0] = true;
+        now[0] += TimeUnit.MINUTES.toMillis(1) + 1;
+        service.isUserBlocked(USER_1);
+        verify(xwiki, times(4)).exists(any(DocumentReference.class), any(XWikiContext.class));
+        now[0] += TimeUnit.DAYS.toMillis(1);
+        service.isUserBlocked(USER_1);
+        verify(xwiki, times(4)).exists(any(DocumentReference.class), any(XWikiContext.class));
+    }
+
     //
     // helpers
     //
 
+    /**
+     * @return a login attempt from the test context, happening now
+     */
+    private LoginAttempt attempt(String username)
+    {
+        return new LoginAttempt(username, context, System.currentTimeMillis());
+    }
+
+    /**
+     * @return an authentication service using the given components, and mocks or defaults for the others
+     */
+    private BlockingAuthServiceImpl newAuthService(BlockingPolicy policy, FailedCredentialsCache cache)
+    {
+        final Map<Class<?>, Object> components = new HashMap<>();
+        components.put(BlockingPolicy.class, policy);
+        components.put(BlockingAuthConfiguration.class, configProvider);
+        components.put(RequestGate.class, new RequestGate());
+        components.put(FailedCredentialsCache.class, cache);
+        components.put(BlockingClock.class, new BlockingClock());
+        components.put(AuditLog.class, mock(AuditLog.class));
+        return new BlockingAuthServiceImpl()
+        {
+            @Override
+            <T> T getComponent(Class<T> role)
+            {
+                return role.cast(components.get(role));
+            }
+        };
+    }
+
     private void waitForExpiry()
     {
         try {
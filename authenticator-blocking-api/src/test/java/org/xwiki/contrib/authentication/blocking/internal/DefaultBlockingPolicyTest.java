@@ -0,0 +1,86 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.contrib.authentication.blocking.BlockedUsersService;
+import org.xwiki.contrib.authentication.blocking.BlockingPolicy;
+import org.xwiki.contrib.authentication.blocking.LoginAttempt;
+
+import com.xpn.xwiki.XWikiContext;
+
+public class DefaultBlockingPolicyTest
+{
+    private final String USER_1 = "user1";
+    private final String USER_2 = "login2";
+
+    @Test
+    public void testLookUpOtherPoliciesOnlyAfterChanges() throws Exception
+    {
+        ComponentManager componentManager = mock(ComponentManager.class);
+        BlockingPolicy other = mock(BlockingPolicy.class);
+        when(other.check(any(LoginAttempt.class))).thenReturn(BlockingPolicy.WIKI_BUSY);
+        when(componentManager.getInstanceMap(BlockingPolicy.class)).thenAnswer(invocation -> {
+            Map<String, BlockingPolicy> policies = new HashMap<>();
+            policies.put("default", null);
+            policies.put("other", other);
+            return policies;
+        });
+        DefaultBlockingPolicy policy = new DefaultBlockingPolicy();
+        policy.setComponents(mock(BlockedUsersService.class), mock(ShadowEvaluation.class), () -> componentManager,
+            mock(Logger.class));
+
+        LoginAttempt attempt = attempt(USER_1);
+        assertEquals(BlockingPolicy.WIKI_BUSY, policy.check(attempt));
+        assertEquals(BlockingPolicy.WIKI_BUSY, attempt.getRefusal());
+        policy.recordFailure(attempt);
+        policy.recordSuccess(attempt(USER_2));
+        verify(componentManager, times(1)).getInstanceMap(BlockingPolicy.class);
+        verify(other, times(1)).recordFailure(attempt);
+
+        policy.flushOtherPolicies();
+        policy.check(attempt(USER_2));
+        verify(componentManager, times(2)).getInstanceMap(BlockingPolicy.class);
+    }
+
+    //
+    // helpers
+    //
+
+    /**
+     * @return a login attempt happening now
+     */
+    private LoginAttempt attempt(String username)
+    {
+        return new LoginAttempt(username, mock(XWikiContext.class), System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.contrib.authentication.blocking.BlockedOverview;
+import org.xwiki.model.reference.DocumentReference;
+
+public class FarmOverviewTest
+{
+    private final String WIKI = "dummy";
+    private final String USER_1 = "user1";
+    private final String USER_2 = "login2";
+    private final String IP_1 = "1.1.1.1";
+
+    BlockingAuthConfiguration configProvider;
+
+    BlockingAuthConfiguration.Config testConfig;
+
+    @Before
+    public void setUp()
+    {
+        testConfig = new BlockingAuthConfiguration.Config();
+        testConfig.maxUserAttempts = 2;
+        testConfig.blockTimeUser = 100L;
+        testConfig.maxIPAttempts = 2;
+        testConfig.blockTimeIP = 100L;
+        configProvider = mock(BlockingAuthConfiguration.class);
+        when(configProvider.getConfig()).thenReturn(testConfig);
+        when(configProvider.getConfig(anyString())).thenReturn(testConfig);
+    }
+
+    @Test
+    public void testMergeBlocksOfAllWikis()
+    {
+        WikiShards shards = new WikiShards();
+        long now = System.currentTimeMillis();
+        WikiShard shard = shards.getShard(WIKI);
+        shard.addUserFailure(USER_1, USER_1, now - 10L, testConfig);
+        shard.addUserFailure(USER_1, USER_1, now - 10L, testConfig);
+        WikiShard other = shards.getShard("other");
+        other.addUserFailure(USER_2, USER_2, now, testConfig);
+        other.addUserFailure(USER_2, USER_2, now, testConfig);
+        other.addClientFailure(IP_1, null, USER_2, now, testConfig);
+        other.addClientFailure(IP_1, null, USER_2, now, testConfig);
+        shards.getShard("empty");
+
+        FarmOverview farm = new FarmOverview();
+        farm.setComponents(shards, configProvider, new BlockingClock());
+        BlockedOverview overview = farm.getOverview(0, 1);
+        assertEquals(2, overview.getTotalUsers());
+        assertEquals(1, overview.getUsers().size());
+        assertEquals(new DocumentReference("other", "XWiki", USER_2), overview.getUsers().get(0).getUserReference());
+        assertEquals(1, overview.getTotalIPs());
+        assertEquals("other", overview.getIPs().get(0).getWikiId());
+        assertEquals(Arrays.asList(WIKI, "other"), new ArrayList<>(overview.getBlockedUsersByWiki().keySet()));
+        assertEquals(Collections.singletonMap("other", 1), overview.getBlockedIPsByWiki());
+
+        overview = farm.getOverview(1, 1);
+        assertEquals(USER_1, overview.getUsers().get(0).getUserReference().getName());
+        assertTrue(overview.getIPs().isEmpty());
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RequestGateTest
+{
+    private final String USER_1 = "user1";
+    private final String USER_2 = "login2";
+    private final String IP_1 = "1.1.1.1";
+    private final String IP_2 = "[::FF]";
+
+    @Test
+    public void testRequestGateRemembersBlockedIPs()
+    {
+        RequestGate gate = new RequestGate();
+        long now = System.currentTimeMillis();
+        assertFalse(gate.hasBlockedIPs());
+
+        gate.block("192.0.2.1", now + 100L);
+        gate.block("192.0.2.2", now + 100L);
+        assertTrue(gate.hasBlockedIPs());
+        assertEquals(now + 100L, gate.getBlockedUntil("192.0.2.1", now));
+        assertEquals(0L, gate.getBlockedUntil(IP_1, now));
+        assertEquals(0L, gate.getBlockedUntil("192.0.2.1", now + 100L));
+
+        gate.releaseIP("192.0.2.0/24");
+        assertEquals(0L, gate.getBlockedUntil("192.0.2.2", now));
+        assertFalse(gate.hasBlockedIPs());
+    }
+
+    @Test
+    public void testTarpitDoublesDelayUpToMaximum()
+    {
+        final long[] now = { System.currentTimeMillis() };
+        RequestGate gate = new RequestGate();
+        gate.setClock(new BlockingClock()
+        {
+            @Override
+            public long millis()
+            {
+                return now[0];
+            }
+        });
+        assertTrue(gate.isEmpty());
+
+        gate.tarpit(IP_1, USER_1, 100L, 500L, 60000L);
+        assertFalse(gate.isEmpty());
+        assertEquals(0L, gate.nextDelay(IP_1, USER_2));
+        assertEquals(0L, gate.nextDelay(IP_2, USER_1));
+        assertEquals(100L, gate.nextDelay(IP_1, USER_1));
+        assertEquals(200L, gate.nextDelay(IP_1, USER_1));
+        assertEquals(400L, gate.nextDelay(IP_1, USER_1));
+        assertEquals(500L, gate.nextDelay(IP_1, USER_1));
+        assertEquals(500L, gate.nextDelay(IP_1, USER_1));
+
+        // a blocked IP is slowed down for any user name
+        gate.tarpit(IP_2, null, 100L, 500L, 60000L);
+        assertEquals(100L, gate.nextDelay(IP_2, USER_2));
+
+        now[0] += 60001L;
+        assertEquals(0L, gate.nextDelay(IP_1, USER_1));
+        assertEquals(0L, gate.nextDelay(IP_2, USER_2));
+        assertTrue(gate.isEmpty());
+    }
+
+    @Test
+    public void testReleaseOnlyMatchingTarpitEntries()
+    {
+        RequestGate gate = new RequestGate();
+        gate.tarpit("192.0.2.1", "bob", 100L, 500L, 60000L);
+        gate.tarpit("192.0.2.10", "xbob", 100L, 500L, 60000L);
+        gate.tarpit("192.0.2.11", null, 100L, 500L, 60000L);
+
+        gate.releaseUser("ob");
+        assertEquals(100L, gate.nextDelay("192.0.2.1", "bob"));
+        gate.releaseUser("bob");
+        assertEquals(0L, gate.nextDelay("192.0.2.1", "bob"));
+        assertEquals(100L, gate.nextDelay("192.0.2.10", "xbob"));
+
+        gate.releaseIP("192.0.2.1");
+        assertEquals(200L, gate.nextDelay("192.0.2.10", "xbob"));
+        assertEquals(100L, gate.nextDelay("192.0.2.11", USER_1));
+        gate.releaseIP("192.0.2.10");
+        assertEquals(0L, gate.nextDelay("192.0.2.10", "xbob"));
+        assertEquals(200L, gate.nextDelay("192.0.2.11", USER_1));
+
+        gate.releaseIP("192.0.2.0/24");
+        assertEquals(0L, gate.nextDelay("192.0.2.11", USER_1));
+        assertTrue(gate.isEmpty());
+    }
+}
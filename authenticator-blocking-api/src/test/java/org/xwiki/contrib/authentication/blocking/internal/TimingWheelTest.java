@@ -0,0 +1,78 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.contrib.authentication.blocking.event.UnblockedEvent;
+
+public class TimingWheelTest
+{
+    private final String WIKI = "dummy";
+    private final String USER_1 = "user1";
+    private final String USER_2 = "login2";
+
+    BlockingEventDispatcher eventDispatcher;
+
+    BlockingAuthConfiguration.Config testConfig;
+
+    @Before
+    public void setUp()
+    {
+        eventDispatcher = mock(BlockingEventDispatcher.class);
+        testConfig = new BlockingAuthConfiguration.Config();
+        testConfig.maxUserAttempts = 2;
+        testConfig.blockTimeUser = 100L;
+    }
+
+    @Test
+    public void testExpireBlocksOnSchedule()
+    {
+        TimingWheel wheel = new TimingWheel();
+        WikiShards shards = new WikiShards();
+        shards.setTimingWheel(wheel, eventDispatcher);
+        WikiShard shard = shards.getShard(WIKI);
+        long now = System.currentTimeMillis();
+        wheel.advance(now);
+
+        shard.addUserFailure(USER_1, USER_1, now, testConfig);
+        shard.addUserFailure(USER_1, USER_1, now, testConfig);
+        assertEquals(1, shard.getBlockedUsers(testConfig.maxUserAttempts, now).size());
+
+        // the failures are dropped at the first tick after the block time, without checking the user again
+        wheel.advance(now + 2 * TimingWheel.TICK);
+        verify(eventDispatcher, times(1)).send(any(UnblockedEvent.class));
+        assertTrue(shard.getBlockedUsers(testConfig.maxUserAttempts, now).isEmpty());
+
+        // a user removed on request does not cause another event
+        shard.addUserFailure(USER_2, USER_2, now, testConfig);
+        shard.addUserFailure(USER_2, USER_2, now, testConfig);
+        assertTrue(shard.removeUser(USER_2, now, testConfig));
+        wheel.advance(now + 4 * TimingWheel.TICK);
+        verify(eventDispatcher, times(1)).send(any(UnblockedEvent.class));
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.xwiki.contrib.authentication.blocking.BlockedUserInformation;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryManager;
+
+public class UserProfileResolverTest
+{
+    private final String WIKI = "dummy";
+    private final String USER_1 = "user1";
+    private final String USER_2 = "login2";
+
+    @Test
+    public void testResolveUserProfilesInOneQuery() throws Exception
+    {
+        QueryManager queryManager = mock(QueryManager.class);
+        Query query = mock(Query.class);
+        when(queryManager.createQuery(anyString(), anyString())).thenReturn(query);
+        when(query.setWiki(anyString())).thenReturn(query);
+        when(query.bindValue(anyString(), any())).thenReturn(query);
+        // users without first or last name still exist
+        when(query.execute()).thenReturn(
+            Arrays.asList(new Object[] { USER_1, "Jane", "Doe" }, new Object[] { "user3", null, null }));
+        UserProfileResolver resolver = new UserProfileResolver();
+        resolver.setComponents(queryManager, new BlockingClock(), mock(Logger.class));
+
+        List<BlockedUserInformation> users = new ArrayList<>();
+        for (String name : Arrays.asList(USER_1, USER_2, "user3")) {
+            BlockedUserInformation userInfo = new BlockedUserInformation();
+            userInfo.setUserReference(new DocumentReference(WIKI, "XWiki", name));
+            users.add(userInfo);
+        }
+        resolver.resolve(users);
+        assertTrue(users.get(0).isExistingUser());
+        assertEquals("Jane Doe", users.get(0).getDisplayName());
+        assertFalse(users.get(1).isExistingUser());
+        assertEquals(USER_2, users.get(1).getDisplayName());
+        assertTrue(users.get(2).isExistingUser());
+        assertEquals("user3", users.get(2).getDisplayName());
+
+        // all users are cached now
+        resolver.resolve(users);
+        verify(query, times(1)).execute();
+    }
+}
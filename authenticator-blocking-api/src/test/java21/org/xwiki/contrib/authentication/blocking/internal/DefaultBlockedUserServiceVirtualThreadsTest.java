@@ -0,0 +1,202 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.helpers.NOPLogger;
+import org.xwiki.contrib.authentication.blocking.BlockingPolicy;
+import org.xwiki.contrib.authentication.blocking.LoginAttempt;
+import org.xwiki.model.reference.DocumentReference;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * Runs concurrent logins on virtual threads, and checks with a flight recording that no virtual thread
+ * is pinned to its carrier while it waits for a lock or for the database.
+ * <p>
+ * Only compiled and run on Java 21 and later, by the {@code java21} profile in a JVM of its own.
+ *
+ * @version $Id$
+ */
+public class DefaultBlockedUserServiceVirtualThreadsTest
+{
+    private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+
+    private static final String IP = "192.0.2.1";
+
+    private DefaultBlockedUserService service;
+
+    private TimingWheel wheel;
+
+    private XWiki xwiki;
+
+    private Recording recording;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        Assume.assumeTrue("no flight recorder in this JVM", FlightRecorder.isAvailable());
+
+        final BlockingAuthConfiguration.Config config = new BlockingAuthConfiguration.Config();
+        config.maxUserAttempts = 2;
+        config.blockTimeUser = 60000L;
+        config.maxIPAttempts = 0;
+        config.blockTimeIP = 100L;
+        config.whitelistedIPs = new HashSet<String>();
+
+        // simulate database access when looking up the wiki of a user
+        xwiki = mock(XWiki.class);
+        when(xwiki.exists(any(DocumentReference.class), any(XWikiContext.class))).thenAnswer(invocation -> {
+            Thread.sleep(1);
+            return false;
+        });
+
+        wheel = new TimingWheel();
+        final WikiShards shards = new WikiShards();
+        shards.setTimingWheel(wheel, null);
+
+        service = new DefaultBlockedUserService();
+        service.setConfig(new BlockingAuthConfiguration()
+        {
+            @Override
+            public Config getConfig()
+            {
+                return config;
+            }
+
+            @Override
+            public Config getConfig(String wikiId)
+            {
+                return config;
+            }
+        });
+        service.setLogger(NOPLogger.NOP_LOGGER);
+        service.setShards(shards);
+
+        recording = new Recording();
+        recording.enable(PINNED_EVENT).withThreshold(Duration.ZERO).withStackTrace();
+        recording.start();
+    }
+
+    @After
+    public void tearDown()
+    {
+        if (recording != null) {
+            recording.close();
+        }
+    }
+
+    @Test
+    public void testConcurrentLoginsDoNotPinVirtualThreads() throws Exception
+    {
+        final int users = 1000;
+        final long now = System.currentTimeMillis();
+        final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        try {
+            // turn the wheel meanwhile, as the expiry takes the locks of the shards as well
+            final Future<?> expiry = executor.submit(() -> {
+                for (int tick = 0; tick < 100; tick++) {
+                    wheel.advance(now + tick * TimingWheel.TICK / 10);
+                    Thread.sleep(1);
+                }
+                return null;
+            });
+            final List<Future<?>> logins = new ArrayList<>();
+            for (int i = 0; i < 2 * users; i++) {
+                final String user = "user" + (i % users);
+                logins.add(executor.submit(() -> {
+                    final LoginAttempt attempt = attempt(user, now);
+                    service.checkLogin(attempt);
+                    service.addFailedLogin(attempt);
+                }));
+            }
+            for (Future<?> login : logins) {
+                login.get(30, TimeUnit.SECONDS);
+            }
+            expiry.get(30, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdown();
+        }
+        recording.stop();
+
+        for (int i = 0; i < users; i++) {
+            assertEquals(BlockingPolicy.USER_BLOCKED, service.checkLogin(attempt("user" + i, now)));
+        }
+        final List<RecordedEvent> pinned = pinnedEvents();
+        assertTrue("virtual threads pinned: " + pinned, pinned.isEmpty());
+    }
+
+    /**
+     * @return a login attempt in a subwiki of its own request, as the requests of the login do not share a context
+     */
+    private LoginAttempt attempt(String user, long now)
+    {
+        final XWikiContext context = new XWikiContext();
+        context.setMainXWiki("xwiki");
+        context.setWikiId("subwiki");
+        context.setWiki(xwiki);
+        final LoginAttempt attempt = new LoginAttempt(user, context, now);
+        attempt.setIP(IP);
+        return attempt;
+    }
+
+    private List<RecordedEvent> pinnedEvents() throws Exception
+    {
+        final Path dump = Files.createTempFile("virtual-threads", ".jfr");
+        try {
+            recording.dump(dump);
+            final List<RecordedEvent> pinned = new ArrayList<>();
+            for (RecordedEvent event : RecordingFile.readAllEvents(dump)) {
+                if (PINNED_EVENT.equals(event.getEventType().getName())) {
+                    pinned.add(event);
+                }
+            }
+            return pinned;
+        } finally {
+            Files.deleteIfExists(dump);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.replay;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the login attempts in a servlet container access log in the common or combined log format.
+ * <p>
+ * A login attempt is a POST to the {@code loginsubmit} action or to {@code j_security_check}. The login has
+ * succeeded if it is answered by a redirect; a failed login shows the login form again.
+ * The user name is only known if it is part of the URL or logged as the remote user; otherwise it is null.
+ *
+ * @version $Id$
+ * @since 2.0
+ */
+public class AccessLogParser implements LoginLogParser
+{
+    /** client, identity, remote user, time, method, URL, status. */
+    private static final Pattern LINE =
+        Pattern.compile("^(\\S+) \\S+ (\\S+) \\[([^\\]]+)\\] \"(\\S+) (\\S+)[^\"]*\" (\\d{3}) ");
+
+    private static final Pattern USERNAME_PARAMETER = Pattern.compile("[?&]j_username=([^&]*)");
+
+    private static final DateTimeFormatter TIME =
+        DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.ENGLISH);
+
+    private static final String POST = "POST";
+
+    private static final String NO_VALUE = "-";
+
+    private static final int GROUP_IP = 1;
+
+    private static final int GROUP_REMOTE_USER = 2;
+
+    private static final int GROUP_TIME = 3;
+
+    private static final int GROUP_METHOD = 4;
+
+    private static final int GROUP_URL = 5;
+
+    private static final int GROUP_STATUS = 6;
+
+    private static final char REDIRECT_STATUS = '3';
+
+    @Override
+    public LoginRecord parse(String line)
+    {
+        final Matcher matcher = LINE.matcher(line);
+        if (!matcher.lookingAt() || !POST.equals(matcher.group(GROUP_METHOD))) {
+            return null;
+        }
+        final String url = matcher.group(GROUP_URL);
+        if (!url.contains("/loginsubmit/") && !url.contains("j_security_check")) {
+            return null;
+        }
+        final long timestamp;
+        try {
+            timestamp = OffsetDateTime.parse(matcher.group(GROUP_TIME), TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+        return new LoginRecord(timestamp, username(url, matcher.group(GROUP_REMOTE_USER)), matcher.group(GROUP_IP),
+            matcher.group(GROUP_STATUS).charAt(0) == REDIRECT_STATUS);
+    }
+
+    private String username(String url, String remoteUser)
+    {
+        final Matcher parameter = USERNAME_PARAMETER.matcher(url);
+        if (parameter.find()) {
+            try {
+                return URLDecoder.decode(parameter.group(1), "UTF-8");
+            } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                return parameter.group(1);
+            }
+        }
+        return NO_VALUE.equals(remoteUser) ? null : remoteUser;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.replay;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the login attempts in the XWiki log, as logged by the blocking authenticator.
+ * <p>
+ * The debug logging of {@code org.xwiki.contrib.authentication.blocking.internal.BlockingAuthServiceImpl}
+ * has to be enabled to get the failed and successful logins; the refused logins are logged at info level.
+ * The lines have to start with the time, as in the default XWiki log format.
+ *
+ * @version $Id$
+ * @since 2.0
+ */
+public class AuthLogParser implements LoginLogParser
+{
+    /** time, kind of message, user name, IP. */
+    private static final Pattern LINE = Pattern.compile("^(\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2}[,.]\\d{3}) .*?"
+        + "(add login failure for user|successful login for user|skip login for) "
+        + "\\[(.*?)\\] (?:and|from) IP \\[([^\\]]+)\\]");
+
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss,SSS");
+
+    private static final String SUCCESS = "successful login for user";
+
+    private static final int GROUP_TIME = 1;
+
+    private static final int GROUP_MESSAGE = 2;
+
+    private static final int GROUP_USERNAME = 3;
+
+    private static final int GROUP_IP = 4;
+
+    private final ZoneId zone;
+
+    /**
+     * constructor.
+     *
+     * @param zone
+     *            the time zone of the times in the log
+     */
+    public AuthLogParser(ZoneId zone)
+    {
+        this.zone = zone;
+    }
+
+    @Override
+    public LoginRecord parse(String line)
+    {
+        final Matcher matcher = LINE.matcher(line);
+        if (!matcher.lookingAt()) {
+            return null;
+        }
+        final long timestamp;
+        try {
+            timestamp = LocalDateTime.parse(matcher.group(GROUP_TIME).replace('.', ','), TIME).atZone(zone)
+                .toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+        return new LoginRecord(timestamp, matcher.group(GROUP_USERNAME), matcher.group(GROUP_IP),
+            SUCCESS.equals(matcher.group(GROUP_MESSAGE)));
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.replay;
+
+/**
+ * A login attempt found in a log file.
+ *
+ * @version $Id$
+ * @since 2.0
+ */
+public final class LoginRecord
+{
+    private final long timestamp;
+
+    private final String username;
+
+    private final String ip;
+
+    private final boolean success;
+
+    /**
+     * constructor.
+     *
+     * @param timestamp
+     *            the time of the attempt, in milliseconds
+     * @param username
+     *            the name the user has logged in with, or null if not logged
+     * @param ip
+     *            the IP of the client
+     * @param success
+     *            if the login has succeeded
+     */
+    public LoginRecord(long timestamp, String username, String ip, boolean success)
+    {
+        this.timestamp = timestamp;
+        this.username = username;
+        this.ip = ip;
+        this.success = success;
+    }
+
+    /**
+     * @return the time of the attempt, in milliseconds
+     */
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    /**
+     * @return the name the user has logged in with, or null if not logged
+     */
+    public String getUsername()
+    {
+        return username;
+    }
+
+    /**
+     * @return the IP of the client
+     */
+    public String getIP()
+    {
+        return ip;
+    }
+
+    /**
+     * @return if the login has succeeded
+     */
+    public boolean isSuccess()
+    {
+        return success;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.replay;
+
+import org.xwiki.contrib.authentication.blocking.BlockedUsersService;
+import org.xwiki.contrib.authentication.blocking.LoginAttempt;
+import org.xwiki.contrib.authentication.blocking.OfflineBlocking;
+import org.xwiki.contrib.authentication.blocking.internal.BlockingAuthConfiguration.Config;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * Replays recorded login attempts against the {@link BlockedUsersService} in virtual time, without a running wiki.
+ * <p>
+ * Each attempt is checked and recorded like the authenticator does, with the time taken from the attempt,
+ * and the timing wheel is turned in the same time. All attempts are replayed as logins to the main wiki,
+ * with the client IP set on the attempt, so no request is needed.
+ * The cache of failed credentials and the circuit breaker are not part of the replay.
+ * An engine holds the state of one configuration; it is not thread safe.
+ *
+ * @version $Id$
+ * @since 2.0
+ */
+final class ReplayEngine
+{
+    private static final String WIKI = "xwiki";
+
+    private final XWikiContext context = new XWikiContext()
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public String getWikiId()
+        {
+            return WIKI;
+        }
+
+        @Override
+        public String getMainXWiki()
+        {
+            return WIKI;
+        }
+
+        @Override
+        public boolean isMainWiki()
+        {
+            return true;
+        }
+
+        @Override
+        public XWiki getWiki()
+        {
+            return null;
+        }
+    };
+
+    private final OfflineBlocking blocking;
+
+    /** the time of the attempt being replayed. */
+    private long now;
+
+    /**
+     * constructor.
+     *
+     * @param config
+     *            the configuration to replay the attempts with
+     */
+    ReplayEngine(Config config)
+    {
+        blocking = OfflineBlocking.create(config, context);
+    }
+
+    /**
+     * replay a login attempt. the attempts must be replayed in the order of their time;
+     * an attempt older than the one before is replayed at the time of the one before.
+     *
+     * @param username
+     *            the name the user has logged in with
+     * @param ip
+     *            the IP of the client
+     * @param timestamp
+     *            the time of the attempt, in milliseconds
+     * @param success
+     *            if the user has entered the right password
+     * @return the reason why the login would have been refused, or null if the password would have been checked
+     */
+    String replay(String username, String ip, long timestamp, boolean success)
+    {
+        if (timestamp > now) {
+            now = timestamp;
+        }
+        blocking.advance(now);
+        final BlockedUsersService service = blocking.getService();
+        final LoginAttempt attempt = new LoginAttempt(username, context, now);
+        attempt.setIP(ip);
+        final String reason = service.checkLogin(attempt);
+        if (reason != null || !success) {
+            service.addFailedLogin(attempt);
+        } else {
+            service.addSuccessfulLogin(attempt);
+        }
+        return reason;
+    }
+}
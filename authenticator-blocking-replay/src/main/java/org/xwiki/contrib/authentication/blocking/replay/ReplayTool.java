@@ -0,0 +1,240 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.replay;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import org.xwiki.contrib.authentication.blocking.internal.BlockingAuthConfiguration.Config;
+
+/**
+ * Replays the logins of access logs or XWiki logs with candidate configurations, to tune the blocking criteria.
+ * <p>
+ * The log files are read line by line, and gzipped files are unpacked on the fly. The attempts are not kept
+ * after their replay, but each configuration remembers the outcome per client IP and the locked out users,
+ * so the memory needed grows with the number of distinct clients and users in the logs.
+ * Each login attempt found is replayed with every configuration, each in a thread of its own.
+ * At the end, the tool reports for each configuration how many logins with the right password would have been
+ * refused, and how many of the failed logins and of the clients which never logged in would have been stopped.
+ * Run it with:
+ * <pre>
+ * ReplayTool [--format access|auth] --config strict.properties --config lax.properties access.log ...
+ * </pre>
+ * A configuration is a properties file with the fields of the configuration in the wiki, like
+ * {@code maxUserAttempts=3} or {@code userBlockTime=900}, with the times in seconds and the flags as
+ * {@code true} or {@code false}; {@code ipWhitelist} and {@code honeypotUsers} are comma separated lists.
+ * Missing fields have the defaults of a new configuration.
+ *
+ * @version $Id$
+ * @since 2.0
+ */
+public final class ReplayTool
+{
+    private static final int BATCH_SIZE = 1024;
+
+    private static final String ONE_DAY = "86400";
+
+    private static final String TRUE = "true";
+
+    private ReplayTool()
+    {
+        // command line tool
+    }
+
+    /**
+     * run the replay.
+     *
+     * @param args
+     *            the command line arguments, see above
+     * @throws Exception
+     *             if reading the logs or configurations has failed
+     */
+    public static void main(String[] args) throws Exception
+    {
+        LoginLogParser parser = new AccessLogParser();
+        final List<Path> configs = new ArrayList<>();
+        final List<Path> logs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (isOption(args, i, "format")) {
+                parser = "auth".equals(args[++i]) ? new AuthLogParser(ZoneId.systemDefault()) : new AccessLogParser();
+            } else if (isOption(args, i, "config")) {
+                configs.add(Paths.get(args[++i]));
+            } else if (args[i].startsWith("-")) {
+                logs.clear();
+                break;
+            } else {
+                logs.add(Paths.get(args[i]));
+            }
+        }
+        if (configs.isEmpty() || logs.isEmpty()) {
+            System.err.println("usage: ReplayTool [--format access|auth] --config <properties file> "
+                + "[--config <properties file> ...] <log file> ...");
+            System.exit(1);
+        }
+
+        final List<ReplayWorker> workers = new ArrayList<>();
+        for (Path config : configs) {
+            workers.add(new ReplayWorker(config.getFileName().toString(), loadConfig(config)));
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(workers.size());
+        workers.forEach(executor::execute);
+
+        final long start = System.nanoTime();
+        final long count = read(logs, parser, workers);
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+        System.out.printf("replayed %d login attempts with %d configurations in %.1f s%n", count, workers.size(),
+            (System.nanoTime() - start) / 1e9);
+        for (ReplayWorker worker : workers) {
+            worker.report(System.out);
+        }
+    }
+
+    /**
+     * check if an argument is the given option, in its long or short form, and followed by its value.
+     */
+    private static boolean isOption(String[] args, int index, String name)
+    {
+        return index + 1 < args.length && (args[index].equals("--" + name) || args[index].equals("-" + name.charAt(0)));
+    }
+
+    private static long read(List<Path> logs, LoginLogParser parser, List<ReplayWorker> workers)
+        throws IOException, InterruptedException
+    {
+        long count = 0;
+        List<LoginRecord> batch = new ArrayList<>(BATCH_SIZE);
+        for (Path log : logs) {
+            try (BufferedReader reader = new BufferedReader(open(log))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final LoginRecord record = parser.parse(line);
+                    if (record == null) {
+                        continue;
+                    }
+                    count++;
+                    batch.add(record);
+                    if (batch.size() == BATCH_SIZE) {
+                        // the batches are shared by all workers, and never changed afterwards
+                        for (ReplayWorker worker : workers) {
+                            worker.add(batch);
+                        }
+                        batch = new ArrayList<>(BATCH_SIZE);
+                    }
+                }
+            }
+        }
+        for (ReplayWorker worker : workers) {
+            if (!batch.isEmpty()) {
+                worker.add(batch);
+            }
+            worker.add(ReplayWorker.END);
+        }
+        return count;
+    }
+
+    private static Reader open(Path log) throws IOException
+    {
+        InputStream in = Files.newInputStream(log);
+        if (log.getFileName().toString().endsWith(".gz")) {
+            in = new GZIPInputStream(in);
+        }
+        return new InputStreamReader(in, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * load a candidate configuration.
+     *
+     * @param file
+     *            the properties file
+     * @return the configuration
+     * @throws IOException
+     *             if the file cannot be read
+     */
+    static Config loadConfig(Path file) throws IOException
+    {
+        final Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        final Config conf = new Config();
+        try {
+            conf.maxUserAttempts = Integer.parseInt(properties.getProperty("maxUserAttempts", "3").trim());
+            conf.blockTimeUser = seconds(properties, "userBlockTime", "900");
+            conf.maxIPAttempts = Integer.parseInt(properties.getProperty("maxIPAttempts", "0").trim());
+            conf.blockTimeIP = seconds(properties, "ipBlockTime", "0");
+            conf.blockTimeFactor = Integer.parseInt(properties.getProperty("blockTimeFactor", "2").trim());
+            conf.maxBlockTime = seconds(properties, "maxBlockTime", ONE_DAY);
+            conf.escalationDecayTime = seconds(properties, "escalationDecayTime", ONE_DAY);
+            conf.maxTrackedEntries = Integer.parseInt(properties.getProperty("maxTrackedEntries", "10000").trim());
+            conf.maxDistinctUsers = Integer.parseInt(properties.getProperty("maxDistinctUsers", "20").trim());
+            conf.distinctUsersWindow = seconds(properties, "distinctUsersWindow", "3600");
+            conf.maxSubnetAttempts = Integer.parseInt(properties.getProperty("maxSubnetAttempts", "0").trim());
+            conf.maxWikiAttempts = Integer.parseInt(properties.getProperty("maxWikiAttempts", "0").trim());
+            conf.wikiAttemptsWindow = seconds(properties, "wikiAttemptsWindow", "60");
+        } catch (NumberFormatException e) {
+            throw new IOException(String.format("invalid number in configuration [%s]: %s", file, e.getMessage()), e);
+        }
+        conf.resetUserOnSuccess = flag(properties, "resetUserOnSuccess", TRUE);
+        conf.resetIPOnSuccess = flag(properties, "resetIPOnSuccess", "false");
+        conf.whitelistedIPs = list(properties, "ipWhitelist");
+        conf.honeypotUsers = list(properties, "honeypotUsers");
+        // the client IPs in the logs are final; no proxy headers to take into account
+        conf.trustedProxies = Collections.emptySet();
+        return conf;
+    }
+
+    private static Set<String> list(Properties properties, String key)
+    {
+        final String value = properties.getProperty(key, "").trim();
+        return value.isEmpty() ? Collections.<String>emptySet()
+            : new HashSet<>(Arrays.asList(value.split("\\s*,\\s*")));
+    }
+
+    private static boolean flag(Properties properties, String key, String defaultValue)
+    {
+        final String value = properties.getProperty(key, defaultValue).trim();
+        return TRUE.equalsIgnoreCase(value) || "1".equals(value);
+    }
+
+    private static long seconds(Properties properties, String key, String defaultValue)
+    {
+        return Long.parseLong(properties.getProperty(key, defaultValue).trim()) * 1000L;
+    }
+}
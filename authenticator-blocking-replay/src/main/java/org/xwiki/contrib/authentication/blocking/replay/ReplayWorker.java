@@ -0,0 +1,200 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.replay;
+
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.xwiki.contrib.authentication.blocking.internal.BlockingAuthConfiguration.Config;
+
+/**
+ * Replays the login attempts of the logs with one candidate configuration, and counts the outcome.
+ * <p>
+ * The attempts are handed over in batches, and replayed in order by the thread running the worker.
+ * A client which has never logged in successfully is counted as an attacker. The outcome is kept for each
+ * client IP and each locked out user until the report, so it is not bounded by the size of the batches.
+ * If the replay fails, the error is kept for the report, and the remaining batches are dropped.
+ *
+ * @version $Id$
+ * @since 2.0
+ */
+public class ReplayWorker implements Runnable
+{
+    /** the batch marking the end of the logs. */
+    static final List<LoginRecord> END = Collections.emptyList();
+
+    private static final int QUEUE_SIZE = 64;
+
+    /** how long to wait for the worker before checking again if it is still running, in milliseconds. */
+    private static final long ADD_TIMEOUT = 1000L;
+
+    private static final int FAILED = 1;
+
+    private static final int SUCCEEDED = 2;
+
+    private static final int REFUSED = 4;
+
+    private static final double PERCENT = 100.0;
+
+    private final String name;
+
+    private final ReplayEngine engine;
+
+    private final BlockingQueue<List<LoginRecord>> batches = new ArrayBlockingQueue<>(QUEUE_SIZE);
+
+    /** the outcome for each client IP, as combination of the flags above. */
+    private final Map<String, Integer> clients = new HashMap<>();
+
+    /** the users refused although they have entered the right password. */
+    private final Set<String> lockedOutUsers = new HashSet<>();
+
+    private long logins;
+
+    private long refusedLogins;
+
+    private long failures;
+
+    private long refusedFailures;
+
+    /** the reason why the replay has failed; set by the worker, read by the report. */
+    private volatile Throwable error;
+
+    /** if the worker has stopped taking batches. */
+    private volatile boolean stopped;
+
+    /**
+     * constructor.
+     *
+     * @param name
+     *            the name of the configuration, for the report
+     * @param config
+     *            the configuration to replay the attempts with
+     */
+    public ReplayWorker(String name, Config config)
+    {
+        this.name = name;
+        this.engine = new ReplayEngine(config);
+    }
+
+    /**
+     * hand over the next batch of attempts; blocks while the worker is too far behind.
+     * the batch is dropped if the worker has stopped, e.g. because the replay has failed.
+     *
+     * @param batch
+     *            the attempts, in the order of their time; {@link #END} after the last batch
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    public void add(List<LoginRecord> batch) throws InterruptedException
+    {
+        while (!stopped && !batches.offer(batch, ADD_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            // check again if the worker is still running
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        try {
+            List<LoginRecord> batch;
+            while ((batch = batches.take()) != END) {
+                for (LoginRecord record : batch) {
+                    replay(record);
+                }
+            }
+        } catch (InterruptedException e) {
+            error = e;
+            Thread.currentThread().interrupt();
+        } catch (Throwable e) {
+            // including errors like running out of memory; the reader stops handing over batches
+            error = e;
+        } finally {
+            stopped = true;
+            batches.clear();
+        }
+    }
+
+    private void replay(LoginRecord record)
+    {
+        // without the user name each client is counted as a user of its own
+        final String username = record.getUsername() == null ? record.getIP() : record.getUsername();
+        final boolean refused = engine.replay(username, record.getIP(), record.getTimestamp(),
+            record.isSuccess()) != null;
+        int outcome = record.isSuccess() ? SUCCEEDED : FAILED;
+        if (record.isSuccess()) {
+            logins++;
+            if (refused) {
+                refusedLogins++;
+                lockedOutUsers.add(username);
+            }
+        } else {
+            failures++;
+            if (refused) {
+                refusedFailures++;
+                outcome |= REFUSED;
+            }
+        }
+        clients.merge(record.getIP(), outcome, (a, b) -> a | b);
+    }
+
+    /**
+     * print the outcome of the replay.
+     *
+     * @param out
+     *            the stream to print to
+     */
+    public void report(PrintStream out)
+    {
+        out.printf("configuration %s%n", name);
+        if (error != null) {
+            out.printf("  replay failed: %s%n", error);
+            return;
+        }
+        long attackers = 0;
+        long stoppedAttackers = 0;
+        for (int outcome : clients.values()) {
+            if ((outcome & SUCCEEDED) == 0) {
+                attackers++;
+                if ((outcome & REFUSED) != 0) {
+                    stoppedAttackers++;
+                }
+            }
+        }
+        out.printf("  logins with the right password %10d, refused %10d (%5.1f%%) for %d users%n", logins,
+            refusedLogins, percent(refusedLogins, logins), lockedOutUsers.size());
+        out.printf("  failed logins                  %10d, refused %10d (%5.1f%%)%n", failures, refusedFailures,
+            percent(refusedFailures, failures));
+        out.printf("  clients never logged in        %10d, stopped %10d (%5.1f%%)%n", attackers, stoppedAttackers,
+            percent(stoppedAttackers, attackers));
+    }
+
+    private static double percent(long part, long total)
+    {
+        return total == 0 ? 0.0 : PERCENT * part / total;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.authentication.blocking.replay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.time.ZoneOffset;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the parsers of the log files.
+ *
+ * @version $Id$
+ */
+public class LoginLogParserTest
+{
+    private static final String IP = "192.0.2.7";
+
+    @Test
+    public void testParseAccessLog()
+    {
+        final LoginLogParser parser = new AccessLogParser();
+
+        LoginRecord record = parser.parse(IP + " - - [10/Oct/2018:13:55:36 +0000] "
+            + "\"POST /xwiki/bin/loginsubmit/XWiki/XWikiLogin?j_username=J%C3%BCrgen HTTP/1.1\" 302 0 \"-\" \"curl\"");
+        assertEquals(IP, record.getIP());
+        assertEquals("J\u00fcrgen", record.getUsername());
+        assertEquals(1539179736000L, record.getTimestamp());
+        assertTrue(record.isSuccess());
+
+        record = parser.parse(IP + " - - [10/Oct/2018:15:55:36 +0200] "
+            + "\"POST /xwiki/bin/loginsubmit/XWiki/XWikiLogin HTTP/1.1\" 401 1234");
+        assertNull(record.getUsername());
+        assertEquals(1539179736000L, record.getTimestamp());
+        assertFalse(record.isSuccess());
+
+        assertNull(parser.parse(IP + " - - [10/Oct/2018:13:55:36 +0000] "
+            + "\"GET /xwiki/bin/loginsubmit/XWiki/XWikiLogin HTTP/1.1\" 200 1234"));
+        assertNull(parser.parse(IP + " - - [10/Oct/2018:13:55:36 +0000] "
+            + "\"POST /xwiki/bin/save/Main/WebHome HTTP/1.1\" 302 0"));
+        assertNull(parser.parse("garbage"));
+    }
+
+    @Test
+    public void testParseAuthLog()
+    {
+        final LoginLogParser parser = new AuthLogParser(ZoneOffset.UTC);
+
+        LoginRecord record = parser.parse("2018-10-10 13:55:36,000 [http-nio-8080-exec-1] DEBUG "
+            + "o.x.c.a.b.i.BlockingAuthServiceImpl - add login failure for user [Admin] and IP [" + IP + "]");
+        assertEquals("Admin", record.getUsername());
+        assertEquals(IP, record.getIP());
+        assertEquals(1539179736000L, record.getTimestamp());
+        assertFalse(record.isSuccess());
+
+        record = parser.parse("2018-10-10 13:55:37,000 [http-nio-8080-exec-2] DEBUG "
+            + "o.x.c.a.b.i.BlockingAuthServiceImpl - successful login for user [Admin] and IP [" + IP + "]");
+        assertTrue(record.isSuccess());
+
+        record = parser.parse("2018-10-10 13:55:38,000 [http-nio-8080-exec-3] INFO "
+            + "o.x.c.a.b.i.BlockingAuthServiceImpl - skip login for [Admin] from IP [" + IP
+            + "]; refused with [contrib.blockingauth.user.blocked]");
+        assertEquals(IP, record.getIP());
+        assertFalse(record.isSuccess());
+
+        assertNull(parser.parse("2018-10-10 13:55:39,000 [http-nio-8080-exec-3] DEBUG "
+            + "o.x.c.a.b.i.BlockingAuthServiceImpl - skip login for [Admin]; same credentials failed recently"));
+    }
+}